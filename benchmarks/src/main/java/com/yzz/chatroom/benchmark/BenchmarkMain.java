@@ -0,0 +1,56 @@
+package com.yzz.chatroom.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+import java.io.IOException;
+
+/**
+ * describe: 基准测试的入口，参数与 JMH 的命令行相同
+ * date:2019/1/25
+ * 在 JMH 的默认参数之上：
+ * 1. 总是开启 gc 分析器，报告每次操作分配的字节数（gc.alloc.rate.norm）
+ * 2. 没有指定结果文件时，把结果以 JSON 写入 jmh-result-版本.json，不同版本的结果可以直接对比
+ * <p>
+ * java -jar target/benchmarks.jar                      全部
+ * java -jar target/benchmarks.jar ProtocolBenchmark    只跑协议
+ * java -jar target/benchmarks.jar -Dchatroom.version=0.0.2 ...
+ *
+ * @Since 0.0.2
+ */
+public class BenchmarkMain {
+
+    //结果文件中的版本号
+    public static final String VERSION_PROPERTY = "chatroom.version";
+
+    public static void main(String[] args) throws IOException, RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+            //帮助和列表交给 JMH 自己处理
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmd);
+        boolean gc = false;
+        for (ProfilerConfig profiler : cmd.getProfilers()) {
+            if (profiler.getKlass().equals(GCProfiler.class.getName()) || profiler.getKlass().equals("gc")) {
+                gc = true;
+            }
+        }
+        if (!gc) {
+            builder.addProfiler(GCProfiler.class);
+        }
+        if (!cmd.getResult().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-" + System.getProperty(VERSION_PROPERTY, "SNAPSHOT") + ".json");
+        }
+        new Runner(builder.build()).run();
+    }
+}
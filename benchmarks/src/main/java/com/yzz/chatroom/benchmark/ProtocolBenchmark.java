@@ -0,0 +1,115 @@
+package com.yzz.chatroom.benchmark;
+
+import com.yzz.chatroom.protocol.BinaryChartRoomProtocol;
+import com.yzz.chatroom.protocol.BioChartRoomProtocol;
+import com.yzz.chatroom.protocol.BioChartRoomProtocolSupper;
+import com.yzz.chatroom.protocol.Header;
+import com.yzz.chatroom.protocol.Message;
+import com.yzz.chatroom.protocol.MessageType;
+import com.yzz.chatroom.protocol.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * describe: 各协议 write/parse 的吞吐量与分配，按消息体大小分组
+ * date:2019/1/25
+ * 写入复用同一个内存输出流，读取反复解析同一帧，只测量协议本身的开销，不包括 socket
+ *
+ * @Since 0.0.2
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    //消息体的字符数
+    @Param({"16", "256", "4096", "65536"})
+    public int size;
+
+    //legacy: jdk序列化 supper: BioChartRoomProtocolSupper binary: 二进制帧 compressed: 协商了压缩的二进制帧
+    @Param({"legacy", "supper", "binary", "compressed"})
+    public String protocol;
+
+    private Protocol codec;
+
+    private Message message;
+
+    private ByteArrayOutputStream out;
+
+    private ByteArrayInputStream in;
+
+    @Setup
+    public void setup() throws IOException {
+        codec = protocol(protocol);
+        message = new Message(new Header("127.0.0.1", 54321, "bench"), body(size), MessageType.CHAT, "lobby");
+        out = new ByteArrayOutputStream(size * 2 + 1024);
+        codec.write(out, message);
+        in = new ByteArrayInputStream(out.toByteArray());
+        //从头开始读
+        in.mark(0);
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        out.reset();
+        codec.write(out, message);
+        return out.size();
+    }
+
+    @Benchmark
+    public Message parse() throws IOException {
+        in.reset();
+        return codec.parse(in);
+    }
+
+    static Protocol protocol(String name) {
+        switch (name) {
+            case "legacy":
+                return BioChartRoomProtocol.getInstance();
+            case "supper":
+                return BioChartRoomProtocolSupper.getInstance();
+            case "binary":
+                return BinaryChartRoomProtocol.getInstance();
+            case "compressed":
+                return BinaryChartRoomProtocol.compressed();
+            default:
+                throw new IllegalArgumentException("unknown protocol " + name);
+        }
+    }
+
+    /**
+     * 类似日志的内容，压缩率接近真实粘贴的堆栈
+     *
+     * @param size
+     * @return
+     */
+    public static String body(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        Random random = new Random(size);
+        while (sb.length() < size) {
+            sb.append("at com.yzz.chatroom.server.BioServer.provideService(BioServer.java:")
+                    .append(random.nextInt(1000))
+                    .append(")\n");
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,111 @@
+package com.yzz.chatroom.server;
+
+import com.yzz.chatroom.protocol.Header;
+import com.yzz.chatroom.protocol.Message;
+import com.yzz.chatroom.protocol.MessageType;
+import com.yzz.chatroom.protocol.Protocol;
+import com.yzz.chatroom.protocol.ProtocolNegotiator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * describe: 新连接进来之后，到能够收发消息之前服务端的开销
+ * date:2019/1/25
+ * 1. negotiate: 非阻塞的协议协商，握手或老客户端的流头
+ * 2. session: 协商之后创建会话、登记 HELLO、回复 WELCOME、加入默认房间，再断开清理
+ * 都在内存中完成，不包括 accept 系统调用和线程的创建
+ *
+ * @Since 0.0.2
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcceptBenchmark {
+
+    //binary: 新客户端的握手 legacy: jdk序列化的流头
+    @Param({"binary", "legacy"})
+    public String client;
+
+    private BioServer server;
+
+    private ByteBuffer greeting;
+
+    private final ByteArrayOutputStream reply = new ByteArrayOutputStream(ProtocolNegotiator.HANDSHAKE_LENGTH);
+
+    private Protocol protocol;
+
+    private long counter;
+
+    private Logger quiet;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        quiet = DispatchBenchmark.quiet();
+        server = BioServer.newServerByPort(0);
+        //不提交写任务，socket 没有连接，回复留在发送队列中
+        server.writerPool = null;
+        if ("binary".equals(client)) {
+            greeting = ByteBuffer.wrap(new byte[]{'B', 'C', 'R', (byte) (1 | ProtocolNegotiator.CAPABILITY_DEFLATE)});
+        } else {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            new ObjectOutputStream(header).flush();
+            greeting = ByteBuffer.wrap(header.toByteArray());
+        }
+        protocol = negotiate();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.serverSocket.close();
+    }
+
+    @Benchmark
+    public Protocol negotiate() throws IOException {
+        greeting.rewind();
+        reply.reset();
+        return ProtocolNegotiator.accept(greeting, reply, true, ProtocolNegotiator.CAPABILITY_DEFLATE);
+    }
+
+    @Benchmark
+    public int session() {
+        Session session = new Session(new Socket(), server.newOutbound());
+        session.setProtocol(protocol);
+        server.addSession(session);
+        Message hello = new Message(new Header("127.0.0.1", 54321, "bench-" + counter++), "", MessageType.HELLO, null);
+        if (ProtocolNegotiator.isLegacy(protocol)) {
+            //老客户端在协商后直接加入默认房间，第一次发言时登记
+            server.onNegotiated(session);
+            hello.setType(MessageType.CHAT);
+        }
+        server.route(session, hello);
+        int queued = session.outbound().size();
+        //socket 没有连接，不走 remove() 的关闭逻辑，只清理登记的状态
+        server.sessions.remove(session.socket());
+        server.rooms.leaveAll(session);
+        server.nicknames.remove(session.nickName(), session);
+        session.close();
+        return queued;
+    }
+}
@@ -0,0 +1,115 @@
+package com.yzz.chatroom.server;
+
+import com.yzz.chatroom.benchmark.ProtocolBenchmark;
+import com.yzz.chatroom.protocol.BinaryChartRoomProtocol;
+import com.yzz.chatroom.protocol.BioChartRoomProtocol;
+import com.yzz.chatroom.protocol.Frame;
+import com.yzz.chatroom.protocol.Header;
+import com.yzz.chatroom.protocol.Message;
+import com.yzz.chatroom.protocol.MessageType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * describe: 一条消息转发给房间内 N 个客户端的开销
+ * date:2019/1/25
+ * 客户端是内存中的会话，没有 socket 和写线程，每次转发之后把发送队列取空，
+ * 测量的是 编码 + 遍历房间 + 入队 的成本，与网络无关。
+ * 放在 server 包下才能调用 dispatch 等受保护的方法
+ *
+ * @Since 0.0.2
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    //房间内的客户端数
+    @Param({"1", "10", "100", "1000"})
+    public int clients;
+
+    //消息体的字符数
+    @Param({"256"})
+    public int size;
+
+    //每 legacyEvery 个客户端中有一个老客户端，0 表示全部是二进制协议
+    @Param({"0"})
+    public int legacyEvery;
+
+    private BioServer server;
+
+    private final List<Session> sinks = new ArrayList<>();
+
+    private Message message;
+
+    //持有引用，避免日志配置被回收
+    private Logger quiet;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        quiet = quiet();
+        //端口 0，只是为了构造服务端，不会接受连接
+        server = BioServer.newServerByPort(0);
+        //不提交写任务，发送队列由基准测试自己取空；不写消息日志，与之前的结果可比
+        server.writerPool = null;
+        server.setJournal(null);
+        for (int i = 0; i < clients; i++) {
+            Session session = new Session(new Socket(), server.newOutbound());
+            boolean legacy = legacyEvery > 0 && i % legacyEvery == 0;
+            session.setProtocol(legacy ? BioChartRoomProtocol.getInstance() : BinaryChartRoomProtocol.getInstance());
+            server.rooms.join(session, RoomRegistry.DEFAULT_ROOM);
+            sinks.add(session);
+        }
+        message = new Message(new Header("127.0.0.1", 54321, "bench"), ProtocolBenchmark.body(size), MessageType.CHAT, RoomRegistry.DEFAULT_ROOM);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.serverSocket.close();
+    }
+
+    @Benchmark
+    public int dispatch() {
+        server.dispatch(message);
+        int frames = 0;
+        for (Session session : sinks) {
+            Frame frame;
+            while ((frame = session.outbound().poll()) != null) {
+                frames += frame.length() > 0 ? 1 : 0;
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * 转发路径上每条消息都会打日志，基准测试中只保留错误
+     *
+     * @return
+     */
+    static Logger quiet() {
+        Logger logger = Logger.getLogger("com.yzz.chatroom");
+        logger.setLevel(java.util.logging.Level.SEVERE);
+        return logger;
+    }
+}
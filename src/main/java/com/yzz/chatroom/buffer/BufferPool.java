@@ -0,0 +1,285 @@
+package com.yzz.chatroom.buffer;
+
+import com.yzz.chatroom.log.EventLog;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * describe: 按规格分级的直接内存缓冲池，用于网络读写
+ * date:2019/1/31
+ * 1. 规格从 {@link #MIN_CLASS_SIZE} 到 {@link #MAX_CLASS_SIZE}，每级翻倍，申请的大小向上取整到所在的规格；
+ * 超过最大规格的申请不入池，直接在堆上分配，这样的大帧很少，交给 GC
+ * 2. 每个规格一个无锁的栈（后进先出，最近归还的缓冲还在缓存中），每个规格最多保留 maxBytesPerClass 字节，多出来的归还时丢弃
+ * 3. 借出的是 {@link PooledBuffer}，只有一个持有者，用完释放时归还
+ * 4. 命中、未命中、泄漏都有计数；调试模式（-Dchatroom.buffer.leakDetection=true 或 -Dchatroom.log.debug=true）下
+ * 记录每次借出的调用栈，没有释放就被 GC 的缓冲输出借出的位置
+ * 稳定之后读写路径上只借还，不再分配直接内存
+ *
+ * @Since 0.0.2
+ */
+public final class BufferPool {
+
+    //调试模式：泄漏检测的系统属性
+    public static final String LEAK_DETECTION_PROPERTY = "chatroom.buffer.leakDetection";
+
+    //最小的规格
+    public static final int MIN_CLASS_SIZE = 256;
+
+    //最大的规格
+    public static final int MAX_CLASS_SIZE = 1024 * 1024;
+
+    //每个规格默认最多保留的字节数
+    public static final int DEFAULT_MAX_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+
+    private static final Logger logger = Logger.getLogger(BufferPool.class.getName());
+
+    private static final BufferPool INSTANCE = new BufferPool(DEFAULT_MAX_BYTES_PER_CLASS,
+            Boolean.getBoolean(LEAK_DETECTION_PROPERTY) || Boolean.getBoolean(EventLog.DEBUG_PROPERTY));
+
+    private final SizeClass[] classes;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder leaks = new LongAdder();
+
+    private volatile boolean leakDetection;
+
+    //调试模式下借出还没有释放的缓冲
+    private final Set<Leak> tracked = ConcurrentHashMap.newKeySet();
+
+    //没有释放就被 GC 的缓冲
+    private final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<>();
+
+    /**
+     * @param maxBytesPerClass 每个规格最多保留的字节数，至少保留一个
+     * @param leakDetection    是否开启泄漏检测
+     */
+    public BufferPool(int maxBytesPerClass, boolean leakDetection) {
+        if (maxBytesPerClass < 0) {
+            throw new IllegalArgumentException("maxBytesPerClass must not be negative");
+        }
+        int count = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - MIN_SHIFT + 1;
+        classes = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            int size = MIN_CLASS_SIZE << i;
+            classes[i] = new SizeClass(size, Math.max(1, maxBytesPerClass / size));
+        }
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * 进程内共享的缓冲池
+     *
+     * @return
+     */
+    public static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 借一块至少 capacity 字节的缓冲，处于写模式
+     *
+     * @param capacity
+     * @return 用完需要 {@link PooledBuffer#release()}
+     */
+    public PooledBuffer acquire(int capacity) {
+        boolean track = leakDetection;
+        if (track) {
+            reportLeaks();
+        }
+        if (capacity > MAX_CLASS_SIZE) {
+            misses.increment();
+            return new PooledBuffer(this, ByteBuffer.allocate(capacity), track);
+        }
+        SizeClass sizeClass = classes[indexOf(capacity)];
+        ByteBuffer buffer = sizeClass.poll();
+        if (buffer != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(sizeClass.size);
+        }
+        return new PooledBuffer(this, buffer, track);
+    }
+
+    /**
+     * 借一块缓冲并复制进去，处于读模式
+     *
+     * @param bytes
+     * @return
+     */
+    public PooledBuffer copyOf(byte[] bytes) {
+        PooledBuffer pooled = acquire(bytes.length);
+        ByteBuffer buffer = pooled.buffer();
+        buffer.put(bytes).flip();
+        return pooled;
+    }
+
+    /**
+     * 引用计数减到 0 时归还
+     *
+     * @param buffer
+     * @param leak
+     */
+    void recycle(ByteBuffer buffer, Leak leak) {
+        if (leak != null) {
+            tracked.remove(leak);
+            leak.clear();
+        }
+        if (!buffer.isDirect() || buffer.capacity() > MAX_CLASS_SIZE) {
+            return;
+        }
+        buffer.clear();
+        classes[indexOf(buffer.capacity())].offer(buffer);
+    }
+
+    /**
+     * 调试模式下跟踪一次借出
+     *
+     * @param pooled
+     * @return
+     */
+    Leak track(PooledBuffer pooled) {
+        Leak leak = new Leak(pooled, collected);
+        tracked.add(leak);
+        return leak;
+    }
+
+    /**
+     * 输出已经被 GC 但没有释放的缓冲
+     */
+    private void reportLeaks() {
+        Leak leak;
+        while ((leak = (Leak) collected.poll()) != null) {
+            if (tracked.remove(leak)) {
+                leaks.increment();
+                logger.log(Level.WARNING, "pooled buffer was garbage collected without release, capacity " + leak.capacity, leak.acquired);
+            }
+        }
+    }
+
+    private static int indexOf(int capacity) {
+        if (capacity <= MIN_CLASS_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * 从池中借到的次数
+     *
+     * @return
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * 池中没有、新分配的次数，包括超过最大规格的申请
+     *
+     * @return
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * 调试模式下发现的泄漏次数
+     *
+     * @return
+     */
+    public long leaks() {
+        if (leakDetection) {
+            reportLeaks();
+        }
+        return leaks.sum();
+    }
+
+    /**
+     * 池中空闲的字节数
+     *
+     * @return
+     */
+    public long pooledBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes) {
+            bytes += (long) sizeClass.size * sizeClass.count.get();
+        }
+        return bytes;
+    }
+
+    /**
+     * 一个规格的空闲缓冲
+     */
+    private static final class SizeClass {
+
+        private final int size;
+
+        private final int max;
+
+        private final ConcurrentLinkedDeque<ByteBuffer> free = new ConcurrentLinkedDeque<>();
+
+        //空闲的个数，deque 的 size() 需要遍历
+        private final AtomicInteger count = new AtomicInteger();
+
+        SizeClass(int size, int max) {
+            this.size = size;
+            this.max = max;
+        }
+
+        ByteBuffer poll() {
+            ByteBuffer buffer = free.pollFirst();
+            if (buffer != null) {
+                count.decrementAndGet();
+            }
+            return buffer;
+        }
+
+        void offer(ByteBuffer buffer) {
+            if (count.incrementAndGet() > max) {
+                //已经保留了足够多，丢弃，由 GC 回收
+                count.decrementAndGet();
+                return;
+            }
+            free.offerFirst(buffer);
+        }
+    }
+
+    /**
+     * 调试模式下跟踪一块借出的缓冲，持有者不可达之后进入 {@link #collected}
+     */
+    static final class Leak extends PhantomReference<PooledBuffer> {
+
+        //借出时的调用栈
+        private final Throwable acquired;
+
+        private final int capacity;
+
+        Leak(PooledBuffer pooled, ReferenceQueue<PooledBuffer> queue) {
+            super(pooled, queue);
+            this.acquired = new Throwable("acquired here");
+            this.capacity = pooled.buffer().capacity();
+        }
+    }
+}
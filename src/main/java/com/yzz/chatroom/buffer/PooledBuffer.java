@@ -0,0 +1,54 @@
+package com.yzz.chatroom.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * describe: 从 {@link BufferPool} 借出的一块直接内存
+ * date:2019/1/31
+ * 1. 同一时刻只有一个持有者，用完 {@link #release()} 一次，归还缓冲池
+ * 2. 归还之后不能再访问 {@link #buffer()}，缓冲可能已经借给了别人；多释放一次会抛出 IllegalStateException
+ * 3. 忘记释放的缓冲不会回到池中，由 GC 回收；调试模式下会记录借出时的调用栈，见 {@link BufferPool#LEAK_DETECTION_PROPERTY}
+ *
+ * @Since 0.0.2
+ */
+public final class PooledBuffer {
+
+    private final BufferPool pool;
+
+    private final ByteBuffer buffer;
+
+    //调试模式下跟踪是否泄漏，否则为 null
+    private final BufferPool.Leak leak;
+
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, boolean track) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.leak = track ? pool.track(this) : null;
+    }
+
+    /**
+     * 借到的缓冲，capacity 是所在规格的大小，不小于申请的大小
+     *
+     * @return
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public boolean isReleased() {
+        return released.get();
+    }
+
+    /**
+     * 用完归还缓冲池
+     */
+    public void release() {
+        if (!released.compareAndSet(false, true)) {
+            throw new IllegalStateException("buffer released twice");
+        }
+        pool.recycle(buffer, leak);
+    }
+}
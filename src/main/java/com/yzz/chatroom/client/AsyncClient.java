@@ -0,0 +1,535 @@
+package com.yzz.chatroom.client;
+
+import com.yzz.chatroom.buffer.BufferPool;
+import com.yzz.chatroom.buffer.PooledBuffer;
+import com.yzz.chatroom.protocol.BinaryChartRoomProtocol;
+import com.yzz.chatroom.protocol.Header;
+import com.yzz.chatroom.protocol.Message;
+import com.yzz.chatroom.protocol.MessageType;
+import com.yzz.chatroom.protocol.Protocol;
+import com.yzz.chatroom.protocol.ProtocolNegotiator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * describe: 非阻塞的聊天室客户端，由 {@link ClientEventLoop} 驱动，不占用自己的线程
+ * date:2019/1/30
+ * 1. 发送不阻塞：调用线程只负责编码并入队，返回的 CompletableFuture 在整帧写入 socket 后完成，
+ * 可以同时有任意多条发送在途（流水线），按调用的顺序写出；服务端不对聊天消息确认，所以“完成”表示已经交给了 TCP
+ * 2. 连接、握手、登记昵称都是异步的，{@link #connect} 返回的 CompletableFuture 在服务端回复 WELCOME 后完成
+ * 3. 服务端转发的消息在事件循环的线程中回调，服务端的 PING 自动回复
+ * 4. 读缓冲和编码好的帧都是从 {@link BufferPool} 借来的直接内存，读空、写完即归还，稳定之后不再分配
+ * 只支持二进制协议，连接老版本的服务端请使用 {@link BioClient}
+ * <p>
+ * ClientEventLoop loop = ClientEventLoop.open();
+ * for (int i = 0; i < 1000; i++) {
+ * AsyncClient.connect(loop, 9090, "127.0.0.1", "bot-" + i, message -> {})
+ * .thenCompose(client -> client.sendAsync("hello"));
+ * }
+ *
+ * @Since 0.0.2
+ */
+public class AsyncClient {
+
+    //读缓冲的初始大小，一帧放不下时翻倍
+    private static final int INITIAL_READ_BUFFER = 16 * 1024;
+
+    //读缓冲的上限，一帧的最大长度
+    private static final int MAX_READ_BUFFER = BinaryChartRoomProtocol.LENGTH_FIELD + BinaryChartRoomProtocol.MAX_FRAME_LENGTH;
+
+    //一次 gathering write 最多的帧数
+    private static final int MAX_GATHER = 64;
+
+    private static final Logger logger = Logger.getLogger(AsyncClient.class.getName());
+
+    private final ClientEventLoop loop;
+
+    private final SocketChannel channel;
+
+    private final String nickName;
+
+    private final BioClient.MSGCallback callback;
+
+    //握手的截止时间
+    private final long handshakeDeadline;
+
+    //服务端回复 WELCOME 后完成
+    private final CompletableFuture<AsyncClient> connected = new CompletableFuture<>();
+
+    //连接关闭后完成
+    private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
+
+    //调用线程入队的帧
+    private final Queue<Write> pending = new ConcurrentLinkedQueue<>();
+
+    //已经从 pending 取出、正在写的帧，只在事件循环的线程中访问
+    private final ArrayDeque<Write> writing = new ArrayDeque<>();
+
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    //是否已经向事件循环提交了写任务，合并多次发送的唤醒
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    //只在事件循环的线程中访问
+    private SelectionKey key;
+
+    //读缓冲，读空之后归还，空闲的客户端不占用缓冲
+    private PooledBuffer readBuffer;
+
+    private Header header;
+
+    //协商之前为 null
+    private volatile Protocol protocol;
+
+    //服务端在 WELCOME 中分配的会话 id
+    private volatile int sessionId;
+
+    private volatile boolean closed;
+
+    private AsyncClient(ClientEventLoop loop, SocketChannel channel, String nickName, BioClient.MSGCallback callback) {
+        this.loop = loop;
+        this.channel = channel;
+        this.nickName = nickName;
+        this.callback = callback;
+        this.handshakeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BioClient.HANDSHAKE_TIMEOUT);
+    }
+
+    /**
+     * 异步连接并登记昵称
+     *
+     * @param loop     驱动该客户端的事件循环
+     * @param port
+     * @param location
+     * @param nickName
+     * @param callback 服务端转发的消息，在事件循环的线程中回调
+     * @return 服务端接受登记后完成，被拒绝、超时或连接失败时异常完成
+     */
+    public static CompletableFuture<AsyncClient> connect(ClientEventLoop loop, int port, String location, String nickName, BioClient.MSGCallback callback) {
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            AsyncClient client = new AsyncClient(loop, channel, nickName, callback);
+            InetSocketAddress address = new InetSocketAddress(location, port);
+            loop.execute(() -> client.start(address));
+            return client.connected;
+        } catch (IOException | RejectedExecutionException e) {
+            CompletableFuture<AsyncClient> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * 向默认房间发送消息
+     *
+     * @param msg
+     * @return 整帧写入 socket 后完成
+     */
+    public CompletableFuture<Void> sendAsync(String msg) {
+        return send(message(msg, MessageType.CHAT, null));
+    }
+
+    /**
+     * 向某个房间发送消息，需要先加入该房间
+     *
+     * @param room
+     * @param msg
+     * @return 整帧写入 socket 后完成
+     */
+    public CompletableFuture<Void> sendAsync(String room, String msg) {
+        return send(message(msg, MessageType.CHAT, room));
+    }
+
+    /**
+     * 私聊，只有接收者和自己会收到
+     *
+     * @param nickName 接收者的昵称
+     * @param msg
+     * @return 整帧写入 socket 后完成
+     */
+    public CompletableFuture<Void> sendToAsync(String nickName, String msg) {
+        Message message = message(msg, MessageType.CHAT, null);
+        message.setRecipient(nickName);
+        return send(message);
+    }
+
+    /**
+     * 加入房间
+     *
+     * @param room
+     * @return 整帧写入 socket 后完成
+     */
+    public CompletableFuture<Void> joinAsync(String room) {
+        return send(message(null, MessageType.JOIN, room));
+    }
+
+    /**
+     * 离开房间
+     *
+     * @param room
+     * @return 整帧写入 socket 后完成
+     */
+    public CompletableFuture<Void> leaveAsync(String room) {
+        return send(message(null, MessageType.LEAVE, room));
+    }
+
+    public String nickName() {
+        return nickName;
+    }
+
+    public int sessionId() {
+        return sessionId;
+    }
+
+    public boolean isConnected() {
+        return connected.isDone() && !connected.isCompletedExceptionally();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 连接关闭后完成，无论是主动关闭还是服务端断开
+     *
+     * @return
+     */
+    public CompletableFuture<Void> closeFuture() {
+        return closeFuture;
+    }
+
+    /**
+     * 关闭连接，还没有写出的发送异常完成
+     */
+    public void close() {
+        try {
+            loop.execute(() -> close(new ClosedChannelException()));
+        } catch (RejectedExecutionException e) {
+            //事件循环已经关闭，会关闭所有连接
+        }
+    }
+
+    long handshakeDeadline() {
+        return handshakeDeadline;
+    }
+
+    /**
+     * 分配了会话 id 之后只带会话 id，由服务端补全消息头
+     *
+     * @param body
+     * @param type
+     * @param room
+     * @return
+     */
+    private Message message(String body, byte type, String room) {
+        if (sessionId == 0) {
+            return new Message(header, body, type, room);
+        }
+        Message message = new Message(null, body, type, room);
+        message.setSessionId(sessionId);
+        return message;
+    }
+
+    /**
+     * 在调用线程中编码并入队，可以在任意线程中调用
+     *
+     * @param message
+     * @return
+     */
+    private CompletableFuture<Void> send(Message message) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new ClosedChannelException());
+            return future;
+        }
+        if (!isConnected() && !loop.inEventLoop()) {
+            future.completeExceptionally(new IllegalStateException("not connected yet"));
+            return future;
+        }
+        try {
+            PooledBuffer frame = protocol.encode(message, BufferPool.getInstance());
+            enqueue(new Write(frame.buffer(), frame, future));
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void enqueue(Write write) {
+        pending.add(write);
+        if (closed) {
+            //与关闭并发，关闭时可能没有看到这一帧
+            failPending(new ClosedChannelException());
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (loop.inEventLoop()) {
+                flush();
+            } else {
+                try {
+                    loop.execute(this::flush);
+                } catch (RejectedExecutionException e) {
+                    failPending(new ClosedChannelException());
+                }
+            }
+        }
+    }
+
+    /**
+     * 在事件循环的线程中注册并发起连接
+     *
+     * @param address
+     */
+    private void start(InetSocketAddress address) {
+        try {
+            key = loop.register(channel, this);
+            if (channel.connect(address)) {
+                onConnected();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * 事件循环通知连接就绪
+     *
+     * @param readyOps
+     */
+    void ready(int readyOps) {
+        try {
+            if ((readyOps & SelectionKey.OP_CONNECT) != 0) {
+                channel.finishConnect();
+                onConnected();
+            }
+            if ((readyOps & SelectionKey.OP_READ) != 0) {
+                read();
+            }
+            if (!closed && (readyOps & SelectionKey.OP_WRITE) != 0) {
+                flush();
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * TCP 连接建立，发送协议握手
+     */
+    private void onConnected() {
+        InetSocketAddress remote = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+        header = new Header(remote.getAddress().getHostAddress(), channel.socket().getLocalPort(), nickName);
+        key.interestOps(SelectionKey.OP_READ);
+        enqueue(new Write(ByteBuffer.wrap(ProtocolNegotiator.request(ProtocolNegotiator.CAPABILITY_DEFLATE)), null, null));
+    }
+
+    private void read() throws IOException {
+        if (readBuffer == null) {
+            readBuffer = BufferPool.getInstance().acquire(INITIAL_READ_BUFFER);
+        }
+        ByteBuffer buffer = readBuffer.buffer();
+        if (!buffer.hasRemaining()) {
+            if (buffer.capacity() >= MAX_READ_BUFFER) {
+                throw new IOException("frame too large");
+            }
+            PooledBuffer bigger = BufferPool.getInstance().acquire(Math.min(buffer.capacity() << 1, MAX_READ_BUFFER));
+            buffer.flip();
+            bigger.buffer().put(buffer);
+            readBuffer.release();
+            readBuffer = bigger;
+            buffer = bigger.buffer();
+        }
+        if (channel.read(buffer) < 0) {
+            throw new EOFException("connection closed by server");
+        }
+        buffer.flip();
+        try {
+            if (protocol == null) {
+                Protocol negotiated = ProtocolNegotiator.connected(buffer, ProtocolNegotiator.CAPABILITY_DEFLATE);
+                if (negotiated == null) {
+                    return;
+                }
+                protocol = negotiated;
+                send(message(null, MessageType.HELLO, null));
+            }
+            Message message;
+            while (!closed && (message = protocol.decode(buffer)) != null) {
+                onMessage(message);
+            }
+        } finally {
+            //回调中关闭时缓冲已经归还
+            if (!closed) {
+                buffer.compact();
+                recycle();
+            }
+        }
+    }
+
+    /**
+     * 读缓冲中没有半包时归还缓冲池
+     */
+    private void recycle() {
+        if (readBuffer.buffer().position() == 0) {
+            readBuffer.release();
+            readBuffer = null;
+        }
+    }
+
+    private void onMessage(Message message) {
+        if (!connected.isDone()) {
+            if (message.getType() != MessageType.WELCOME) {
+                close(new IOException("server rejected: " + message.getMessage()));
+                return;
+            }
+            sessionId = message.getSessionId();
+            connected.complete(this);
+            return;
+        }
+        if (message.getType() == MessageType.PING) {
+            send(message(null, MessageType.PONG, null));
+            return;
+        }
+        try {
+            callback.message(message);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "callback failed: " + e);
+        }
+    }
+
+    /**
+     * 尽可能多的写出，写不完的部分等待 OP_WRITE，只在事件循环的线程中调用
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        if (closed || key == null) {
+            return;
+        }
+        Write write;
+        while ((write = pending.poll()) != null) {
+            writing.add(write);
+        }
+        try {
+            while (!writing.isEmpty()) {
+                int count = 0;
+                for (Write w : writing) {
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                    gather[count++] = w.frame;
+                }
+                channel.write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);
+                int done = 0;
+                while (!writing.isEmpty() && !writing.peek().frame.hasRemaining()) {
+                    writing.poll().complete(null);
+                    done++;
+                }
+                if (done < count) {
+                    //socket 的发送缓冲已满
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            close(e);
+            return;
+        }
+        key.interestOps(writing.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * 关闭连接，只在事件循环的线程中调用
+     *
+     * @param cause
+     */
+    void close(IOException cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+            loop.deregister();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, e.getMessage());
+        }
+        connected.completeExceptionally(cause);
+        for (Write write : writing) {
+            write.complete(cause);
+        }
+        writing.clear();
+        if (readBuffer != null) {
+            readBuffer.release();
+            readBuffer = null;
+        }
+        failPending(cause);
+        closeFuture.complete(null);
+    }
+
+    private void failPending(IOException cause) {
+        Write write;
+        while ((write = pending.poll()) != null) {
+            write.complete(cause);
+        }
+    }
+
+    /**
+     * 一帧和它的发送结果
+     */
+    private static final class Write {
+
+        private final ByteBuffer frame;
+
+        //帧所在的借来的缓冲，握手不是借来的，为 null
+        private final PooledBuffer pooled;
+
+        private final CompletableFuture<Void> future;
+
+        Write(ByteBuffer frame, PooledBuffer pooled, CompletableFuture<Void> future) {
+            this.frame = frame;
+            this.pooled = pooled;
+            this.future = future;
+        }
+
+        /**
+         * 写完或者失败，归还缓冲并通知发送方
+         *
+         * @param cause 写完时为 null
+         */
+        void complete(IOException cause) {
+            if (pooled != null) {
+                pooled.release();
+            }
+            if (future == null) {
+                return;
+            }
+            if (cause == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+}
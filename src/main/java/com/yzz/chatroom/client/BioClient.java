@@ -4,14 +4,21 @@ package com.yzz.chatroom.client;
 import com.yzz.chatroom.protocol.BioChartRoomProtocol;
 import com.yzz.chatroom.protocol.Header;
 import com.yzz.chatroom.protocol.Message;
+import com.yzz.chatroom.protocol.MessageType;
+import com.yzz.chatroom.protocol.Protocol;
+import com.yzz.chatroom.protocol.ProtocolNegotiator;
+import com.yzz.chatroom.server.RoomRegistry;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,14 +49,23 @@ import java.util.logging.Logger;
  */
 public class BioClient {
 
+    //等待服务端握手回复的超时时间，毫秒
+    public static final int HANDSHAKE_TIMEOUT = 5000;
+
+    //断线重连的初始间隔，毫秒，每次失败翻倍
+    public static final long INITIAL_RECONNECT_DELAY = 100;
+
+    //断线重连的最大间隔，毫秒
+    public static final long MAX_RECONNECT_DELAY = 30 * 1000;
+
     //服务端端口
     private final int port;
 
     //服务端地址
     private final String location;
 
-    //连接服务端的Socket对象
-    private Socket socket;
+    //连接服务端的Socket对象，重连时更换
+    private volatile Socket socket;
 
     //创建的一个单线程
     private Executor pool = Executors.newSingleThreadExecutor();
@@ -58,13 +74,48 @@ public class BioClient {
     private final String nickName;
 
     //消息头
-    private final Header header;
+    private volatile Header header;
+
+    //和服务端协商好的协议
+    private volatile Protocol protocol;
+
+    //服务端在 WELCOME 中分配的会话 id，之后的消息只带会话 id，不再带消息头；0 表示没有（老协议）
+    private volatile int sessionId;
+
+    //是否直接使用jdk序列化
+    private final boolean legacy;
+
+    //收到的最大序号
+    private volatile long lastSequence;
+
+    //服务端在 WELCOME 中分配的令牌，重连时带上，服务端据此顶替还没有发现断开的旧连接
+    private volatile long resumeToken;
+
+    //服务端是否开启了消息日志，没有时 WELCOME 不带序号，断线期间的消息不会补发
+    private volatile boolean resumable;
+
+    //加入的房间 -> 该房间收到的最大序号，重连后每个房间从自己的序号继续；默认房间由服务端在 HELLO 时自动加入
+    //服务端只保证同一房间内的序号递增，不同房间的消息可能交错到达，所以不能用一个全局的序号
+    private final Map<String, Long> rooms = new ConcurrentHashMap<>();
+
+    //接收线程断线后是否自动重连
+    private volatile boolean autoReconnect = true;
+
+    //接收线程是否在运行，只有它负责重连
+    private volatile boolean listening;
+
+    //接收线程正在持有锁重连
+    private boolean reconnecting;
+
+    //是否已经被调用方关闭
+    private volatile boolean closed;
 
     //日志
     private Logger logger = Logger.getLogger(BioClient.class.getName());
 
     /**
      * 该构造初始化了 port、location、nicName 并创建了与服务端通信的Socket连接
+     * 优先协商二进制协议，服务端不支持时重新连接并使用jdk序列化
      *
      * @param port
      * @param location
@@ -72,15 +123,133 @@ public class BioClient {
      * @throws IOException
      */
     public BioClient(int port, String location, String nicName) throws IOException {
+        this(port, location, nicName, false);
+    }
+
+    /**
+     * @param port
+     * @param location
+     * @param nicName
+     * @param legacy   true 则不协商，直接使用jdk序列化，用于连接老版本的服务端
+     * @throws IOException
+     */
+    public BioClient(int port, String location, String nicName, boolean legacy) throws IOException {
+        this(port, location, nicName, legacy, 0, 0);
+    }
+
+    /**
+     * 连接并回放默认房间最近的 count 条消息，服务端需要开启消息日志
+     *
+     * @param port
+     * @param location
+     * @param nicName
+     * @param count
+     * @return
+     * @throws IOException
+     */
+    public static BioClient replayLast(int port, String location, String nicName, int count) throws IOException {
+        return new BioClient(port, location, nicName, false, 0, count);
+    }
+
+    /**
+     * 连接并回放默认房间序号大于 sequence 的消息，用于断开之后接着上次收到的消息继续
+     *
+     * @param port
+     * @param location
+     * @param nicName
+     * @param sequence 上次收到的最后一条消息的序号
+     * @return
+     * @throws IOException
+     */
+    public static BioClient replaySince(int port, String location, String nicName, long sequence) throws IOException {
+        return new BioClient(port, location, nicName, false, sequence, 0);
+    }
+
+    private BioClient(int port, String location, String nicName, boolean legacy, long replaySince, int replayCount) throws IOException {
         this.port = port;
         this.location = location;
         this.nickName = nicName;
-        InetAddress inetAddress = InetAddress.getByName(location);
-        socket = new Socket(inetAddress, port);
-        header = new Header(inetAddress.getHostAddress(), socket.getLocalPort(), nicName);
+        this.legacy = legacy;
+        open(replaySince, replayCount);
         logger.log(Level.INFO, "连接成功: " + location + ":" + port);
     }
 
+    /**
+     * 建立连接：优先协商二进制协议，服务端不支持时重新连接并使用jdk序列化；新协议登记昵称
+     *
+     * @param replaySince 大于 0 时回放该序号之后的消息
+     * @param replayCount 大于 0 时回放最近的条数
+     * @throws IOException
+     */
+    private void open(long replaySince, int replayCount) throws IOException {
+        InetAddress inetAddress = InetAddress.getByName(location);
+        socket = connect(inetAddress);
+        Protocol negotiated = null;
+        if (!legacy) {
+            try {
+                negotiated = ProtocolNegotiator.connect(socket, HANDSHAKE_TIMEOUT);
+            } catch (IOException e) {
+                //老版本的服务端无法识别握手，会断开连接
+                logger.log(Level.WARNING, "协商失败，使用jdk序列化重新连接: " + e.getMessage());
+                closeSocket();
+                socket = connect(inetAddress);
+            }
+        }
+        protocol = negotiated == null ? BioChartRoomProtocol.getInstance() : negotiated;
+        header = new Header(inetAddress.getHostAddress(), socket.getLocalPort(), nickName);
+        sessionId = 0;
+        if (negotiated != null) {
+            hello(replaySince, replayCount);
+        }
+    }
+
+    private Socket connect(InetAddress inetAddress) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(inetAddress, port), HANDSHAKE_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * 登记昵称，服务端回复 WELCOME 之后才能发言，昵称已被使用时回复 REJECT 并断开
+     *
+     * @param replaySince 大于 0 时回放该序号之后的消息
+     * @param replayCount 大于 0 时回放最近的条数
+     * @throws IOException 被拒绝或等待超时
+     */
+    private void hello(long replaySince, int replayCount) throws IOException {
+        Message hello = replayRequest(MessageType.HELLO, null, replaySince, replayCount);
+        hello.setResumeToken(resumeToken);
+        send(hello);
+        int old = socket.getSoTimeout();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        try {
+            Message reply = getResponse();
+            if (reply.getType() != MessageType.WELCOME) {
+                throw new IOException("server rejected: " + reply.getMessage());
+            }
+            sessionId = reply.getSessionId();
+            resumeToken = reply.getResumeToken();
+            resumable = reply.getSequence() != 0;
+            if (lastSequence == 0) {
+                //第一次连接：WELCOME 带有服务端当前的序号，之后的消息都在它之后；回放的消息会继续推进
+                lastSequence = replaySince > 0 ? replaySince : reply.getSequence();
+                rooms.putIfAbsent(RoomRegistry.DEFAULT_ROOM, lastSequence);
+            }
+        } catch (IOException e) {
+            closeSocket();
+            throw e;
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(old);
+            }
+        }
+    }
+
     /**
      * 向服务端发送消息
      *
@@ -88,54 +257,337 @@ public class BioClient {
      * @throws IOException
      */
     public void sendMsg(String msg) throws IOException {
-        OutputStream outputStream = socket.getOutputStream();
-        //自定义协议去发送消息
-        BioChartRoomProtocol.getInstance().write(outputStream, header, msg);
+        send(message(msg, MessageType.CHAT, null));
+    }
+
+    /**
+     * 向某个房间发送消息，需要先加入该房间
+     *
+     * @param room
+     * @param msg
+     * @throws IOException
+     */
+    public void sendMsg(String room, String msg) throws IOException {
+        send(message(msg, MessageType.CHAT, room));
+    }
+
+    /**
+     * 私聊，只有接收者和自己会收到
+     *
+     * @param nickName 接收者的昵称
+     * @param msg
+     * @throws IOException
+     */
+    public void sendTo(String nickName, String msg) throws IOException {
+        Message message = message(msg, MessageType.CHAT, null);
+        message.setRecipient(nickName);
+        send(message);
+    }
+
+    /**
+     * 加入房间
+     *
+     * @param room
+     * @throws IOException
+     */
+    public void join(String room) throws IOException {
+        send(message(null, MessageType.JOIN, room));
+        rooms.putIfAbsent(room, lastSequence);
+    }
+
+    /**
+     * 加入房间并回放最近的 count 条消息，已经在房间中时只回放
+     *
+     * @param room
+     * @param count
+     * @throws IOException
+     */
+    public void join(String room, int count) throws IOException {
+        send(replayRequest(MessageType.JOIN, room, 0, count));
+        rooms.putIfAbsent(room, lastSequence);
+    }
+
+    /**
+     * 加入房间并回放序号大于 sequence 的消息，已经在房间中时只回放
+     *
+     * @param room
+     * @param sequence
+     * @throws IOException
+     */
+    public void joinSince(String room, long sequence) throws IOException {
+        send(replayRequest(MessageType.JOIN, room, sequence, 0));
+        rooms.putIfAbsent(room, sequence);
+    }
+
+    private Message replayRequest(byte type, String room, long sequence, int count) {
+        Message message = message(count > 0 ? String.valueOf(count) : null, type, room);
+        message.setSequence(sequence);
+        return message;
     }
 
     /**
-     * 从服务端接收消息
+     * 离开房间
+     *
+     * @param room
+     * @throws IOException
+     */
+    public void leave(String room) throws IOException {
+        rooms.remove(room);
+        send(message(null, MessageType.LEAVE, room));
+    }
+
+    /**
+     * 列出所有房间，结果以系统消息的形式返回
+     *
+     * @throws IOException
+     */
+    public void listRooms() throws IOException {
+        send(message(null, MessageType.LIST, null));
+    }
+
+    /**
+     * 创建要发送的消息，分配了会话 id 之后只带会话 id，由服务端补全消息头
+     *
+     * @param body
+     * @param type
+     * @param room
+     * @return
+     */
+    private Message message(String body, byte type, String room) {
+        if (sessionId == 0) {
+            return new Message(header, body, type, room);
+        }
+        Message message = new Message(null, body, type, room);
+        message.setSessionId(sessionId);
+        return message;
+    }
+
+    /**
+     * 接收线程会自动回复心跳，与用户线程的发送互斥，帧不会交错
+     * 连接断开并且接收线程会自动重连时，等待重连成功后用新的会话 id 重发，断线期间的发送不会丢失
+     *
+     * @param message
+     * @throws IOException
+     */
+    private synchronized void send(Message message) throws IOException {
+        while (true) {
+            Socket current = socket;
+            try {
+                if (message.getHeader() == null) {
+                    message.setSessionId(sessionId);
+                }
+                protocol.write(current.getOutputStream(), message);
+                return;
+            } catch (IOException e) {
+                if (!awaitReconnect(current)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 写失败后等待接收线程重连，持有锁调用
+     *
+     * @param broken 写失败的连接
+     * @return 是否已经重连成功
+     */
+    private boolean awaitReconnect(Socket broken) {
+        if (!autoReconnect || closed || !listening || reconnecting) {
+            return false;
+        }
+        try {
+            //让接收线程尽快发现断线
+            broken.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, e.getMessage());
+        }
+        try {
+            while (socket == broken && !closed && listening) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return socket != broken && !closed;
+    }
+
+    /**
+     * 断线重连：指数退避并加入随机抖动，服务端重启时大量客户端不会同时涌入；
+     * 成功后带上默认房间收到的最大序号登记，服务端补发断线期间默认房间的消息，其他房间按各自的序号重新加入
+     *
+     * @return 是否重连成功，被关闭或关闭了自动重连时返回 false
+     */
+    private boolean reconnect() {
+        long delay = INITIAL_RECONNECT_DELAY;
+        for (int attempt = 1; !closed && autoReconnect; attempt++) {
+            closeSocket();
+            try {
+                //在 [delay/2, delay] 之间随机
+                Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                reconnecting = true;
+                try {
+                    long since = rooms.getOrDefault(RoomRegistry.DEFAULT_ROOM, lastSequence);
+                    open(since, 0);
+                    for (Map.Entry<String, Long> room : rooms.entrySet()) {
+                        if (!RoomRegistry.DEFAULT_ROOM.equals(room.getKey())) {
+                            send(replayRequest(MessageType.JOIN, room.getKey(), room.getValue(), 0));
+                        }
+                    }
+                    if (resumable && since != 0) {
+                        logger.log(Level.INFO, "重连成功: " + location + ":" + port + "，第 " + attempt + " 次，从序号 " + since + " 继续");
+                    } else {
+                        logger.log(Level.WARNING, "重连成功: " + location + ":" + port + "，第 " + attempt + " 次，服务端没有开启消息日志，断线期间的消息不会补发");
+                    }
+                    return true;
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "第 " + attempt + " 次重连失败: " + e.getMessage());
+                    delay = Math.min(delay << 1, MAX_RECONNECT_DELAY);
+                } finally {
+                    reconnecting = false;
+                    notifyAll();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 断线后是否自动重连，默认开启，只有 {@link #listen12n(MSGCallback)} 的接收线程负责重连
+     * 断线期间的消息只有服务端开启了消息日志（{@link com.yzz.chatroom.server.AbstractBioServer#setJournal}，默认不开启）时才会补发，
+     * 见 {@link #resumable()}；重连时带上 WELCOME 中的令牌，服务端还没有发现旧连接断开时直接顶替它
+     *
+     * @param autoReconnect
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    /**
+     * 服务端是否支持断线补发：最近一次登记时 WELCOME 带有序号，即服务端开启了消息日志
+     *
+     * @return
+     */
+    public boolean resumable() {
+        return resumable;
+    }
+
+    /**
+     * 收到的最大序号
+     *
+     * @return
+     */
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * 某个房间收到的最大序号，可以用于 {@link #replaySince(int, String, String, long)} 或 {@link #joinSince(String, long)}
+     *
+     * @param room
+     * @return 没有加入该房间时返回 0
+     */
+    public long lastSequence(String room) {
+        return rooms.getOrDefault(room, 0L);
+    }
+
+    /**
+     * 主动发送心跳，服务端回复 PONG，由 {@link #getResponse()} 返回
+     *
+     * @throws IOException
+     */
+    public void ping() throws IOException {
+        send(message(null, MessageType.PING, null));
+    }
+
+    /**
+     * 从服务端接收消息，服务端的 PING 在这里自动回复，不返回给调用方
      *
      * @return
      * @throws IOException
      */
     public Message getResponse() throws IOException {
         InputStream inputStream = socket.getInputStream();
-        //自定义协议去接收消息，返回消息对象
-        Message message = BioChartRoomProtocol.getInstance().parse(inputStream);
-        return message;
+        while (true) {
+            //自定义协议去接收消息，返回消息对象
+            Message message = protocol.parse(inputStream);
+            long sequence = message.getSequence();
+            if (message.getType() != MessageType.WELCOME && sequence > 0) {
+                if (sequence > lastSequence) {
+                    lastSequence = sequence;
+                }
+                String room = message.getRoom() == null ? RoomRegistry.DEFAULT_ROOM : message.getRoom();
+                //已经离开的房间不再记录
+                rooms.computeIfPresent(room, (r, last) -> Math.max(last, sequence));
+            }
+            if (message.getType() != MessageType.PING) {
+                return message;
+            }
+            send(message(null, MessageType.PONG, null));
+        }
     }
 
     /**
-     * 清除资源
+     * 清除资源，之后不再重连
      */
     public void clear() {
+        closed = true;
+        closeSocket();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void closeSocket() {
+        Socket socket = this.socket;
         if (socket != null && !socket.isClosed()) {
             try {
                 socket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                logger.log(Level.WARNING, "关闭连接失败: " + e.getMessage());
             }
         }
     }
 
     /**
      * 监听
-     * 开辟一个工作线程去接收服务端转发的消息
+     * 开辟一个工作线程去接收服务端转发的消息，断线时自动重连，重连失败或关闭了自动重连时结束
      *
      * @param callback
      */
     public void listen12n(MSGCallback callback) {
+        listening = true;
         pool.execute(() -> {
-            while (true) {
-                try {
-                    Message message = getResponse();
-                    //该回调面向用户，提供服务端发送的消息
-                    callback.message(message);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    clear();
-                    return;
+            try {
+                while (true) {
+                    try {
+                        Message message = getResponse();
+                        //该回调面向用户，提供服务端发送的消息
+                        callback.message(message);
+                    } catch (IOException e) {
+                        if (closed) {
+                            return;
+                        }
+                        logger.log(Level.WARNING, "连接断开: " + e.getMessage());
+                        if (!autoReconnect || !reconnect()) {
+                            clear();
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                listening = false;
+                synchronized (this) {
+                    notifyAll();
                 }
             }
         });
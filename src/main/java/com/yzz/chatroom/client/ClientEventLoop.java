@@ -0,0 +1,208 @@
+package com.yzz.chatroom.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * describe: 客户端的事件循环，多个 {@link AsyncClient} 共享一个 selector 线程
+ * date:2019/1/30
+ * 1. 所有连接的连接、握手、读、写都在这一个线程中完成，一个进程可以用一个线程驱动成千上万个客户端
+ * 2. 其他线程通过 {@link #execute(Runnable)} 提交任务，入队后唤醒 selector，在下一轮事件处理之前执行
+ * 3. 消息回调和发送结果的 CompletableFuture 都在该线程中完成，回调中不能阻塞
+ *
+ * @Since 0.0.2
+ */
+public class ClientEventLoop implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ClientEventLoop.class.getName());
+
+    private final Selector selector;
+
+    //其他线程提交的任务
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    //还没有完成握手的客户端，按连接的先后排列，只在本线程中访问
+    private final ArrayDeque<AsyncClient> connecting = new ArrayDeque<>();
+
+    //连接中和已连接的客户端数
+    private final AtomicInteger clients = new AtomicInteger();
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    private ClientEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * 创建并启动一个事件循环
+     *
+     * @return
+     * @throws IOException
+     */
+    public static ClientEventLoop open() throws IOException {
+        return open("client-event-loop");
+    }
+
+    /**
+     * 创建并启动一个事件循环
+     *
+     * @param name 线程名
+     * @return
+     * @throws IOException
+     */
+    public static ClientEventLoop open(String name) throws IOException {
+        ClientEventLoop loop = new ClientEventLoop(name);
+        loop.thread.start();
+        return loop;
+    }
+
+    /**
+     * 在事件循环的线程中执行，可以在任意线程中调用
+     *
+     * @param task
+     */
+    public void execute(Runnable task) {
+        if (closed) {
+            throw new RejectedExecutionException("client event loop closed");
+        }
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 当前线程是否是事件循环的线程
+     *
+     * @return
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 连接中和已连接的客户端数
+     *
+     * @return
+     */
+    public int clients() {
+        return clients.get();
+    }
+
+    /**
+     * 注册一个连接，只在本线程中调用
+     *
+     * @param channel
+     * @param client
+     * @return
+     * @throws ClosedChannelException
+     */
+    SelectionKey register(SocketChannel channel, AsyncClient client) throws ClosedChannelException {
+        SelectionKey key = channel.register(selector, 0, client);
+        clients.incrementAndGet();
+        connecting.add(client);
+        return key;
+    }
+
+    /**
+     * 客户端已经关闭
+     */
+    void deregister() {
+        clients.decrementAndGet();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                runTasks();
+                long timeout = expireHandshakes();
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        ((AsyncClient) key.attachment()).ready(key.readyOps());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "client event loop failed: " + e);
+            }
+        }
+        List<SelectionKey> keys = new ArrayList<>(selector.keys());
+        for (SelectionKey key : keys) {
+            ((AsyncClient) key.attachment()).close(new ClosedChannelException());
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, e.getMessage());
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "client task failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * 握手超时的客户端连接失败
+     *
+     * @return 距离最早的握手截止时间的毫秒数，0 表示没有等待握手的客户端
+     */
+    private long expireHandshakes() {
+        AsyncClient client;
+        while ((client = connecting.peek()) != null) {
+            if (client.isConnected() || client.isClosed()) {
+                connecting.poll();
+                continue;
+            }
+            long wait = client.handshakeDeadline() - System.nanoTime();
+            if (wait > 0) {
+                return TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+            }
+            connecting.poll();
+            client.close(new IOException("handshake timed out"));
+        }
+        return 0;
+    }
+
+    /**
+     * 关闭所有客户端并结束线程
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,395 @@
+package com.yzz.chatroom.cluster;
+
+import com.yzz.chatroom.log.EventLog;
+import com.yzz.chatroom.protocol.BinaryChartRoomProtocol;
+import com.yzz.chatroom.protocol.Frame;
+import com.yzz.chatroom.protocol.Header;
+import com.yzz.chatroom.protocol.Message;
+import com.yzz.chatroom.protocol.MessageType;
+import com.yzz.chatroom.protocol.Protocol;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * describe: 集群中的一个节点，与静态配置的对端节点两两之间通过 TCP 链路转发消息
+ * date:2019/1/28
+ * 1. 每个节点监听一个集群端口接收对端的链路，同时主动连接每一个对端，出方向只发送、入方向只接收，
+ * 每对节点之间两条单向链路，不需要协商由谁发起连接
+ * 2. 本节点客户端发出的消息（聊天、私聊、加入/离开房间的系统消息）按本节点的转发序号编号，编码一次后放入每条链路自己的队列，
+ * 对端只转发给自己的客户端，不再继续转发
+ * 3. 投递是“最多一次”：链路断开重连时会重发没有 flush 成功的那一批，接收方按 来源 + 序号 去重，同一条消息不会出现两次；
+ * 但已经写进内核、对端还没有读到的帧，以及对端长时间不可用时队列满了丢弃的帧都会丢失，没有确认和重传
+ * 4. 只接受配置中的对端地址发起的链路，链路上声明的节点端口和消息的来源都要与之相符
+ * 来源带有节点的启动时间，节点重启后序号重新开始。
+ * 链路上是 {@link BinaryChartRoomProtocol} 的帧，来源和序号在帧的可选字段中。
+ * 同一个客户端的消息在所有节点上顺序一致；不同客户端同时发出的消息在各节点上的先后可能不同
+ *
+ * @Since 0.0.2
+ */
+public class ClusterNode implements Closeable {
+
+    //链路第一帧的内容，用来识别对端是集群节点而不是客户端
+    private static final String LINK_HELLO = "chartroom-cluster-link";
+
+    private static final Logger logger = Logger.getLogger(ClusterNode.class.getName());
+
+    private final Protocol protocol = BinaryChartRoomProtocol.getInstance();
+
+    private final String nodeId;
+
+    //来源：节点 id + 启动时间
+    private final String origin;
+
+    private final InetSocketAddress bind;
+
+    private final List<PeerLink> links = new ArrayList<>();
+
+    //本节点的转发序号
+    private final AtomicLong sequence = new AtomicLong();
+
+    //来源 -> 去重窗口
+    private final Map<String, DedupWindow> received = new ConcurrentHashMap<>();
+
+    private final LongAdder relayed = new LongAdder();
+
+    private final LongAdder delivered = new LongAdder();
+
+    private final LongAdder duplicates = new LongAdder();
+
+    private final EventLog events = EventLog.getInstance();
+
+    private ServerSocket serverSocket;
+
+    private volatile Consumer<Message> sink;
+
+    private volatile boolean closed;
+
+    private ClusterNode(String nodeId, InetSocketAddress bind, List<InetSocketAddress> peers) {
+        this.nodeId = nodeId;
+        this.origin = nodeId + "@" + System.currentTimeMillis();
+        this.bind = bind;
+        Message hello = new Message(new Header(bind.getHostString(), bind.getPort(), nodeId), LINK_HELLO, MessageType.HELLO, null);
+        Frame helloFrame;
+        try {
+            helloFrame = new Frame(protocol.encode(hello));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        for (InetSocketAddress peer : peers) {
+            links.add(new PeerLink(peer, helloFrame));
+        }
+    }
+
+    /**
+     * 创建一个集群节点
+     *
+     * @param nodeId 节点 id，集群内唯一
+     * @param bind   本节点的集群端口
+     * @param peers  其他所有节点的集群端口
+     * @return
+     */
+    public static ClusterNode create(String nodeId, InetSocketAddress bind, List<InetSocketAddress> peers) {
+        if (nodeId == null || nodeId.isEmpty()) {
+            throw new IllegalArgumentException("nodeId must not be empty");
+        }
+        return new ClusterNode(nodeId, bind, peers);
+    }
+
+    /**
+     * 解析对端列表 host:port,host:port
+     *
+     * @param peers
+     * @return
+     */
+    public static List<InetSocketAddress> parsePeers(String peers) {
+        if (peers == null || peers.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            int split = peer.lastIndexOf(':');
+            if (split <= 0) {
+                throw new IllegalArgumentException("peer must be host:port, got " + peer);
+            }
+            addresses.add(new InetSocketAddress(peer.substring(0, split), Integer.parseInt(peer.substring(split + 1))));
+        }
+        return addresses;
+    }
+
+    /**
+     * 开始监听集群端口并连接所有对端
+     *
+     * @param sink 收到对端转发的消息，交给本节点的服务端转发给自己的客户端；在链路的接收线程中调用
+     * @throws IOException 集群端口绑定失败
+     */
+    public synchronized void start(Consumer<Message> sink) throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("cluster node already started");
+        }
+        this.sink = sink;
+        serverSocket = new ServerSocket(bind.getPort(), 50, bind.getAddress() == null ? InetAddress.getByName(bind.getHostString()) : bind.getAddress());
+        Thread acceptor = new Thread(this::accept, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links) {
+            link.start();
+        }
+        logger.log(Level.INFO, "cluster node " + nodeId + " listening " + bind + ", peers " + links.size());
+    }
+
+    /**
+     * 把本节点客户端发出的消息转发给所有对端，编码一次，只入队不阻塞，可以被多个线程同时调用
+     * 需要在本节点转发（写消息日志会修改序号）之前调用
+     * 并发调用时序号的先后与入队的先后可能不同，对端的去重窗口允许这样的乱序
+     *
+     * @param message
+     */
+    public void relay(Message message) {
+        if (links.isEmpty()) {
+            return;
+        }
+        Message copy = new Message(message.getHeader(), message.getMessage(), message.getType(), message.getRoom());
+        copy.setRecipient(message.getRecipient());
+        copy.setOrigin(origin);
+        copy.setSequence(sequence.incrementAndGet());
+        Frame frame;
+        try {
+            frame = new Frame(protocol.encode(copy));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "relay encode failed: " + e.getMessage());
+            return;
+        }
+        for (PeerLink link : links) {
+            link.send(frame);
+        }
+        relayed.increment();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (!isPeerHost(socket.getInetAddress())) {
+                    events.lifecycle(logger, Level.WARNING, "peer-rejected", "remote", socket.getRemoteSocketAddress(), "reason", "unknown host");
+                    socket.close();
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> read(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.log(Level.WARNING, "cluster accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 入方向链路的接收线程
+     *
+     * @param socket
+     */
+    private void read(Socket socket) {
+        String peer = null;
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            Message hello = protocol.parse(in);
+            if (hello.getType() != MessageType.HELLO || !LINK_HELLO.equals(hello.getMessage()) || hello.getHeader() == null
+                    || !isPeer(s.getInetAddress(), hello.getHeader().getPort())) {
+                events.lifecycle(logger, Level.WARNING, "peer-rejected", "remote", s.getRemoteSocketAddress(), "reason", "not a configured peer");
+                return;
+            }
+            peer = hello.getHeader().getNickName();
+            //对端只能转发自己的客户端发出的消息
+            String originPrefix = peer + "@";
+            events.lifecycle(logger, Level.INFO, "peer-accepted", "peer", peer, "remote", s.getRemoteSocketAddress());
+            while (!closed) {
+                Message message = protocol.parse(in);
+                if (message.getOrigin() == null || !message.getOrigin().startsWith(originPrefix)) {
+                    events.lifecycle(logger, Level.WARNING, "peer-rejected", "peer", peer, "reason", "origin " + message.getOrigin());
+                    return;
+                }
+                if (!firstTime(message.getOrigin(), message.getSequence())) {
+                    duplicates.increment();
+                    continue;
+                }
+                //在本节点上是一条新消息
+                message.setOrigin(null);
+                message.setSequence(0);
+                delivered.increment();
+                sink.accept(message);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                events.lifecycle(logger, Level.INFO, "peer-disconnected", "peer", peer, "error", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 去重：重发的帧和乱序到达的帧都落在该来源的去重窗口内
+     *
+     * @param origin
+     * @param sequence
+     * @return 是否是第一次收到
+     */
+    private boolean firstTime(String origin, long sequence) {
+        return received.computeIfAbsent(origin, o -> new DedupWindow()).firstTime(sequence);
+    }
+
+    /**
+     * 连接的来源是否是某个配置的对端的主机
+     *
+     * @param address
+     * @return
+     */
+    private boolean isPeerHost(InetAddress address) {
+        for (PeerLink link : links) {
+            if (address.equals(resolve(link.address()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 来源主机和链路上声明的集群端口是否是某个配置的对端
+     *
+     * @param address
+     * @param port
+     * @return
+     */
+    private boolean isPeer(InetAddress address, int port) {
+        for (PeerLink link : links) {
+            if (link.address().getPort() == port && address.equals(resolve(link.address()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static InetAddress resolve(InetSocketAddress address) {
+        if (address.getAddress() != null) {
+            return address.getAddress();
+        }
+        try {
+            return InetAddress.getByName(address.getHostString());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 转发给对端的消息数
+     *
+     * @return
+     */
+    public long relayed() {
+        return relayed.sum();
+    }
+
+    /**
+     * 收到并交给本节点转发的消息数
+     *
+     * @return
+     */
+    public long delivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * 重复而丢弃的消息数
+     *
+     * @return
+     */
+    public long duplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * 一个来源的去重窗口：已经收到的最大序号，以及它之前 {@link #SIZE} 个序号是否收到过
+     * 同一条链路上的帧只在并发入队和重连重发时乱序，距离远小于窗口；比窗口还早的序号视为重复
+     */
+    static final class DedupWindow {
+
+        //窗口大小，序号，64 的倍数
+        static final int SIZE = 64 * 1024;
+
+        private final long[] bits = new long[SIZE / 64];
+
+        private long highest;
+
+        synchronized boolean firstTime(long sequence) {
+            if (sequence <= 0 || sequence <= highest - SIZE) {
+                return false;
+            }
+            if (sequence > highest) {
+                //窗口前移，移出去的位置清零
+                if (sequence - highest >= SIZE) {
+                    Arrays.fill(bits, 0L);
+                } else {
+                    for (long s = highest + 1; s < sequence; s++) {
+                        clear(s);
+                    }
+                }
+                highest = sequence;
+                set(sequence);
+                return true;
+            }
+            int index = (int) ((sequence >>> 6) % bits.length);
+            if ((bits[index] & (1L << sequence)) != 0) {
+                return false;
+            }
+            set(sequence);
+            return true;
+        }
+
+        private void set(long sequence) {
+            bits[(int) ((sequence >>> 6) % bits.length)] |= 1L << sequence;
+        }
+
+        private void clear(long sequence) {
+            bits[(int) ((sequence >>> 6) % bits.length)] &= ~(1L << sequence);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (PeerLink link : links) {
+            link.close();
+        }
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, e.getMessage());
+            }
+        }
+    }
+}
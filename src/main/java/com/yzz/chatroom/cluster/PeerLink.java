@@ -0,0 +1,148 @@
+package com.yzz.chatroom.cluster;
+
+import com.yzz.chatroom.log.EventLog;
+import com.yzz.chatroom.protocol.Frame;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * describe: 到一个对端节点的出方向链路，只发送不接收
+ * date:2019/1/28
+ * 转发的帧先进入队列，由该链路唯一的线程连接对端并批量写出，断开后按固定间隔重连，
+ * 没有 flush 成功的那一批在重连后重发（对端按 来源 + 序号 去重），断开期间的帧留在队列中，队列满时丢弃最早的。
+ * flush 成功只表示写进了内核，之后断开时这些帧会丢失，所以链路只保证最多一次
+ *
+ * @Since 0.0.2
+ */
+class PeerLink {
+
+    //队列容量，帧
+    static final int CAPACITY = 64 * 1024;
+
+    //重连间隔，毫秒
+    static final long RECONNECT_DELAY = 1000;
+
+    //连接超时，毫秒
+    static final int CONNECT_TIMEOUT = 3000;
+
+    //一次合并写出的字节数
+    private static final int FLUSH_BYTES = 64 * 1024;
+
+    private static final Logger logger = Logger.getLogger(PeerLink.class.getName());
+
+    private final InetSocketAddress address;
+
+    //建立链路后发送的第一帧，表明自己的身份
+    private final Frame hello;
+
+    private final BlockingQueue<Frame> queue = new LinkedBlockingQueue<>(CAPACITY);
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final EventLog events = EventLog.getInstance();
+
+    private volatile Socket socket;
+
+    private volatile boolean closed;
+
+    PeerLink(InetSocketAddress address, Frame hello) {
+        this.address = address;
+        this.hello = hello;
+    }
+
+    void start() {
+        Thread thread = new Thread(this::run, "cluster-link-" + address);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 入队，不阻塞
+     *
+     * @param frame
+     */
+    void send(Frame frame) {
+        while (!queue.offer(frame)) {
+            //对端长时间不可用，丢弃最早的
+            if (queue.poll() != null) {
+                dropped.increment();
+            }
+        }
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    void close() {
+        closed = true;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+
+    private void run() {
+        //已经写出但还没有 flush 成功的帧，写失败时在重连后重发
+        List<Frame> unflushed = new ArrayList<>();
+        while (!closed) {
+            try (Socket s = new Socket()) {
+                s.connect(address, CONNECT_TIMEOUT);
+                s.setTcpNoDelay(true);
+                socket = s;
+                OutputStream out = new BufferedOutputStream(s.getOutputStream(), FLUSH_BYTES);
+                hello.writeTo(out);
+                out.flush();
+                events.lifecycle(logger, Level.INFO, "peer-connected", "peer", address, "resend", unflushed.size());
+                while (!closed) {
+                    if (unflushed.isEmpty()) {
+                        //把已经积压的帧一起写出
+                        Frame frame = queue.take();
+                        long bytes = 0;
+                        do {
+                            unflushed.add(frame);
+                            bytes += frame.length();
+                        } while (bytes < FLUSH_BYTES && (frame = queue.poll()) != null);
+                    }
+                    for (Frame frame : unflushed) {
+                        frame.writeTo(out);
+                    }
+                    out.flush();
+                    unflushed.clear();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    events.lifecycle(logger, Level.WARNING, "peer-unreachable", "peer", address, "error", e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            socket = null;
+            try {
+                TimeUnit.MILLISECONDS.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
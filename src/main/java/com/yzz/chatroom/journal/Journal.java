@@ -0,0 +1,419 @@
+package com.yzz.chatroom.journal;
+
+import com.yzz.chatroom.protocol.BinaryChartRoomProtocol;
+import com.yzz.chatroom.protocol.EncodedMessage;
+import com.yzz.chatroom.protocol.Frame;
+import com.yzz.chatroom.protocol.Message;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * describe: 只追加的消息日志，服务端转发之前写入，重启不丢，新连接可以回放历史消息
+ * date:2019/1/24
+ * 1. 每条消息分配一个全局递增的序号，序号写在帧里，客户端收到的实时消息和回放的消息都带有序号
+ * 2. 每个房间一个目录，分段文件映射到内存，记录就是二进制协议的帧，写入只是一次内存复制
+ * 3. 后台线程按固定间隔批量 force，而不是每条消息都落盘
+ * 4. 回放直接把映射的文件区域包装成帧发出，不会把历史消息读进堆
+ * 5. {@link #inMemory()} 创建的日志不写文件，每个房间只在堆内保留最近的几个分段，用于客户端断线重连后补发缺口；
+ * 序号从启动时间开始，服务端重启之后仍然大于重启之前的序号，客户端带着旧序号重连会收到重启之后的全部消息
+ * 6. 最多记录 {@link #setMaxRooms(int) maxRooms} 个房间的日志，房间没人之后由服务端 {@link #release(String)}，
+ * 达到上限时删除最早空闲的房间的日志；没有空闲的房间时新房间的消息只分配序号，不记录
+ * 所有方法在同一把锁（{@link #lock()}）内执行，每次只持有很短的时间；写入的顺序由调用方决定（总线的日志阶段、房间的锁），
+ * 持有这把锁时不能等待其他线程，回放时的 sink 只能入队
+ *
+ * @Since 0.0.2
+ */
+public class Journal implements Closeable {
+
+    //默认分段大小
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    //每个房间默认最多保留的分段数
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    //默认落盘间隔，毫秒
+    public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+    //不持久化时默认的分段大小
+    public static final int DEFAULT_MEMORY_SEGMENT_SIZE = 256 * 1024;
+
+    //不持久化时每个房间默认最多保留的分段数
+    public static final int DEFAULT_MEMORY_SEGMENTS = 4;
+
+    //默认最多记录日志的房间数
+    public static final int DEFAULT_MAX_ROOMS = 1024;
+
+    //不持久化时序号的初始值是启动时间（毫秒）左移的位数，每毫秒最多 65536 条消息时重启之后序号仍然递增
+    private static final int MEMORY_SEQUENCE_SHIFT = 16;
+
+    //房间目录名的前缀
+    private static final String ROOM_DIR_PREFIX = "room-";
+
+    private static final Logger logger = Logger.getLogger(Journal.class.getName());
+
+    //不持久化时为 null
+    private final File dir;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    //房间 -> 日志
+    private final Map<String, RoomLog> rooms = new HashMap<>();
+
+    //已经没人的房间，按空闲的先后排列，达到房间上限时先删除最早空闲的
+    private final Set<String> idle = new LinkedHashSet<>();
+
+    //最多记录日志的房间数
+    private int maxRooms = DEFAULT_MAX_ROOMS;
+
+    //达到房间上限之后没有记录的消息数
+    private long unrecorded;
+
+    //最后分配的序号
+    private long lastSequence;
+
+    //批量落盘的后台线程，不持久化时为 null
+    private final ScheduledExecutorService flusher;
+
+    private boolean closed;
+
+    //保护以上所有状态；不用 synchronized，虚拟线程在竞争时不会占住载体线程
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 使用默认配置打开日志
+     *
+     * @param dir 日志目录，不存在则创建
+     * @return
+     * @throws IOException
+     */
+    public static Journal open(File dir) throws IOException {
+        return open(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * 打开日志，恢复已有的房间日志和序号
+     *
+     * @param dir
+     * @param segmentSize   分段大小
+     * @param maxSegments   每个房间最多保留的分段数
+     * @param flushInterval 落盘间隔，毫秒
+     * @return
+     * @throws IOException
+     */
+    public static Journal open(File dir, int segmentSize, int maxSegments, long flushInterval) throws IOException {
+        if (segmentSize <= 0 || maxSegments <= 0 || flushInterval <= 0) {
+            throw new IllegalArgumentException("segmentSize, maxSegments and flushInterval must be positive");
+        }
+        return new Journal(dir, segmentSize, maxSegments, flushInterval);
+    }
+
+    /**
+     * 使用默认配置创建一个不持久化的日志
+     *
+     * @return
+     */
+    public static Journal inMemory() {
+        return inMemory(DEFAULT_MEMORY_SEGMENT_SIZE, DEFAULT_MEMORY_SEGMENTS);
+    }
+
+    /**
+     * 创建一个不持久化的日志，每个房间最多占用 segmentSize * maxSegments 字节的堆
+     *
+     * @param segmentSize 分段大小
+     * @param maxSegments 每个房间最多保留的分段数
+     * @return
+     */
+    public static Journal inMemory(int segmentSize, int maxSegments) {
+        if (segmentSize <= 0 || maxSegments <= 0) {
+            throw new IllegalArgumentException("segmentSize and maxSegments must be positive");
+        }
+        return new Journal(segmentSize, maxSegments);
+    }
+
+    private Journal(int segmentSize, int maxSegments) {
+        this.dir = null;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.lastSequence = System.currentTimeMillis() << MEMORY_SEQUENCE_SHIFT;
+        this.flusher = null;
+    }
+
+    private Journal(File dir, int segmentSize, int maxSegments, long flushInterval) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create journal directory " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        File[] roomDirs = dir.listFiles(f -> f.isDirectory() && f.getName().startsWith(ROOM_DIR_PREFIX));
+        if (roomDirs != null) {
+            for (File roomDir : roomDirs) {
+                RoomLog log = RoomLog.open(roomDir, segmentSize, maxSegments);
+                String room = decode(roomDir.getName());
+                rooms.put(room, log);
+                //重启之后所有房间都还没人
+                idle.add(room);
+                lastSequence = Math.max(lastSequence, log.lastSequence());
+            }
+        }
+        logger.log(Level.INFO, "journal opened in " + dir + ", " + rooms.size() + " rooms, last sequence " + lastSequence);
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 分配序号并追加一条房间消息，序号写入消息之后再编码，所以必须在该消息第一次编码之前调用
+     *
+     * @param encoded
+     * @return 分配的序号，没有房间的消息不记录，返回 0
+     * @throws IOException
+     */
+    public long append(EncodedMessage encoded) throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("journal closed");
+            }
+            Message message = encoded.message();
+            if (message.getRoom() == null) {
+                return 0;
+            }
+            RoomLog log = log(message.getRoom());
+            long sequence = lastSequence + 1;
+            message.setSequence(sequence);
+            lastSequence = sequence;
+            if (log != null) {
+                Frame frame = encoded.frame(BinaryChartRoomProtocol.getInstance());
+                log.append(frame.buffer(), sequence);
+            }
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 房间的日志，没有则创建；达到房间上限时删除最早空闲的房间的日志
+     *
+     * @param room
+     * @return 达到上限且没有空闲的房间时返回 null
+     * @throws IOException
+     */
+    private RoomLog log(String room) throws IOException {
+        RoomLog log = rooms.get(room);
+        if (log != null) {
+            idle.remove(room);
+            return log;
+        }
+        while (rooms.size() >= maxRooms) {
+            Iterator<String> it = idle.iterator();
+            if (!it.hasNext()) {
+                if (unrecorded++ == 0) {
+                    logger.log(Level.WARNING, "journal reached " + maxRooms + " rooms, messages of new rooms are not recorded");
+                }
+                return null;
+            }
+            String evicted = it.next();
+            it.remove();
+            rooms.remove(evicted).delete();
+        }
+        log = dir == null ? RoomLog.inMemory(segmentSize, maxSegments) : RoomLog.open(new File(dir, encode(room)), segmentSize, maxSegments);
+        rooms.put(room, log);
+        return log;
+    }
+
+    /**
+     * 房间已经没人，之后达到房间上限时可以删除它的日志；在那之前日志仍然保留，断线重连的客户端回来时照常补发，
+     * 再有消息写入或回放时不再算作空闲
+     *
+     * @param room
+     */
+    public void release(String room) {
+        lock.lock();
+        try {
+            if (rooms.containsKey(room)) {
+                idle.add(room);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 设置最多记录日志的房间数，已经超过的部分在之后创建新房间时删除
+     *
+     * @param maxRooms
+     */
+    public void setMaxRooms(int maxRooms) {
+        lock.lock();
+        try {
+            if (maxRooms <= 0) {
+                throw new IllegalArgumentException("maxRooms must be positive");
+            }
+            this.maxRooms = maxRooms;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 达到房间上限之后只分配了序号、没有记录的消息数
+     *
+     * @return
+     */
+    public long unrecorded() {
+        lock.lock();
+        try {
+            return unrecorded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 回放房间内序号大于 sequence 的消息
+     *
+     * @param room
+     * @param sequence
+     * @param sink     每段连续的记录一帧，帧内是按顺序排列的多条二进制协议消息
+     */
+    public void replaySince(String room, long sequence, Consumer<Frame> sink) {
+        lock.lock();
+        try {
+            RoomLog log = rooms.get(room);
+            if (log != null) {
+                idle.remove(room);
+                log.since(sequence, sink);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 回放房间内最近的 count 条消息
+     *
+     * @param room
+     * @param count
+     * @param sink  每段连续的记录一帧，帧内是按顺序排列的多条二进制协议消息
+     */
+    public void replayLast(String room, int count, Consumer<Frame> sink) {
+        lock.lock();
+        try {
+            RoomLog log = rooms.get(room);
+            if (log != null && count > 0) {
+                idle.remove(room);
+                log.last(count, sink);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 日志的锁，可重入；调用方需要把几次调用合成一步时持有它，例如加入房间与回放之间不能插入新消息
+     *
+     * @return
+     */
+    public Lock lock() {
+        return lock;
+    }
+
+    public long lastSequence() {
+        lock.lock();
+        try {
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把所有房间正在写的分段刷到磁盘，force 在锁外执行，不阻塞写入
+     */
+    public void flush() {
+        if (dir == null) {
+            return;
+        }
+        List<Segment> active = new ArrayList<>();
+        lock.lock();
+        try {
+            for (RoomLog log : rooms.values()) {
+                Segment segment = log.active();
+                if (segment != null) {
+                    active.add(segment);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : active) {
+            try {
+                segment.force();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "journal flush failed: " + e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            flush();
+        }
+    }
+
+    /**
+     * 房间名可以是任意字符，目录名使用前缀 + UTF-8 的十六进制
+     *
+     * @param room
+     * @return
+     */
+    private static String encode(String room) {
+        StringBuilder sb = new StringBuilder(ROOM_DIR_PREFIX);
+        for (byte b : room.getBytes(StandardCharsets.UTF_8)) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String decode(String name) {
+        name = name.substring(ROOM_DIR_PREFIX.length());
+        byte[] bytes = new byte[name.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(name.substring(i * 2, i * 2 + 2), 16);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,179 @@
+package com.yzz.chatroom.journal;
+
+import com.yzz.chatroom.protocol.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * describe: 一个房间的消息日志，由按序号命名的多个分段组成
+ * date:2019/1/24
+ * 每个房间一个目录，回放时房间内连续的记录就是连续的文件区域，可以整段发出；不持久化时没有目录，分段在堆内。
+ * 第一个分段从 {@link #INITIAL_SEGMENT_SIZE} 开始，之后每个新分段翻倍，直到分段大小；消息很少的房间只占用很小的空间。
+ * 只允许在 {@link Journal} 的锁内访问
+ *
+ * @Since 0.0.2
+ */
+class RoomLog {
+
+    //第一个分段的大小
+    static final int INITIAL_SEGMENT_SIZE = 64 * 1024;
+
+    //不持久化时为 null
+    private final File dir;
+
+    //分段的最大大小
+    private final int segmentSize;
+
+    //最多保留的分段数，超过则删除最老的
+    private final int maxSegments;
+
+    private final List<Segment> segments = new ArrayList<>();
+
+    private RoomLog(File dir, int segmentSize, int maxSegments) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * 创建一个不持久化的房间日志
+     *
+     * @param segmentSize
+     * @param maxSegments
+     * @return
+     */
+    static RoomLog inMemory(int segmentSize, int maxSegments) {
+        return new RoomLog(null, segmentSize, maxSegments);
+    }
+
+    /**
+     * 打开房间目录下已有的分段，没有则创建目录
+     *
+     * @param dir
+     * @param segmentSize
+     * @param maxSegments
+     * @return
+     * @throws IOException
+     */
+    static RoomLog open(File dir, int segmentSize, int maxSegments) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create journal directory " + dir);
+        }
+        RoomLog log = new RoomLog(dir, segmentSize, maxSegments);
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (files != null) {
+            //文件名是定长的序号，按名字排序即按序号排序
+            Arrays.sort(files);
+            for (File file : files) {
+                log.segments.add(Segment.open(file));
+            }
+        }
+        return log;
+    }
+
+    /**
+     * 追加一帧，当前分段写满则创建新的分段
+     *
+     * @param frame
+     * @param sequence
+     * @throws IOException
+     */
+    void append(ByteBuffer frame, long sequence) throws IOException {
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || !active.append(frame, sequence)) {
+            if (active != null) {
+                //写满的分段不会再变化，尽早落盘
+                active.force();
+            }
+            //按需增长，第一次写入时才分配
+            int size = (int) Math.min(segmentSize, active == null ? INITIAL_SEGMENT_SIZE : 2L * active.capacity());
+            size = Math.max(size, frame.remaining());
+            active = dir == null ? Segment.allocate(size) : Segment.create(dir, sequence, size);
+            segments.add(active);
+            active.append(frame, sequence);
+            retain();
+        }
+    }
+
+    private void retain() {
+        while (segments.size() > maxSegments) {
+            //已经发出的回放仍然持有映射，删除文件不影响它们
+            segments.remove(0).delete();
+        }
+    }
+
+    /**
+     * 回放序号大于 sequence 的所有记录，每个分段一帧
+     *
+     * @param sequence
+     * @param sink
+     */
+    void since(long sequence, Consumer<Frame> sink) {
+        for (Segment segment : segments) {
+            if (segment.records() == 0 || segment.lastSequence() <= sequence) {
+                continue;
+            }
+            int from = segment.firstSequence() > sequence ? 0 : segment.positionAfter(sequence);
+            sink.accept(Frame.wrap(segment.slice(from)));
+        }
+    }
+
+    /**
+     * 回放最近的 count 条记录，每个分段一帧
+     *
+     * @param count
+     * @param sink
+     */
+    void last(int count, Consumer<Frame> sink) {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.records();
+        }
+        long skip = Math.max(0, total - count);
+        for (Segment segment : segments) {
+            if (skip >= segment.records()) {
+                skip -= segment.records();
+                continue;
+            }
+            sink.accept(Frame.wrap(segment.slice(segment.positionOfRecord((int) skip))));
+            skip = 0;
+        }
+    }
+
+    /**
+     * 删除所有分段和房间目录，之后不能再使用
+     */
+    void delete() {
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        if (dir != null && !dir.delete()) {
+            dir.deleteOnExit();
+        }
+    }
+
+    long lastSequence() {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).records() > 0) {
+                return segments.get(i).lastSequence();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 当前正在写的分段，之前的分段在写满时已经落盘
+     *
+     * @return
+     */
+    Segment active() {
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+}
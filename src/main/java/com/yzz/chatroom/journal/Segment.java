@@ -0,0 +1,245 @@
+package com.yzz.chatroom.journal;
+
+import com.yzz.chatroom.protocol.BinaryChartRoomProtocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * describe: 消息日志的一个分段文件，整个文件映射到内存
+ * date:2019/1/24
+ * 文件内容就是按顺序排列的二进制帧（包括长度前缀），所以任意一段连续的记录本身就是可以直接发给客户端的数据；
+ * 文件创建时按分段的大小预分配，没有写到的部分全是 0，长度为 0 表示日志结束。
+ * 不持久化的日志使用堆内的分段，没有文件，格式相同。
+ * 每 {@link #INDEX_INTERVAL} 条记录在内存中保存一个 序号 -> 位置 的稀疏索引，打开时扫描重建。
+ * 只允许在 {@link Journal} 的锁内访问，force() 除外
+ *
+ * @Since 0.0.2
+ */
+class Segment {
+
+    //稀疏索引的间隔，条
+    static final int INDEX_INTERVAL = 64;
+
+    //堆内的分段为 null
+    private final File file;
+
+    private final ByteBuffer mapped;
+
+    //写位置，之前都是完整的记录
+    private int position;
+
+    //记录数
+    private int records;
+
+    //第一条和最后一条记录的序号，没有记录时为 0
+    private long firstSequence;
+
+    private long lastSequence;
+
+    //稀疏索引：第 i 项是第 i * INDEX_INTERVAL 条记录的序号和位置
+    private long[] indexSequences = new long[16];
+
+    private int[] indexPositions = new int[16];
+
+    private int indexSize;
+
+    //上次 force 之后是否有写入
+    private volatile boolean dirty;
+
+    private Segment(File file, ByteBuffer mapped) {
+        this.file = file;
+        this.mapped = mapped;
+    }
+
+    /**
+     * 创建一个新的分段文件
+     *
+     * @param dir
+     * @param firstSequence 第一条记录的序号，用作文件名
+     * @param size          预分配的大小
+     * @return
+     * @throws IOException
+     */
+    static Segment create(File dir, long firstSequence, int size) throws IOException {
+        File file = new File(dir, String.format("%020d.log", firstSequence));
+        return new Segment(file, map(file, size));
+    }
+
+    /**
+     * 创建一个堆内的分段，不持久化
+     *
+     * @param size 预分配的大小
+     * @return
+     */
+    static Segment allocate(int size) {
+        return new Segment(null, ByteBuffer.allocate(size));
+    }
+
+    /**
+     * 打开已有的分段文件，扫描出写位置并重建索引
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static Segment open(File file) throws IOException {
+        Segment segment = new Segment(file, map(file, (int) file.length()));
+        segment.recover();
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            //映射在通道关闭之后仍然有效
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void recover() {
+        int p = 0;
+        while (p + BinaryChartRoomProtocol.LENGTH_FIELD <= mapped.capacity()) {
+            int length = mapped.getInt(p);
+            if (length <= 0 || p + BinaryChartRoomProtocol.LENGTH_FIELD + length > mapped.capacity()) {
+                //日志结束，或者最后一条没有写完
+                break;
+            }
+            index(BinaryChartRoomProtocol.sequenceOf(mapped, p), p);
+            p += BinaryChartRoomProtocol.LENGTH_FIELD + length;
+        }
+        position = p;
+    }
+
+    /**
+     * 追加一帧
+     *
+     * @param frame    包括长度前缀的整帧
+     * @param sequence 该帧的序号
+     * @return 剩余空间不足时返回 false
+     */
+    boolean append(ByteBuffer frame, long sequence) {
+        int length = frame.remaining();
+        if (mapped.capacity() - position < length) {
+            return false;
+        }
+        ByteBuffer target = mapped.duplicate();
+        target.position(position);
+        target.put(frame);
+        index(sequence, position);
+        position += length;
+        dirty = true;
+        return true;
+    }
+
+    private void index(long sequence, int at) {
+        if (records % INDEX_INTERVAL == 0) {
+            if (indexSize == indexSequences.length) {
+                indexSequences = Arrays.copyOf(indexSequences, indexSize << 1);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize << 1);
+            }
+            indexSequences[indexSize] = sequence;
+            indexPositions[indexSize] = at;
+            indexSize++;
+        }
+        if (records == 0) {
+            firstSequence = sequence;
+        }
+        lastSequence = sequence;
+        records++;
+    }
+
+    /**
+     * 第一条序号大于 sequence 的记录的位置，先按稀疏索引二分，再顺序扫描不超过一个间隔
+     *
+     * @param sequence
+     * @return 没有时返回写位置
+     */
+    int positionAfter(long sequence) {
+        int low = 0;
+        int high = indexSize - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (indexSequences[mid] <= sequence) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int p = found < 0 ? 0 : indexPositions[found];
+        while (p < position && BinaryChartRoomProtocol.sequenceOf(mapped, p) <= sequence) {
+            p += BinaryChartRoomProtocol.LENGTH_FIELD + mapped.getInt(p);
+        }
+        return p;
+    }
+
+    /**
+     * 第 n 条记录的位置
+     *
+     * @param n 从 0 开始
+     * @return
+     */
+    int positionOfRecord(int n) {
+        int p = indexPositions[n / INDEX_INTERVAL];
+        for (int i = n % INDEX_INTERVAL; i > 0; i--) {
+            p += BinaryChartRoomProtocol.LENGTH_FIELD + mapped.getInt(p);
+        }
+        return p;
+    }
+
+    /**
+     * 从 from 到写位置的只读视图，不复制
+     *
+     * @param from
+     * @return
+     */
+    ByteBuffer slice(int from) {
+        ByteBuffer view = mapped.asReadOnlyBuffer();
+        view.position(from);
+        view.limit(position);
+        return view.slice();
+    }
+
+    /**
+     * 把写入的内容刷到磁盘，可以在写线程之外调用
+     */
+    void force() {
+        if (dirty && mapped instanceof MappedByteBuffer) {
+            dirty = false;
+            ((MappedByteBuffer) mapped).force();
+        }
+    }
+
+    void delete() {
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    int position() {
+        return position;
+    }
+
+    int capacity() {
+        return mapped.capacity();
+    }
+
+    int records() {
+        return records;
+    }
+
+    long firstSequence() {
+        return firstSequence;
+    }
+
+    long lastSequence() {
+        return lastSequence;
+    }
+}
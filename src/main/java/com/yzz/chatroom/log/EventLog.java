@@ -0,0 +1,271 @@
+package com.yzz.chatroom.log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * describe: 异步的事件日志，服务端的日志都经过这里，转发路径上不做格式化也不做 IO
+ * date:2019/1/27
+ * 事件分三类：
+ * 1. 生命周期（连接、断开、加入/离开房间、拒绝等）：总是记录；队列满时在调用线程同步写出，不会丢
+ * 2. 消息（每条消息一次，例如转发）：先抽样（每 sampleEvery 条取一条），再限速（每秒最多 perSecond 条），队列满时丢弃
+ * 3. 跟踪（每个接收者一次的写出）：只在调试模式下记录
+ * 调用方先用 {@link #sampleMessage()} / {@link #tracing()} 判断，不记录时不创建任何对象：
+ * <p>
+ * if (events.sampleMessage()) {
+ * events.message(logger, "dispatch", "room", room, "recipients", n);
+ * }
+ * <p>
+ * 事件在后台线程中格式化为 event key=value ... 写入原来的 java.util.logging 的 Logger，
+ * 被抽样和限速省略的条数、队列满丢弃的条数每秒汇总输出一次。
+ * 可以通过 -Dchatroom.log.debug=true、-Dchatroom.log.sampleEvery=100、-Dchatroom.log.perSecond=50 配置
+ *
+ * @Since 0.0.2
+ */
+public final class EventLog {
+
+    public static final String DEBUG_PROPERTY = "chatroom.log.debug";
+
+    public static final String SAMPLE_PROPERTY = "chatroom.log.sampleEvery";
+
+    public static final String RATE_PROPERTY = "chatroom.log.perSecond";
+
+    //队列容量
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    //默认每 100 条消息事件取一条
+    public static final int DEFAULT_SAMPLE_EVERY = 100;
+
+    //默认每秒最多 50 条消息事件
+    public static final int DEFAULT_PER_SECOND = 50;
+
+    private static final EventLog INSTANCE = new EventLog(DEFAULT_CAPACITY);
+
+    private static final Logger logger = Logger.getLogger(EventLog.class.getName());
+
+    private final BlockingQueue<Event> queue;
+
+    //调试模式：消息事件全部记录，并记录跟踪事件
+    private volatile boolean debug = Boolean.getBoolean(DEBUG_PROPERTY);
+
+    private volatile int sampleEvery = Integer.getInteger(SAMPLE_PROPERTY, DEFAULT_SAMPLE_EVERY);
+
+    private volatile int perSecond = Integer.getInteger(RATE_PROPERTY, DEFAULT_PER_SECOND);
+
+    //抽样计数
+    private final AtomicLong sampled = new AtomicLong();
+
+    //限速的当前秒，以及这一秒已经记录的条数
+    private volatile long second;
+
+    private final AtomicInteger inSecond = new AtomicInteger();
+
+    //被抽样或限速省略的消息事件
+    private final LongAdder suppressed = new LongAdder();
+
+    //队列满丢弃的消息事件
+    private final LongAdder dropped = new LongAdder();
+
+    private EventLog(int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+        Thread writer = new Thread(this::write, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static EventLog getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 生命周期事件，总是记录
+     *
+     * @param target 写入的日志
+     * @param level
+     * @param event  事件名
+     * @param fields 交替的 key, value
+     */
+    public void lifecycle(Logger target, Level level, String event, Object... fields) {
+        Event e = new Event(target, level, event, fields);
+        if (!queue.offer(e)) {
+            //队列满了，同步写出，生命周期事件不丢
+            e.write();
+        }
+    }
+
+    /**
+     * 这一条消息事件是否需要记录，已经计入抽样和限速；返回 true 时调用 {@link #message}
+     *
+     * @return
+     */
+    public boolean sampleMessage() {
+        if (debug) {
+            return true;
+        }
+        int every = sampleEvery;
+        if (every <= 0 || sampled.incrementAndGet() % every != 0) {
+            suppressed.increment();
+            return false;
+        }
+        long now = System.nanoTime() / TimeUnit.SECONDS.toNanos(1);
+        if (now != second) {
+            //换秒时的并发重置只会让这一秒多记或少记几条
+            second = now;
+            inSecond.set(0);
+        }
+        if (inSecond.incrementAndGet() > perSecond) {
+            suppressed.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 消息事件，队列满时丢弃
+     *
+     * @param target
+     * @param event
+     * @param fields 交替的 key, value
+     */
+    public void message(Logger target, String event, Object... fields) {
+        if (!queue.offer(new Event(target, Level.INFO, event, fields))) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * 是否记录跟踪事件，即调试模式
+     *
+     * @return
+     */
+    public boolean tracing() {
+        return debug;
+    }
+
+    /**
+     * 跟踪事件，只在 {@link #tracing()} 为 true 时调用
+     *
+     * @param target
+     * @param event
+     * @param fields 交替的 key, value
+     */
+    public void trace(Logger target, String event, Object... fields) {
+        message(target, event, fields);
+    }
+
+    /**
+     * 开关调试模式，立即生效
+     *
+     * @param debug
+     */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    /**
+     * 设置消息事件的抽样和限速
+     *
+     * @param sampleEvery 每多少条取一条，0 表示不记录消息事件
+     * @param perSecond   每秒最多记录的条数
+     */
+    public void setSampling(int sampleEvery, int perSecond) {
+        if (sampleEvery < 0 || perSecond < 0) {
+            throw new IllegalArgumentException("sampleEvery and perSecond must not be negative");
+        }
+        this.sampleEvery = sampleEvery;
+        this.perSecond = perSecond;
+    }
+
+    public long suppressed() {
+        return suppressed.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 后台线程，写出事件，每秒汇总一次省略和丢弃的条数
+     */
+    private void write() {
+        long reportedSuppressed = 0;
+        long reportedDropped = 0;
+        long nextReport = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (true) {
+            try {
+                Event event = queue.poll(1, TimeUnit.SECONDS);
+                if (event != null) {
+                    event.write();
+                }
+                if (System.nanoTime() - nextReport >= 0) {
+                    nextReport = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+                    long s = suppressed.sum();
+                    long d = dropped.sum();
+                    if (d != reportedDropped) {
+                        logger.log(Level.WARNING, "event log queue full, dropped " + (d - reportedDropped) + " message events");
+                    }
+                    if (s != reportedSuppressed && logger.isLoggable(Level.FINE)) {
+                        logger.log(Level.FINE, "sampled out " + (s - reportedSuppressed) + " message events");
+                    }
+                    reportedSuppressed = s;
+                    reportedDropped = d;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                //某个字段的 toString() 失败不能结束写线程
+                logger.log(Level.WARNING, "event log write failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * 一条事件，格式化推迟到写线程
+     */
+    private static final class Event {
+
+        private final Logger target;
+
+        private final Level level;
+
+        private final String name;
+
+        private final Object[] fields;
+
+        Event(Logger target, Level level, String name, Object[] fields) {
+            this.target = target;
+            this.level = level;
+            this.name = name;
+            this.fields = fields;
+        }
+
+        void write() {
+            if (!target.isLoggable(level)) {
+                return;
+            }
+            StringBuilder sb = new StringBuilder(name);
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                sb.append(' ').append(fields[i]).append('=');
+                String value = String.valueOf(fields[i + 1]);
+                if (value.indexOf(' ') >= 0) {
+                    sb.append('"').append(value).append('"');
+                } else {
+                    sb.append(value);
+                }
+            }
+            LogRecord record = new LogRecord(level, sb.toString());
+            //写线程不是事件的来源，使用日志名和事件名
+            record.setLoggerName(target.getName());
+            record.setSourceClassName(target.getName());
+            record.setSourceMethodName(name);
+            target.log(record);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.yzz.chatroom.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * describe: 延迟直方图，HDR 风格的对数-线性分桶，记录是无锁的，可以被多个线程同时写
+ * date:2019/1/26
+ * 1. 小于 2^precision 的值每个值一个桶，之后每翻一倍使用 2^(precision-1) 个桶，相对误差不超过 1 / 2^(precision-1)
+ * 2. 内存与记录数无关，只与 最大可记录值 和 精度 有关，可以长时间运行
+ * 3. 超过最大可记录值的记录计入最后一个桶，max() 仍然是真实的最大值
+ * 单位由调用方决定，一般是纳秒
+ *
+ * @Since 0.0.2
+ */
+public class LatencyHistogram {
+
+    //默认精度，128 个子桶，相对误差 < 1.6%
+    public static final int DEFAULT_PRECISION = 7;
+
+    //默认最大可记录值，1 分钟，纳秒
+    public static final long DEFAULT_HIGHEST = TimeUnit.MINUTES.toNanos(1);
+
+    private final int precision;
+
+    //每个数量级的子桶数
+    private final int subBuckets;
+
+    private final int halfSubBuckets;
+
+    private final long highest;
+
+    private final AtomicLongArray counts;
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(DEFAULT_HIGHEST, DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param highest   最大可记录值
+     * @param precision 子桶的位数，1 ~ 16
+     */
+    public LatencyHistogram(long highest, int precision) {
+        if (highest < 1 || precision < 1 || precision > 16) {
+            throw new IllegalArgumentException("highest must be positive and precision between 1 and 16");
+        }
+        this.precision = precision;
+        this.subBuckets = 1 << precision;
+        this.halfSubBuckets = subBuckets >> 1;
+        this.highest = highest;
+        this.counts = new AtomicLongArray(index(highest) + 1);
+    }
+
+    /**
+     * 记录一个值，负数按 0 计
+     *
+     * @param value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(Math.min(value, highest)));
+        total.incrementAndGet();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //重试
+        }
+    }
+
+    /**
+     * 把另一个直方图的记录累加进来，两者的精度和最大值必须相同
+     *
+     * @param other
+     */
+    public void add(LatencyHistogram other) {
+        if (other.precision != precision || other.highest != highest) {
+            throw new IllegalArgumentException("histograms have different layouts");
+        }
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.add(other.sum.sum());
+        long value = other.max.get();
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //重试
+        }
+    }
+
+    /**
+     * 百分位数，返回所在桶的中间值
+     *
+     * @param percentile 0 ~ 100，例如 99.9
+     * @return 没有记录时返回 0
+     */
+    public long percentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(median(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * 清空记录，与 record 并发时可能丢失少量记录
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * 新建一个相同布局的空直方图
+     *
+     * @return
+     */
+    public LatencyHistogram copyLayout() {
+        return new LatencyHistogram(highest, precision);
+    }
+
+    /**
+     * 常用百分位的摘要
+     *
+     * @param unit 记录值的单位
+     * @return
+     */
+    public String summary(TimeUnit unit) {
+        return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                count(), micros(mean(), unit), micros(percentile(50), unit), micros(percentile(90), unit),
+                micros(percentile(99), unit), micros(percentile(99.9), unit), micros(max(), unit));
+    }
+
+    private static double micros(double value, TimeUnit unit) {
+        return value * unit.toNanos(1) / 1000.0;
+    }
+
+    /**
+     * 值所在的桶：数量级 m 的子桶 sub 位于 m * halfSubBuckets + sub
+     *
+     * @param value
+     * @return
+     */
+    private int index(long value) {
+        int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - precision);
+        return magnitude * halfSubBuckets + (int) (value >>> magnitude);
+    }
+
+    /**
+     * 桶的中间值
+     *
+     * @param index
+     * @return
+     */
+    private long median(int index) {
+        int magnitude = index < subBuckets ? 0 : (index - subBuckets) / halfSubBuckets + 1;
+        long low = (long) (index - magnitude * halfSubBuckets) << magnitude;
+        return low + ((1L << magnitude) >> 1);
+    }
+}
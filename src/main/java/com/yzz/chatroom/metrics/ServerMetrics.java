@@ -0,0 +1,332 @@
+package com.yzz.chatroom.metrics;
+
+import com.yzz.chatroom.buffer.BufferPool;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * describe: 服务端的运行指标
+ * date:2019/1/26
+ * 1. 计数器是 LongAdder，多个线程同时累加时分散在不同的槽上，不会争用同一个缓存行
+ * 2. 转发耗时记录在 {@link LatencyHistogram} 中，无锁
+ * 3. 队列深度等瞬时值是 LongSupplier，只在读取时计算
+ * 记录方法都不分配对象，可以放在每条消息的路径上；读取（JMX、文本输出）时才汇总
+ *
+ * @Since 0.0.2
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    //JMX 的域
+    public static final String DOMAIN = "com.yzz.chatroom";
+
+    //不适用的瞬时值
+    private static final LongSupplier NOT_APPLICABLE = () -> -1;
+
+    private static final Logger logger = Logger.getLogger(ServerMetrics.class.getName());
+
+    private final LongAdder accepted = new LongAdder();
+
+    private final LongAdder removed = new LongAdder();
+
+    private final LongAdder messagesRead = new LongAdder();
+
+    private final LongAdder framesWritten = new LongAdder();
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private final LongAdder writeFailures = new LongAdder();
+
+    private final LongAdder slowConsumers = new LongAdder();
+
+    private final LongAdder idleEvictions = new LongAdder();
+
+    //超过限速的消息和超过每秒连接数被关闭的连接
+    private final LongAdder rateLimited = new LongAdder();
+
+    private final LongAdder connectionsRejected = new LongAdder();
+
+    //一条消息转发给房间内所有成员（入队）的耗时，纳秒
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+
+    //广播总线上已经发布、最慢的写分片还没有转发的消息数，只有 BioServerSupper 有
+    private volatile LongSupplier broadcastBacklog = NOT_APPLICABLE;
+
+    private volatile LongSupplier outboundQueue = NOT_APPLICABLE;
+
+    //网络读写借用的直接内存缓冲池，进程内共享
+    private final BufferPool bufferPool = BufferPool.getInstance();
+
+    private ObjectName objectName;
+
+    private ScheduledExecutorService dumper;
+
+    public void accepted() {
+        accepted.increment();
+    }
+
+    public void removed() {
+        removed.increment();
+    }
+
+    public void messageRead() {
+        messagesRead.increment();
+    }
+
+    /**
+     * 写出一帧
+     *
+     * @param bytes
+     */
+    public void frameWritten(long bytes) {
+        framesWritten.increment();
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * 写出了一部分字节，帧是否写完由 {@link #framesWritten(int)} 单独记录，适用于 NIO 的批量写
+     *
+     * @param bytes
+     */
+    public void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public void framesWritten(int frames) {
+        framesWritten.add(frames);
+    }
+
+    public void writeFailed() {
+        writeFailures.increment();
+    }
+
+    public void slowConsumer() {
+        slowConsumers.increment();
+    }
+
+    public void idleEvicted() {
+        idleEvictions.increment();
+    }
+
+    public void rateLimited() {
+        rateLimited.increment();
+    }
+
+    public void connectionRejected() {
+        connectionsRejected.increment();
+    }
+
+    /**
+     * 记录一次转发的耗时
+     *
+     * @param nanos
+     */
+    public void fanOut(long nanos) {
+        fanOut.record(nanos);
+    }
+
+    public void setBroadcastBacklog(LongSupplier broadcastBacklog) {
+        this.broadcastBacklog = broadcastBacklog;
+    }
+
+    public void setOutboundQueue(LongSupplier outboundQueue) {
+        this.outboundQueue = outboundQueue;
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getRemovedConnections() {
+        return removed.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return accepted.sum() - removed.sum();
+    }
+
+    @Override
+    public long getMessagesRead() {
+        return messagesRead.sum();
+    }
+
+    @Override
+    public long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getWriteFailures() {
+        return writeFailures.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumers.sum();
+    }
+
+    @Override
+    public long getIdleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    @Override
+    public long getRateLimitedMessages() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public long getRateLimitedConnections() {
+        return connectionsRejected.sum();
+    }
+
+    @Override
+    public long getFanOutCount() {
+        return fanOut.count();
+    }
+
+    @Override
+    public double getFanOutMeanMicros() {
+        return fanOut.mean() / 1000.0;
+    }
+
+    @Override
+    public double getFanOutP50Micros() {
+        return fanOut.percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getFanOutP99Micros() {
+        return fanOut.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getFanOutP999Micros() {
+        return fanOut.percentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getFanOutMaxMicros() {
+        return fanOut.max() / 1000.0;
+    }
+
+    @Override
+    public long getBroadcastBacklog() {
+        return broadcastBacklog.getAsLong();
+    }
+
+    @Override
+    public long getOutboundQueuedFrames() {
+        return outboundQueue.getAsLong();
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        return bufferPool.hits();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return bufferPool.misses();
+    }
+
+    @Override
+    public long getBufferPoolLeaks() {
+        return bufferPool.leaks();
+    }
+
+    @Override
+    public long getBufferPoolPooledBytes() {
+        return bufferPool.pooledBytes();
+    }
+
+    @Override
+    public void resetFanOut() {
+        fanOut.reset();
+    }
+
+    @Override
+    public String dump() {
+        return String.format("connections accepted=%d removed=%d active=%d | read=%d written=%d frames %d bytes failures=%d slow=%d idle=%d limited=%d rejected=%d"
+                        + " | queues broadcast=%d outbound=%d | buffers hits=%d misses=%d leaks=%d pooled=%d | fanOut %s",
+                getAcceptedConnections(), getRemovedConnections(), getActiveConnections(),
+                getMessagesRead(), getFramesWritten(), getBytesWritten(), getWriteFailures(), getSlowConsumerDisconnects(), getIdleEvictions(),
+                getRateLimitedMessages(), getRateLimitedConnections(),
+                getBroadcastBacklog(), getOutboundQueuedFrames(),
+                getBufferPoolHits(), getBufferPoolMisses(), getBufferPoolLeaks(), getBufferPoolPooledBytes(), fanOut.summary(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * 注册到平台的 MBeanServer，名字为 com.yzz.chatroom:type=Server,name=xxx
+     *
+     * @param name 区分同一进程中的多个服务端，例如 实现类名-端口
+     */
+    public synchronized void register(String name) {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            ObjectName on = new ObjectName(DOMAIN + ":type=Server,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "注册 MBean 失败 " + e);
+        }
+    }
+
+    /**
+     * 从 MBeanServer 中注销
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "注销 MBean 失败 " + e);
+        }
+        objectName = null;
+    }
+
+    /**
+     * 定期把所有指标以文本输出到日志
+     *
+     * @param period 小于等于 0 时停止输出
+     * @param unit
+     * @param target 输出的日志
+     */
+    public synchronized void dumpEvery(long period, TimeUnit unit, Logger target) {
+        if (dumper != null) {
+            dumper.shutdown();
+            dumper = null;
+        }
+        if (period <= 0) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> target.log(Level.INFO, dump()), period, period, unit);
+    }
+}
@@ -0,0 +1,69 @@
+package com.yzz.chatroom.metrics;
+
+/**
+ * describe: 服务端指标的 JMX 接口，jconsole / jvisualvm 中 com.yzz.chatroom:type=Server 下可见
+ * date:2019/1/26
+ * 不适用于当前服务端实现的指标返回 -1
+ *
+ * @Since 0.0.2
+ */
+public interface ServerMetricsMBean {
+
+    long getAcceptedConnections();
+
+    long getRemovedConnections();
+
+    long getActiveConnections();
+
+    long getMessagesRead();
+
+    long getFramesWritten();
+
+    long getBytesWritten();
+
+    long getWriteFailures();
+
+    long getSlowConsumerDisconnects();
+
+    long getIdleEvictions();
+
+    long getRateLimitedMessages();
+
+    long getRateLimitedConnections();
+
+    long getFanOutCount();
+
+    double getFanOutMeanMicros();
+
+    double getFanOutP50Micros();
+
+    double getFanOutP99Micros();
+
+    double getFanOutP999Micros();
+
+    double getFanOutMaxMicros();
+
+    long getBroadcastBacklog();
+
+    long getOutboundQueuedFrames();
+
+    long getBufferPoolHits();
+
+    long getBufferPoolMisses();
+
+    long getBufferPoolLeaks();
+
+    long getBufferPoolPooledBytes();
+
+    /**
+     * 清空转发耗时的直方图，重新开始统计
+     */
+    void resetFanOut();
+
+    /**
+     * 所有指标的文本
+     *
+     * @return
+     */
+    String dump();
+}
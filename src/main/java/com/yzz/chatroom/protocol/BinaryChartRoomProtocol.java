@@ -0,0 +1,607 @@
+package com.yzz.chatroom.protocol;
+
+import com.yzz.chatroom.buffer.BufferPool;
+import com.yzz.chatroom.buffer.PooledBuffer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * describe: 自定义协议的操作类包括 读和写 二进制版
+ * date:2019/1/20
+ * 不再使用jdk序列化（每条消息都带流头和 Message、Header 的类描述），而是长度前缀的二进制帧：
+ * <pre>
+ * +--------+---------+------+-------+---------------------------------------------+-------------------------------------------------------------------+
+ * | length | version | type | flags | payload                                     | optional                                                          |
+ * | int    | byte    | byte | byte  | host(str) port(int) nickName(str) body(str) | room recipient seq(long) sessionId(int) origin(str) token(long)   |
+ * +--------+---------+------+-------+---------------------------------------------+-------------------------------------------------------------------+
+ * </pre>
+ * length 不包括自身的4个字节；type 见 {@link MessageType}；flags 的每一位表示是否带有对应的可选字段，
+ * 可选字段按位的顺序排列；str 为 int 长度 + UTF-8 字节，长度 -1 表示 null。
+ * HELLO 之后客户端发送紧凑帧（{@link #FLAG_COMPACT}），payload 只有 body，header 由服务端按会话 id 补全。
+ * 握手时协商了压缩能力的连接使用 {@link #compressed()}：payload 加可选字段超过阈值时整体 deflate（{@link #FLAG_DEFLATE}），
+ * flags 之后是 int 原始长度 + 压缩后的字节，小帧不压缩。
+ * 该协议需要在建立连接时通过 {@link ProtocolNegotiator} 协商
+ *
+ * @Since 0.0.2
+ */
+public class BinaryChartRoomProtocol implements Protocol {
+
+    //协议版本
+    public static final byte VERSION = 1;
+
+    //可选字段：房间
+    public static final byte FLAG_ROOM = 1;
+
+    //可选字段：私聊的接收者
+    public static final byte FLAG_RECIPIENT = 1 << 1;
+
+    //可选字段：全局序号 long
+    public static final byte FLAG_SEQUENCE = 1 << 2;
+
+    //可选字段：会话 id int
+    public static final byte FLAG_SESSION = 1 << 3;
+
+    //紧凑帧：payload 中省略 host port nickName，只有 body，发送者由会话 id 确定
+    public static final byte FLAG_COMPACT = 1 << 4;
+
+    //flags 之后的内容经过 deflate 压缩，前面是 int 原始长度
+    public static final byte FLAG_DEFLATE = 1 << 5;
+
+    //可选字段：集群转发的来源节点，只在节点之间的链路上使用
+    public static final byte FLAG_ORIGIN = 1 << 6;
+
+    //可选字段：断线重连用的会话令牌 long，只在 WELCOME 和重连的 HELLO 中出现
+    public static final byte FLAG_RESUME_TOKEN = (byte) (1 << 7);
+
+    //压缩阈值的系统属性，字节
+    public static final String COMPRESSION_THRESHOLD_PROPERTY = "chatroom.compressionThreshold";
+
+    //默认的压缩阈值，字节，太小的帧压缩收益低于开销
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    //固定部分 version type flags
+    private static final int FIXED_LENGTH = 3;
+
+    //长度前缀的字节数
+    public static final int LENGTH_FIELD = 4;
+
+    //单帧最大长度
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    //解压缓冲的初始大小，之后按需翻倍
+    private static final int INFLATE_INITIAL_SIZE = 1024;
+
+    //池中最多保留的压缩器和解压器个数，各自
+    private static final int MAX_POOLED_CODECS = 2 * Runtime.getRuntime().availableProcessors();
+
+    //复用的压缩器和解压器，每次编码、解码借用后归还：同一条广播只压缩一次，压缩发生在编码它的线程中，而不是某个连接上；
+    //不按线程缓存，一个连接一个（虚拟）线程时本地的 zlib 内存不会随连接数增长
+    private static final CodecPool<Deflater> DEFLATERS = new CodecPool<>(Deflater::new, Deflater::end, MAX_POOLED_CODECS);
+
+    private static final CodecPool<Inflater> INFLATERS = new CodecPool<>(Inflater::new, Inflater::end, MAX_POOLED_CODECS);
+
+    //解析直接内存中的字符串时复用的数组，只有 NIO 的事件循环线程会用到
+    private static final ThreadLocal<byte[]> STRING_SCRATCH = ThreadLocal.withInitial(() -> new byte[4 * 1024]);
+
+    private static volatile BinaryChartRoomProtocol binaryChartRoomProtocol;
+
+    private static volatile BinaryChartRoomProtocol compressedProtocol;
+
+    //是否压缩大帧
+    private final boolean deflate;
+
+    //超过该长度的帧才压缩
+    private volatile int compressionThreshold;
+
+    private BinaryChartRoomProtocol(boolean deflate) {
+        this.deflate = deflate;
+        this.compressionThreshold = Integer.getInteger(COMPRESSION_THRESHOLD_PROPERTY, DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * 设置压缩阈值，只对 {@link #compressed()} 有效
+     *
+     * @param compressionThreshold 字节
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("compressionThreshold must not be negative");
+        }
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public void write(OutputStream outputStream, Header header, String content) throws IOException {
+        write(outputStream, new Message(header, content));
+    }
+
+    @Override
+    public void write(OutputStream outputStream, Message message) throws IOException {
+        //一帧一次write
+        outputStream.write(encode(message));
+    }
+
+    @Override
+    public Message parse(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        int length = in.readInt();
+        checkLength(length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return decodeFrame(ByteBuffer.wrap(frame));
+    }
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        Fields fields = new Fields(message);
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_FIELD + fields.length);
+        fields.writeTo(frame);
+        if (compress(fields)) {
+            return deflate(frame.array());
+        }
+        return frame.array();
+    }
+
+    /**
+     * 直接编码进借来的缓冲，不经过堆上的数组；需要压缩的大帧仍在堆上压缩之后复制进去
+     *
+     * @param message
+     * @param pool
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public PooledBuffer encode(Message message, BufferPool pool) throws IOException {
+        Fields fields = new Fields(message);
+        if (compress(fields)) {
+            return pool.copyOf(encode(message));
+        }
+        PooledBuffer pooled = pool.acquire(LENGTH_FIELD + fields.length);
+        ByteBuffer frame = pooled.buffer();
+        fields.writeTo(frame);
+        frame.flip();
+        return pooled;
+    }
+
+    private boolean compress(Fields fields) {
+        return deflate && fields.length - FIXED_LENGTH >= compressionThreshold;
+    }
+
+    /**
+     * 一条消息编码成帧需要的字段，先算出长度再写入
+     */
+    private static final class Fields {
+
+        private final Message message;
+
+        private final Header header;
+
+        //没有 header 但有会话 id 时使用紧凑帧
+        private final boolean compact;
+
+        private final byte[] host;
+
+        private final byte[] nickName;
+
+        private final byte[] body;
+
+        private final byte[] room;
+
+        private final byte[] recipient;
+
+        private final byte[] origin;
+
+        private byte flags;
+
+        //不包括长度前缀
+        private int length;
+
+        Fields(Message message) throws IOException {
+            this.message = message;
+            header = message.getHeader();
+            compact = header == null && message.getSessionId() != 0;
+            host = bytes(header == null ? null : header.getHost());
+            nickName = bytes(header == null ? null : header.getNickName());
+            body = bytes(message.getMessage());
+            room = bytes(message.getRoom());
+            recipient = bytes(message.getRecipient());
+            origin = bytes(message.getOrigin());
+            flags = compact ? FLAG_COMPACT : 0;
+            length = FIXED_LENGTH + sizeOf(body);
+            if (!compact) {
+                length += sizeOf(host) + 4 + sizeOf(nickName);
+            }
+            if (room != null) {
+                flags |= FLAG_ROOM;
+                length += sizeOf(room);
+            }
+            if (recipient != null) {
+                flags |= FLAG_RECIPIENT;
+                length += sizeOf(recipient);
+            }
+            if (message.getSequence() != 0) {
+                flags |= FLAG_SEQUENCE;
+                length += 8;
+            }
+            if (message.getSessionId() != 0) {
+                flags |= FLAG_SESSION;
+                length += 4;
+            }
+            if (origin != null) {
+                flags |= FLAG_ORIGIN;
+                length += sizeOf(origin);
+            }
+            if (message.getResumeToken() != 0) {
+                flags |= FLAG_RESUME_TOKEN;
+                length += 8;
+            }
+            checkLength(length);
+        }
+
+        void writeTo(ByteBuffer frame) {
+            frame.putInt(length)
+                    .put(VERSION)
+                    .put(message.getType())
+                    .put(flags);
+            if (!compact) {
+                putBytes(frame, host);
+                frame.putInt(header == null ? 0 : header.getPort());
+                putBytes(frame, nickName);
+            }
+            putBytes(frame, body);
+            if (room != null) {
+                putBytes(frame, room);
+            }
+            if (recipient != null) {
+                putBytes(frame, recipient);
+            }
+            if (message.getSequence() != 0) {
+                frame.putLong(message.getSequence());
+            }
+            if (message.getSessionId() != 0) {
+                frame.putInt(message.getSessionId());
+            }
+            if (origin != null) {
+                putBytes(frame, origin);
+            }
+            if (message.getResumeToken() != 0) {
+                frame.putLong(message.getResumeToken());
+            }
+        }
+    }
+
+    /**
+     * 压缩 flags 之后的内容，压缩后没有变小则返回原帧
+     *
+     * @param frame
+     * @return
+     */
+    private static byte[] deflate(byte[] frame) {
+        int offset = LENGTH_FIELD + FIXED_LENGTH;
+        int rawLength = frame.length - offset;
+        //只接受比原来小的结果，输出缓冲不需要扩容
+        byte[] out = new byte[offset + 4 + rawLength];
+        int compressed = 0;
+        Deflater deflater = DEFLATERS.borrow();
+        try {
+            deflater.reset();
+            deflater.setInput(frame, offset, rawLength);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(out, offset + 4 + compressed, out.length - offset - 4 - compressed);
+                if (n == 0) {
+                    //输出缓冲已满，压缩后没有变小
+                    return frame;
+                }
+                compressed += n;
+            }
+        } finally {
+            DEFLATERS.release(deflater);
+        }
+        if (4 + compressed >= rawLength) {
+            return frame;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(out);
+        buffer.putInt(FIXED_LENGTH + 4 + compressed)
+                .put(frame[LENGTH_FIELD])
+                .put(frame[LENGTH_FIELD + 1])
+                .put((byte) (frame[LENGTH_FIELD + 2] | FLAG_DEFLATE))
+                .putInt(rawLength);
+        return Arrays.copyOf(out, offset + 4 + compressed);
+    }
+
+    /**
+     * 解压 flags 之后的内容
+     *
+     * @param frame position 在原始长度字段
+     * @return 解压后的内容
+     * @throws IOException
+     */
+    private static ByteBuffer inflate(ByteBuffer frame) throws IOException {
+        int rawLength = frame.getInt();
+        if (rawLength < 0 || rawLength > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("illegal inflated length " + rawLength);
+        }
+        byte[] input;
+        int inputOffset;
+        int inputLength = frame.remaining();
+        if (frame.hasArray()) {
+            input = frame.array();
+            inputOffset = frame.arrayOffset() + frame.position();
+        } else {
+            input = new byte[inputLength];
+            frame.duplicate().get(input);
+            inputOffset = 0;
+        }
+        //原始长度由对方声明，不能据此预先分配，按实际解压出来的大小逐步扩容；多留一个字节用来发现超长的内容
+        byte[] raw = new byte[Math.min(rawLength + 1, Math.max(INFLATE_INITIAL_SIZE, inputLength * 4))];
+        int n = 0;
+        Inflater inflater = INFLATERS.borrow();
+        try {
+            inflater.reset();
+            inflater.setInput(input, inputOffset, inputLength);
+            while (!inflater.finished()) {
+                if (n == raw.length) {
+                    if (n > rawLength) {
+                        throw new StreamCorruptedException("inflated payload longer than " + rawLength);
+                    }
+                    raw = Arrays.copyOf(raw, (int) Math.min(rawLength + 1L, 2L * raw.length));
+                }
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new StreamCorruptedException("truncated deflate payload");
+                }
+                n += read;
+            }
+            //压缩流提前结束或者之后还有多余的字节
+            if (n != rawLength || inflater.getRemaining() != 0) {
+                throw new StreamCorruptedException("inflated length " + n + " does not match " + rawLength);
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("malformed deflate payload: " + e.getMessage());
+        } finally {
+            INFLATERS.release(inflater);
+        }
+        return ByteBuffer.wrap(raw, 0, n);
+    }
+
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < LENGTH_FIELD) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        checkLength(length);
+        if (buffer.remaining() < LENGTH_FIELD + length) {
+            //半包
+            return null;
+        }
+        ByteBuffer frame = buffer.duplicate();
+        frame.position(buffer.position() + LENGTH_FIELD);
+        frame.limit(frame.position() + length);
+        buffer.position(frame.limit());
+        return decodeFrame(frame);
+    }
+
+    /**
+     * 解析去掉长度前缀之后的一帧
+     *
+     * @param frame
+     * @return
+     * @throws IOException
+     */
+    private Message decodeFrame(ByteBuffer frame) throws IOException {
+        try {
+            byte version = frame.get();
+            if (version != VERSION) {
+                throw new StreamCorruptedException("unsupported frame version " + version);
+            }
+            byte type = frame.get();
+            if (!MessageType.isValid(type)) {
+                throw new StreamCorruptedException("unknown frame type " + type);
+            }
+            byte flags = frame.get();
+            if ((flags & FLAG_DEFLATE) != 0) {
+                if (!deflate) {
+                    //握手时没有协商压缩能力
+                    throw new StreamCorruptedException("deflated frame on a connection without deflate");
+                }
+                frame = inflate(frame);
+            }
+            Header header = null;
+            if ((flags & FLAG_COMPACT) == 0) {
+                String host = getString(frame);
+                int port = frame.getInt();
+                header = new Header(host, port, getString(frame));
+            }
+            String body = getString(frame);
+            String room = (flags & FLAG_ROOM) != 0 ? getString(frame) : null;
+            Message message = new Message(header, body, type, room);
+            if ((flags & FLAG_RECIPIENT) != 0) {
+                message.setRecipient(getString(frame));
+            }
+            if ((flags & FLAG_SEQUENCE) != 0) {
+                message.setSequence(frame.getLong());
+            }
+            if ((flags & FLAG_SESSION) != 0) {
+                message.setSessionId(frame.getInt());
+            }
+            if ((flags & FLAG_ORIGIN) != 0) {
+                message.setOrigin(getString(frame));
+            }
+            if ((flags & FLAG_RESUME_TOKEN) != 0) {
+                message.setResumeToken(frame.getLong());
+            }
+            if ((flags & FLAG_COMPACT) != 0 && message.getSessionId() == 0) {
+                throw new StreamCorruptedException("compact frame without session id");
+            }
+            return message;
+        } catch (RuntimeException e) {
+            //长度字段与内容不符
+            throw new StreamCorruptedException("malformed frame: " + e);
+        }
+    }
+
+    /**
+     * 不解码整帧，只跳过前面的字段读取全局序号，用于在消息日志中定位
+     *
+     * @param buffer
+     * @param offset 帧的起始位置，包括长度前缀
+     * @return 没有序号或者是压缩帧时返回 0
+     */
+    public static long sequenceOf(ByteBuffer buffer, int offset) {
+        int flags = buffer.get(offset + LENGTH_FIELD + 2);
+        if ((flags & FLAG_SEQUENCE) == 0 || (flags & FLAG_DEFLATE) != 0) {
+            return 0;
+        }
+        int p = offset + LENGTH_FIELD + FIXED_LENGTH;
+        if ((flags & FLAG_COMPACT) == 0) {
+            //host port nickName
+            p = skipString(buffer, skipString(buffer, p) + 4);
+        }
+        //body
+        p = skipString(buffer, p);
+        if ((flags & FLAG_ROOM) != 0) {
+            p = skipString(buffer, p);
+        }
+        if ((flags & FLAG_RECIPIENT) != 0) {
+            p = skipString(buffer, p);
+        }
+        return buffer.getLong(p);
+    }
+
+    private static int skipString(ByteBuffer buffer, int p) {
+        int length = buffer.getInt(p);
+        return p + 4 + Math.max(length, 0);
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < FIXED_LENGTH || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("illegal frame length " + length);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putBytes(ByteBuffer frame, byte[] bytes) {
+        if (bytes == null) {
+            frame.putInt(-1);
+            return;
+        }
+        frame.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer frame) throws StreamCorruptedException {
+        int length = frame.getInt();
+        if (length < 0) {
+            return null;
+        }
+        //长度由对方声明，先检查再分配，否则一个伪造的长度就能申请 2G 的数组
+        if (length > frame.remaining()) {
+            throw new StreamCorruptedException("illegal string length " + length);
+        }
+        String s;
+        if (frame.hasArray()) {
+            s = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+            frame.position(frame.position() + length);
+        } else {
+            //直接内存中的帧先复制到本线程复用的数组，超长的字符串单独分配
+            byte[] scratch = STRING_SCRATCH.get();
+            if (length > scratch.length) {
+                scratch = new byte[length];
+            }
+            frame.get(scratch, 0, length);
+            s = new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    public static BinaryChartRoomProtocol getInstance() {
+        if (null != binaryChartRoomProtocol) {
+            return binaryChartRoomProtocol;
+        }
+        synchronized (BinaryChartRoomProtocol.class) {
+            if (null == binaryChartRoomProtocol) {
+                binaryChartRoomProtocol = new BinaryChartRoomProtocol(false);
+            }
+        }
+        return binaryChartRoomProtocol;
+    }
+
+    /**
+     * 压缩大帧的实例，握手时协商了 {@link ProtocolNegotiator#CAPABILITY_DEFLATE} 的连接使用
+     * 与 {@link #getInstance()} 是不同的实例，所以 {@link EncodedMessage} 对每条广播只压缩一次
+     *
+     * @return
+     */
+    public static BinaryChartRoomProtocol compressed() {
+        if (null != compressedProtocol) {
+            return compressedProtocol;
+        }
+        synchronized (BinaryChartRoomProtocol.class) {
+            if (null == compressedProtocol) {
+                compressedProtocol = new BinaryChartRoomProtocol(true);
+            }
+        }
+        return compressedProtocol;
+    }
+
+    /**
+     * 压缩器、解压器的池：借用后归还，池满时多出来的立即 end() 释放本地内存，不等 GC
+     *
+     * @param <T>
+     */
+    private static final class CodecPool<T> {
+
+        private final Supplier<T> factory;
+
+        private final Consumer<T> end;
+
+        private final int max;
+
+        private final ConcurrentLinkedDeque<T> free = new ConcurrentLinkedDeque<>();
+
+        //空闲的个数，deque 的 size() 需要遍历
+        private final AtomicInteger count = new AtomicInteger();
+
+        CodecPool(Supplier<T> factory, Consumer<T> end, int max) {
+            this.factory = factory;
+            this.end = end;
+            this.max = max;
+        }
+
+        T borrow() {
+            T codec = free.pollFirst();
+            if (codec == null) {
+                return factory.get();
+            }
+            count.decrementAndGet();
+            return codec;
+        }
+
+        void release(T codec) {
+            if (count.incrementAndGet() > max) {
+                count.decrementAndGet();
+                end.accept(codec);
+                return;
+            }
+            free.offerFirst(codec);
+        }
+    }
+}
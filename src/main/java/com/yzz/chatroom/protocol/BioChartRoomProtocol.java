@@ -1,6 +1,7 @@
 package com.yzz.chatroom.protocol;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * describe: 自定义协议的操作类包括 读和写
@@ -62,6 +63,44 @@ public class BioChartRoomProtocol implements Protocol {
         return message;
     }
 
+    /**
+     * 编码，与 write 写出的字节完全一致（包括流头）
+     *
+     * @param message
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        write(bytes, message);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 解码，jdk序列化没有长度前缀，只能尝试解析，数据不够时会抛出 EOFException，此时视为半包
+     *
+     * @param buffer
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        ByteBuffer frame = buffer.duplicate();
+        Message message;
+        try {
+            message = parse(new ByteBufferInputStream(frame));
+        } catch (EOFException e) {
+            //半包，等待更多的数据
+            return null;
+        }
+        buffer.position(frame.position());
+        return message;
+    }
+
     public static BioChartRoomProtocol getInstance() {
         if (null != bioChartRoomProtocol) {
             return bioChartRoomProtocol;
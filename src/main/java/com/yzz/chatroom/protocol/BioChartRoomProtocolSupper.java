@@ -1,6 +1,7 @@
 package com.yzz.chatroom.protocol;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * describe: 自定义协议的操作类包括 读和写 升级版
@@ -32,6 +33,16 @@ public class BioChartRoomProtocolSupper implements Protocol {
         return null;
     }
 
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        return BioChartRoomProtocol.getInstance().encode(message);
+    }
+
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException {
+        return BioChartRoomProtocol.getInstance().decode(buffer);
+    }
+
     public static BioChartRoomProtocolSupper getInstance() {
         if (null != bioChartRoomProtocolSupper) {
             return bioChartRoomProtocolSupper;
@@ -0,0 +1,45 @@
+package com.yzz.chatroom.protocol;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * describe: 将 ByteBuffer 适配成 InputStream，读取会移动 buffer 的 position
+ * date:2019/1/20
+ *
+ * @Since 0.0.2
+ */
+class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,59 @@
+package com.yzz.chatroom.protocol;
+
+import java.io.IOException;
+
+/**
+ * describe: 一条待转发的消息，按协议懒编码，每种协议只编码一次，之后所有接收者共享同一帧
+ * date:2019/1/21
+ * 转发的开销因此只与写socket有关，而与编码无关，线程安全
+ *
+ * @Since 0.0.2
+ */
+public final class EncodedMessage {
+
+    private final Message message;
+
+    //协议 -> 帧，协议都是单例，数量很少，数组按引用查找比 map 更快；写时复制
+    private volatile Object[] frames = new Object[0];
+
+    public EncodedMessage(Message message) {
+        this.message = message;
+    }
+
+    public Message message() {
+        return message;
+    }
+
+    /**
+     * 获取该消息在某种协议下的帧，第一次调用时编码
+     *
+     * @param protocol
+     * @return
+     * @throws IOException
+     */
+    public Frame frame(Protocol protocol) throws IOException {
+        Object[] current = frames;
+        for (int i = 0; i < current.length; i += 2) {
+            if (current[i] == protocol) {
+                return (Frame) current[i + 1];
+            }
+        }
+        return encode(protocol);
+    }
+
+    private synchronized Frame encode(Protocol protocol) throws IOException {
+        Object[] current = frames;
+        for (int i = 0; i < current.length; i += 2) {
+            if (current[i] == protocol) {
+                return (Frame) current[i + 1];
+            }
+        }
+        Frame frame = new Frame(protocol.encode(message));
+        Object[] next = new Object[current.length + 2];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = protocol;
+        next[current.length + 1] = frame;
+        frames = next;
+        return frame;
+    }
+}
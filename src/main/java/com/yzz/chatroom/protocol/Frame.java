@@ -0,0 +1,99 @@
+package com.yzz.chatroom.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * describe: 编码好的一帧，不可变，可以被多个连接共享
+ * date:2019/1/21
+ *
+ * @Since 0.0.2
+ */
+public final class Frame {
+
+    //分块写出不在堆上的帧时使用的缓冲大小
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    //堆上的内容，包装外部缓冲时为 null
+    private final byte[] bytes;
+
+    //只读视图，所有连接共享同一份内容
+    private final ByteBuffer shared;
+
+    public Frame(byte[] bytes) {
+        this.bytes = bytes;
+        this.shared = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    private Frame(ByteBuffer buffer) {
+        this.bytes = null;
+        this.shared = buffer.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * 包装 position 到 limit 之间的内容，不复制，例如消息日志中映射的文件区域
+     * 其中可以是连续的多帧，对端按顺序解析
+     *
+     * @param buffer
+     * @return
+     */
+    public static Frame wrap(ByteBuffer buffer) {
+        return new Frame(buffer);
+    }
+
+    /**
+     * 把多帧按顺序拼接成一帧，对端按顺序解析出的仍然是原来的多条消息
+     *
+     * @param frames
+     * @return
+     */
+    public static Frame concat(Collection<Frame> frames) {
+        int length = 0;
+        for (Frame frame : frames) {
+            length += frame.length();
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (Frame frame : frames) {
+            frame.buffer().get(bytes, offset, frame.length());
+            offset += frame.length();
+        }
+        return new Frame(bytes);
+    }
+
+    public int length() {
+        return shared.remaining();
+    }
+
+    /**
+     * 写出整帧，堆上的帧一次write
+     *
+     * @param outputStream
+     * @throws IOException
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        if (bytes != null) {
+            outputStream.write(bytes);
+            return;
+        }
+        //不在堆上，分块复制，不会把整个区域读进堆
+        ByteBuffer buffer = buffer();
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, buffer.remaining())];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            outputStream.write(chunk, 0, n);
+        }
+    }
+
+    /**
+     * 只读的缓冲，每次调用返回独立的 position/limit，内容不复制
+     *
+     * @return
+     */
+    public ByteBuffer buffer() {
+        return shared.duplicate();
+    }
+}
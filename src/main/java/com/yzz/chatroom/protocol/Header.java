@@ -10,6 +10,9 @@ import java.io.Serializable;
  */
 public class Header implements Serializable {
 
+    //固定为最初版本的值，保证与使用jdk序列化的老客户端兼容
+    private static final long serialVersionUID = 2677485269367158129L;
+
     //消息来源地
     private String host;
     //消息来源地的端口
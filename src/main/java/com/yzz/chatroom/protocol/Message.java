@@ -9,14 +9,39 @@ import java.io.Serializable;
  * @Since 0.0.1
  */
 public class Message implements Serializable {
+
+    //固定为最初版本的值，保证与使用jdk序列化的老客户端兼容
+    private static final long serialVersionUID = 8592266227469634624L;
+
     private Header header;
     private String message;
+    //消息类型 见 MessageType
+    private byte type;
+    //房间，null 表示默认房间
+    private String room;
+    //私聊的接收者昵称，null 表示发送到房间
+    private String recipient;
+    //服务端分配的全局序号，0 表示没有；JOIN/HELLO 中大于 0 表示请求回放该序号之后的消息
+    private long sequence;
+    //HELLO 之后服务端分配的会话 id，0 表示没有；客户端的紧凑帧只带会话 id 而不带 header
+    private int sessionId;
+    //集群中转发时的来源节点，只在节点之间的链路上出现，此时 sequence 是来源节点的转发序号
+    private String origin;
+    //WELCOME 中服务端分配的随机令牌，断线重连的 HELLO 带上它，服务端据此顶替还占着昵称的旧连接；0 表示没有
+    private long resumeToken;
 
     public Message(Header header, String message) {
         this.header = header;
         this.message = message;
     }
 
+    public Message(Header header, String message, byte type, String room) {
+        this.header = header;
+        this.message = message;
+        this.type = type;
+        this.room = room;
+    }
+
     public Header getHeader() {
         return header;
     }
@@ -33,9 +58,70 @@ public class Message implements Serializable {
         this.message = message;
     }
 
+    public byte getType() {
+        return type;
+    }
+
+    public void setType(byte type) {
+        this.type = type;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public void setRoom(String room) {
+        this.room = room;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public void setRecipient(String recipient) {
+        this.recipient = recipient;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public void setOrigin(String origin) {
+        this.origin = origin;
+    }
+
+    public long getResumeToken() {
+        return resumeToken;
+    }
+
+    public void setResumeToken(long resumeToken) {
+        this.resumeToken = resumeToken;
+    }
+
     @Override
     public String toString() {
         StringBuffer sb = new StringBuffer();
+        if (recipient != null) {
+            sb.append("[私聊 -> ").append(recipient).append("] ");
+        } else if (room != null) {
+            sb.append("[").append(room).append("] ");
+        }
         sb.append(header.getNickName())
                 .append("(")
                 .append(header.getHost())
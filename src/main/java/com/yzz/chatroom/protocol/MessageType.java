@@ -0,0 +1,49 @@
+package com.yzz.chatroom.protocol;
+
+/**
+ * describe: 消息类型
+ * date:2019/1/23
+ * 使用 byte 常量而不是枚举：Message 仍然兼容jdk序列化，老客户端没有这个类，反序列化枚举字段会失败；
+ * 老客户端发来的消息没有该字段，默认值 0 即为聊天消息
+ *
+ * @Since 0.0.2
+ */
+public final class MessageType {
+
+    //聊天消息，转发给房间内的所有人
+    public static final byte CHAT = 0;
+
+    //加入房间
+    public static final byte JOIN = 1;
+
+    //离开房间
+    public static final byte LEAVE = 2;
+
+    //列出所有房间
+    public static final byte LIST = 3;
+
+    //服务端发出的系统消息
+    public static final byte SYSTEM = 4;
+
+    //客户端建立连接后发送的第一条消息，登记昵称
+    public static final byte HELLO = 5;
+
+    //服务端接受 HELLO
+    public static final byte WELCOME = 6;
+
+    //服务端拒绝 HELLO（例如昵称重复），随后断开
+    public static final byte REJECT = 7;
+
+    //心跳，收到的一方回复 PONG；服务端对空闲的连接发送，客户端也可以主动发送
+    public static final byte PING = 8;
+
+    //心跳的回复
+    public static final byte PONG = 9;
+
+    private MessageType() {
+    }
+
+    public static boolean isValid(byte type) {
+        return type >= CHAT && type <= PONG;
+    }
+}
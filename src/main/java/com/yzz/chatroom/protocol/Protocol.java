@@ -1,6 +1,10 @@
 package com.yzz.chatroom.protocol;
 
+import com.yzz.chatroom.buffer.BufferPool;
+import com.yzz.chatroom.buffer.PooledBuffer;
+
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * describe:
@@ -36,4 +40,36 @@ public interface Protocol {
      * @throws IOException
      */
     Message parse(InputStream inputStream) throws IOException;
+
+    /**
+     * 编码，将消息对象转化成一帧完整的字节，适用于非阻塞的Channel写出
+     *
+     * @param message
+     * @return
+     * @throws IOException
+     */
+    byte[] encode(Message message) throws IOException;
+
+    /**
+     * 编码至从缓冲池借来的直接内存，适用于非阻塞的Channel写出，写出时不需要再复制到直接内存
+     * 默认编码成数组之后复制进去
+     *
+     * @param message
+     * @param pool
+     * @return 处于读模式，写出之后由调用方释放
+     * @throws IOException
+     */
+    default PooledBuffer encode(Message message, BufferPool pool) throws IOException {
+        return pool.copyOf(encode(message));
+    }
+
+    /**
+     * 解码，从缓冲区中解析出一条消息，适用于非阻塞的Channel读入
+     * buffer 处于读模式，解析成功则 position 移动到该帧之后；数据不完整时返回 null 且不移动 position
+     *
+     * @param buffer
+     * @return
+     * @throws IOException
+     */
+    Message decode(ByteBuffer buffer) throws IOException;
 }
@@ -0,0 +1,261 @@
+package com.yzz.chatroom.protocol;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * describe: 建立连接时协商使用的协议
+ * date:2019/1/20
+ * 1. 新客户端连接成功后立即发送 'B' 'C' 'R' version 四个字节，服务端回复相同格式的四个字节表示接受的版本，之后双方使用 {@link BinaryChartRoomProtocol}；
+ * version 的低4位是版本，高4位是客户端支持的能力（例如 {@link #CAPABILITY_DEFLATE}），服务端回复双方都支持的能力
+ * 2. 老客户端不会发送握手，第一个字节是jdk序列化的流头 0xAC，或者在超时时间内什么都不发送，
+ * 服务端开启兼容模式时对该连接继续使用 {@link BioChartRoomProtocol}，否则断开
+ *
+ * @Since 0.0.2
+ */
+public final class ProtocolNegotiator {
+
+    //握手魔数
+    private static final byte[] MAGIC = {'B', 'C', 'R'};
+
+    //握手的长度 魔数 + 版本
+    public static final int HANDSHAKE_LENGTH = 4;
+
+    //jdk序列化流头的第一个字节
+    private static final int SERIALIZATION_MAGIC = 0xAC;
+
+    //拒绝握手时回复的版本
+    private static final byte REJECTED = 0;
+
+    //版本字节中版本所占的位
+    private static final int VERSION_MASK = 0x0F;
+
+    //能力：大帧压缩，见 BinaryChartRoomProtocol#FLAG_DEFLATE
+    public static final int CAPABILITY_DEFLATE = 0x10;
+
+    //没有任何能力
+    public static final int NO_CAPABILITIES = 0;
+
+    private ProtocolNegotiator() {
+    }
+
+    /**
+     * 客户端发起协商，请求所有支持的能力
+     *
+     * @param socket
+     * @param timeout 等待服务端回复的超时时间 毫秒
+     * @return 协商成功的协议
+     * @throws IOException 服务端不支持或拒绝
+     */
+    public static Protocol connect(Socket socket, int timeout) throws IOException {
+        return connect(socket, timeout, CAPABILITY_DEFLATE);
+    }
+
+    /**
+     * 客户端发起协商
+     *
+     * @param socket
+     * @param timeout      等待服务端回复的超时时间 毫秒
+     * @param capabilities 请求的能力
+     * @return 协商成功的协议
+     * @throws IOException 服务端不支持或拒绝
+     */
+    public static Protocol connect(Socket socket, int timeout, int capabilities) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(handshake((byte) (BinaryChartRoomProtocol.VERSION | capabilities)));
+        out.flush();
+        int old = socket.getSoTimeout();
+        socket.setSoTimeout(timeout);
+        try {
+            byte[] reply = new byte[HANDSHAKE_LENGTH];
+            new DataInputStream(socket.getInputStream()).readFully(reply);
+            checkMagic(reply[0], reply[1], reply[2]);
+            if ((reply[3] & VERSION_MASK) != BinaryChartRoomProtocol.VERSION) {
+                throw new IOException("server rejected protocol version " + BinaryChartRoomProtocol.VERSION);
+            }
+            return protocol(reply[3] & capabilities);
+        } finally {
+            socket.setSoTimeout(old);
+        }
+    }
+
+    /**
+     * 客户端非阻塞式的协商，适用于 NIO：连接建立后首先发送的握手
+     *
+     * @param capabilities 请求的能力
+     * @return
+     */
+    public static byte[] request(int capabilities) {
+        return handshake((byte) (BinaryChartRoomProtocol.VERSION | capabilities));
+    }
+
+    /**
+     * 客户端非阻塞式的协商，适用于 NIO：解析服务端的回复
+     *
+     * @param buffer       读模式，协商成功时消费掉回复的字节
+     * @param capabilities 请求的能力
+     * @return 数据不足时返回 null
+     * @throws IOException 服务端不支持或拒绝
+     */
+    public static Protocol connected(ByteBuffer buffer, int capabilities) throws IOException {
+        if (buffer.remaining() < HANDSHAKE_LENGTH) {
+            return null;
+        }
+        byte[] reply = new byte[HANDSHAKE_LENGTH];
+        buffer.get(reply);
+        checkMagic(reply[0], reply[1], reply[2]);
+        if ((reply[3] & VERSION_MASK) != BinaryChartRoomProtocol.VERSION) {
+            throw new IOException("server rejected protocol version " + BinaryChartRoomProtocol.VERSION);
+        }
+        return protocol(reply[3] & capabilities);
+    }
+
+    /**
+     * 服务端阻塞式的协商，适用于 BIO
+     *
+     * @param socket
+     * @param in             该连接的输入流，需要能回退一个字节
+     * @param timeout        等待客户端握手的超时时间 毫秒，超时视为老客户端
+     * @param legacyAllowed  是否兼容jdk序列化的老客户端
+     * @return
+     * @throws IOException
+     */
+    public static Protocol accept(Socket socket, PushbackInputStream in, int timeout, boolean legacyAllowed) throws IOException {
+        return accept(socket, in, timeout, legacyAllowed, NO_CAPABILITIES);
+    }
+
+    /**
+     * 服务端阻塞式的协商，适用于 BIO
+     *
+     * @param socket
+     * @param in            该连接的输入流，需要能回退一个字节
+     * @param timeout       等待客户端握手的超时时间 毫秒，超时视为老客户端
+     * @param legacyAllowed 是否兼容jdk序列化的老客户端
+     * @param capabilities  服务端允许的能力
+     * @return
+     * @throws IOException
+     */
+    public static Protocol accept(Socket socket, PushbackInputStream in, int timeout, boolean legacyAllowed, int capabilities) throws IOException {
+        int old = socket.getSoTimeout();
+        int first;
+        socket.setSoTimeout(timeout);
+        try {
+            first = in.read();
+        } catch (SocketTimeoutException e) {
+            //老客户端只有在发言时才会写数据
+            return legacy(legacyAllowed);
+        } finally {
+            socket.setSoTimeout(old);
+        }
+        if (first < 0) {
+            throw new EOFException("connection closed before handshake");
+        }
+        if (first == SERIALIZATION_MAGIC) {
+            in.unread(first);
+            return legacy(legacyAllowed);
+        }
+        byte[] rest = new byte[HANDSHAKE_LENGTH - 1];
+        new DataInputStream(in).readFully(rest);
+        OutputStream out = socket.getOutputStream();
+        return reply(out, (byte) first, rest[0], rest[1], rest[2], capabilities);
+    }
+
+    /**
+     * 服务端非阻塞式的协商，适用于 NIO
+     *
+     * @param buffer        读模式，协商成功时消费掉握手的字节，老客户端的数据不消费
+     * @param reply         握手成功时需要回复客户端的字节写入这里
+     * @param legacyAllowed 是否兼容jdk序列化的老客户端
+     * @return 数据不足时返回 null
+     * @throws IOException
+     */
+    public static Protocol accept(ByteBuffer buffer, OutputStream reply, boolean legacyAllowed) throws IOException {
+        return accept(buffer, reply, legacyAllowed, NO_CAPABILITIES);
+    }
+
+    /**
+     * 服务端非阻塞式的协商，适用于 NIO
+     *
+     * @param buffer        读模式，协商成功时消费掉握手的字节，老客户端的数据不消费
+     * @param reply         握手成功时需要回复客户端的字节写入这里
+     * @param legacyAllowed 是否兼容jdk序列化的老客户端
+     * @param capabilities  服务端允许的能力
+     * @return 数据不足时返回 null
+     * @throws IOException
+     */
+    public static Protocol accept(ByteBuffer buffer, OutputStream reply, boolean legacyAllowed, int capabilities) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        int p = buffer.position();
+        if ((buffer.get(p) & 0xFF) == SERIALIZATION_MAGIC) {
+            return legacy(legacyAllowed);
+        }
+        if (buffer.remaining() < HANDSHAKE_LENGTH) {
+            return null;
+        }
+        buffer.position(p + HANDSHAKE_LENGTH);
+        return reply(reply, buffer.get(p), buffer.get(p + 1), buffer.get(p + 2), buffer.get(p + 3), capabilities);
+    }
+
+    /**
+     * 客户端迟迟没有发送握手，视为老客户端
+     *
+     * @param legacyAllowed
+     * @return
+     * @throws IOException
+     */
+    public static Protocol timeout(boolean legacyAllowed) throws IOException {
+        return legacy(legacyAllowed);
+    }
+
+    /**
+     * 是否是jdk序列化的老协议，老客户端不会发送 HELLO
+     *
+     * @param protocol
+     * @return
+     */
+    public static boolean isLegacy(Protocol protocol) {
+        return protocol instanceof BioChartRoomProtocol || protocol instanceof BioChartRoomProtocolSupper;
+    }
+
+    private static Protocol reply(OutputStream out, byte m0, byte m1, byte m2, byte version, int capabilities) throws IOException {
+        checkMagic(m0, m1, m2);
+        if ((version & VERSION_MASK) != BinaryChartRoomProtocol.VERSION) {
+            out.write(handshake(REJECTED));
+            out.flush();
+            throw new IOException("unsupported protocol version " + (version & VERSION_MASK));
+        }
+        //只回复双方都支持的能力
+        int accepted = version & ~VERSION_MASK & capabilities;
+        out.write(handshake((byte) (BinaryChartRoomProtocol.VERSION | accepted)));
+        out.flush();
+        return protocol(accepted);
+    }
+
+    private static Protocol protocol(int capabilities) {
+        if ((capabilities & CAPABILITY_DEFLATE) != 0) {
+            return BinaryChartRoomProtocol.compressed();
+        }
+        return BinaryChartRoomProtocol.getInstance();
+    }
+
+    private static Protocol legacy(boolean legacyAllowed) throws IOException {
+        if (!legacyAllowed) {
+            throw new IOException("legacy serialized protocol is disabled");
+        }
+        return BioChartRoomProtocol.getInstance();
+    }
+
+    private static void checkMagic(byte m0, byte m1, byte m2) throws IOException {
+        if (m0 != MAGIC[0] || m1 != MAGIC[1] || m2 != MAGIC[2]) {
+            throw new StreamCorruptedException("bad handshake");
+        }
+    }
+
+    private static byte[] handshake(byte version) {
+        return new byte[]{MAGIC[0], MAGIC[1], MAGIC[2], version};
+    }
+}
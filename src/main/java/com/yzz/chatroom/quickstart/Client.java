@@ -15,7 +15,8 @@ import java.util.logging.Logger;
  * @Since 0.0.1
  */
 public class Client {
-    private final static String MSG = "please input msg: \n 1. -a=xxx 设置address \n 2. -p=xxx 设置端口号 \n 3. -n=xxx 设置nickName ";
+    private final static String MSG = "please input msg: \n 1. -a=xxx 设置address \n 2. -p=xxx 设置端口号 \n 3. -n=xxx 设置nickName \n 4. -r=xxx 回放最近的消息条数 ";
+    private final static String COMMANDS = "commands: \n 1. /join=xxx 加入房间并切换过去 \n 2. /leave=xxx 离开房间 \n 3. /list 列出所有房间 \n 4. /to=xxx:yyy 私聊 ";
     private static Logger logger = Logger.getLogger("bio-chatroom-client");
     public static final String NICK_NAME = "尹忠政";
 
@@ -26,9 +27,29 @@ public class Client {
             Scanner sc = new Scanner(System.in);
             BioClient bioClient = init(args);
             bioClient.listen12n(message -> System.out.println(message.toString()));
+            logger.log(Level.WARNING, COMMANDS);
+            //当前发言的房间，null 为默认房间
+            String room = null;
             while (true) {
                 String content = sc.next();
-                bioClient.sendMsg(content);
+                if (content.startsWith("/join=")) {
+                    room = content.replaceAll("/join=", "");
+                    bioClient.join(room);
+                } else if (content.startsWith("/leave=")) {
+                    String left = content.replaceAll("/leave=", "");
+                    bioClient.leave(left);
+                    if (left.equals(room)) {
+                        room = null;
+                    }
+                } else if (content.equals("/list")) {
+                    bioClient.listRooms();
+                } else if (content.startsWith("/to=") && content.indexOf(':') > 0) {
+                    String to = content.replaceFirst("/to=", "");
+                    int split = to.indexOf(':');
+                    bioClient.sendTo(to.substring(0, split), to.substring(split + 1));
+                } else {
+                    bioClient.sendMsg(room, content);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -44,6 +65,9 @@ public class Client {
             initArguement(a, argument);
         }
         argument.check();
+        if (argument.getReplay() > 0) {
+            return BioClient.replayLast(argument.getPort(), argument.getAddress(), argument.getNickName(), argument.getReplay());
+        }
         return new BioClient(argument.getPort(), argument.getAddress(), argument.getNickName());
     }
 
@@ -65,12 +89,22 @@ public class Client {
             argument.setNickName(arg.replaceAll("-n=", ""));
             return;
         }
+        if (arg.startsWith("-r")) {
+            try {
+                argument.setReplay(Integer.valueOf(arg.replaceAll("-r=", "")));
+            } catch (Exception e) {
+                logger.log(Level.WARNING, e.getMessage());
+                logger.log(Level.WARNING, MSG);
+            }
+            return;
+        }
     }
 
     static class Argument {
         private String address;
         private int port;
         private String nickName;
+        private int replay;
 
         public String getAddress() {
             return address;
@@ -96,6 +130,14 @@ public class Client {
             this.nickName = nickName;
         }
 
+        public int getReplay() {
+            return replay;
+        }
+
+        public void setReplay(int replay) {
+            this.replay = replay;
+        }
+
         public void check() {
             if (null == address || address.equals("")) {
                 address = BioServer.DEFAULT_LOCATION;
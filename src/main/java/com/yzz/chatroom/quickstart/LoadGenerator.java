@@ -0,0 +1,313 @@
+package com.yzz.chatroom.quickstart;
+
+import com.yzz.chatroom.client.BioClient;
+import com.yzz.chatroom.metrics.LatencyHistogram;
+import com.yzz.chatroom.protocol.Message;
+import com.yzz.chatroom.protocol.MessageType;
+import com.yzz.chatroom.server.BioServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * describe: 压测工具，建立大量连接，按固定速率发言，统计端到端的转发延迟
+ * date:2019/1/26
+ * 1. 每条消息的内容以 本次压测的 id + 计划发送的时间 开头，任何一个连接收到后用当前时间减去计划发送的时间得到延迟；
+ * 使用计划时间而不是实际发送时间，发送被阻塞时排队的时间也会计入延迟
+ * 2. 发送和接收在同一个进程内，System.nanoTime() 可以直接相减，因此只能在本机压测
+ * 3. 每秒打印一次该秒的吞吐和延迟，结束时打印测量阶段的汇总，预热阶段的消息不计入
+ * <p>
+ * java -cp bio-chartroom.jar com.yzz.chatroom.quickstart.LoadGenerator -c=1000 -r=2000 -s=256 -d=60
+ *
+ * @Since 0.0.2
+ */
+public class LoadGenerator {
+    private final static String MSG = "please input msg: \n 1. -a=xxx 设置address \n 2. -p=xxx 设置端口号 \n 3. -c=xxx 连接数，默认100 \n 4. -r=xxx 每秒发送的消息数，默认1000 "
+            + "\n 5. -s=xxx 消息大小，默认64字节 \n 6. -d=xxx 测量时长，秒，默认30 \n 7. -w=xxx 预热时长，秒，默认5 \n 8. -g=xxx 房间数，连接平均分到各房间，默认1 "
+            + "\n 9. -t=xxx 发送线程数，默认1 \n 10. -l 使用jdk序列化的老协议 ";
+    private static Logger logger = Logger.getLogger("bio-chatroom-load");
+
+    //消息内容中各字段的分隔符
+    private static final char SEPARATOR = '|';
+
+    //压测结束后等待在途消息的时间，毫秒
+    private static final long DRAIN_MILLIS = 2000;
+
+    //本次压测的 id，区分其他压测进程和普通用户的消息
+    private final String runId = Long.toHexString(new Random().nextLong() & 0xFFFFFFFFL);
+
+    private final Argument argument;
+
+    private final List<BioClient> clients = new ArrayList<>();
+
+    //测量阶段的总直方图
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    //当前一秒的直方图，每次打印后换成新的
+    private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(total.copyLayout());
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    //测量开始的时间，之前计划发送的消息不计入
+    private volatile long measureStart;
+
+    private volatile boolean running = true;
+
+    private LoadGenerator(Argument argument) {
+        this.argument = argument;
+    }
+
+    public static void main(String[] args) {
+        logger.log(Level.WARNING, MSG);
+        Argument argument = new Argument();
+        for (String a : args) {
+            initArgument(a, argument);
+        }
+        argument.check();
+        //每个连接都会打印连接成功，压测时只保留警告
+        Logger.getLogger(BioClient.class.getName()).setLevel(Level.WARNING);
+        try {
+            new LoadGenerator(argument).run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //接收线程不是守护线程
+        System.exit(0);
+    }
+
+    private void run() throws IOException, InterruptedException {
+        connect();
+        long warmup = TimeUnit.SECONDS.toNanos(argument.warmup);
+        long duration = TimeUnit.SECONDS.toNanos(argument.duration);
+        long start = System.nanoTime();
+        measureStart = start + warmup;
+        long end = measureStart + duration;
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < argument.threads; t++) {
+            Thread sender = new Thread(sender(t, start, end), "load-sender-" + t);
+            sender.start();
+            senders.add(sender);
+        }
+        logger.log(Level.WARNING, "预热 " + argument.warmup + "s，测量 " + argument.duration + "s");
+        long sentBefore = 0;
+        long receivedBefore = 0;
+        for (int second = 1; System.nanoTime() < end; second++) {
+            long next = start + TimeUnit.SECONDS.toNanos(second);
+            LockSupport.parkNanos(next - System.nanoTime());
+            LatencyHistogram last = interval.getAndSet(total.copyLayout());
+            long s = sent.get();
+            long r = received.get();
+            System.out.println(String.format("%4ds %s sent=%d/s received=%d/s %s", second,
+                    next <= measureStart ? "warmup " : "measure", s - sentBefore, r - receivedBefore, last.summary(TimeUnit.NANOSECONDS)));
+            sentBefore = s;
+            receivedBefore = r;
+        }
+        running = false;
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        //等待在途的消息
+        Thread.sleep(DRAIN_MILLIS);
+        report();
+    }
+
+    /**
+     * 建立所有连接，按房间分组，加入房间
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void connect() throws IOException, InterruptedException {
+        long begin = System.nanoTime();
+        for (int i = 0; i < argument.connections; i++) {
+            BioClient client = new BioClient(argument.port, argument.address, "load-" + runId + "-" + i, argument.legacy);
+            client.listen12n(this::onMessage);
+            String room = room(i);
+            if (room != null) {
+                client.join(room);
+            }
+            clients.add(client);
+            if ((i + 1) % 500 == 0) {
+                logger.log(Level.WARNING, "已建立 " + (i + 1) + " 个连接");
+            }
+        }
+        logger.log(Level.WARNING, "已建立 " + clients.size() + " 个连接，耗时 " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + "ms");
+        //等待加入房间完成
+        Thread.sleep(1000);
+    }
+
+    /**
+     * 发送线程，负责下标为 t, t + threads, ... 的连接，按计划时间匀速发送，落后时立即补发
+     *
+     * @param t
+     * @param start
+     * @param end
+     * @return
+     */
+    private Runnable sender(int t, long start, long end) {
+        return () -> {
+            //每个线程分到的速率
+            double rate = (double) argument.rate / argument.threads;
+            long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            StringBuilder body = new StringBuilder(argument.size + 32);
+            int index = t;
+            for (long i = 0; running; i++) {
+                long intended = start + i * intervalNanos + t * intervalNanos / argument.threads;
+                if (intended >= end) {
+                    return;
+                }
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                BioClient client = clients.get(index);
+                try {
+                    client.sendMsg(room(index), body(body, intended));
+                    sent.incrementAndGet();
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+                index += argument.threads;
+                if (index >= clients.size()) {
+                    index = t;
+                }
+            }
+        };
+    }
+
+    /**
+     * 内容：runId|计划发送时间|填充
+     *
+     * @param body
+     * @param intended
+     * @return
+     */
+    private String body(StringBuilder body, long intended) {
+        body.setLength(0);
+        body.append(runId).append(SEPARATOR).append(intended).append(SEPARATOR);
+        while (body.length() < argument.size) {
+            body.append('x');
+        }
+        return body.toString();
+    }
+
+    /**
+     * 接收回调，只统计本次压测发出的聊天消息
+     *
+     * @param message
+     */
+    private void onMessage(Message message) {
+        long now = System.nanoTime();
+        String body = message.getMessage();
+        if (message.getType() != MessageType.CHAT || body == null || !body.startsWith(runId)
+                || body.length() <= runId.length() || body.charAt(runId.length()) != SEPARATOR) {
+            return;
+        }
+        int end = body.indexOf(SEPARATOR, runId.length() + 1);
+        if (end < 0) {
+            return;
+        }
+        long intended = Long.parseLong(body.substring(runId.length() + 1, end));
+        received.incrementAndGet();
+        long latency = now - intended;
+        interval.get().record(latency);
+        if (intended >= measureStart) {
+            total.record(latency);
+        }
+    }
+
+    private void report() {
+        int perRoom = (argument.connections + argument.rooms - 1) / argument.rooms;
+        double seconds = argument.duration;
+        StringBuilder sb = new StringBuilder("\n========== 压测结果 ==========\n");
+        sb.append(String.format("连接数 %d，房间数 %d，消息大小 %d，目标速率 %d/s，测量 %ds\n",
+                argument.connections, argument.rooms, argument.size, argument.rate, argument.duration));
+        sb.append(String.format("发送 %d 条，失败 %d 条，接收 %d 条（每条约转发给 %d 个连接）\n",
+                sent.get(), errors.get(), received.get(), perRoom));
+        sb.append(String.format("测量阶段吞吐：发送 %.0f/s，接收 %.0f/s\n",
+                total.count() / seconds / perRoom, total.count() / seconds));
+        sb.append("端到端延迟：").append(total.summary(TimeUnit.NANOSECONDS)).append('\n');
+        sb.append("p99.99=").append(String.format("%.1fus", total.percentile(99.99) / 1000.0));
+        System.out.println(sb);
+    }
+
+    /**
+     * 连接所在的房间，只有一个房间时使用默认房间
+     *
+     * @param index
+     * @return
+     */
+    private String room(int index) {
+        return argument.rooms <= 1 ? null : "load-" + runId + "-room-" + index % argument.rooms;
+    }
+
+    public static void initArgument(String arg, Argument argument) {
+        try {
+            if (arg.startsWith("-a")) {
+                argument.address = arg.replaceAll("-a=", "");
+            } else if (arg.startsWith("-p")) {
+                argument.port = Integer.valueOf(arg.replaceAll("-p=", ""));
+            } else if (arg.startsWith("-c")) {
+                argument.connections = Integer.valueOf(arg.replaceAll("-c=", ""));
+            } else if (arg.startsWith("-r")) {
+                argument.rate = Integer.valueOf(arg.replaceAll("-r=", ""));
+            } else if (arg.startsWith("-s")) {
+                argument.size = Integer.valueOf(arg.replaceAll("-s=", ""));
+            } else if (arg.startsWith("-d")) {
+                argument.duration = Integer.valueOf(arg.replaceAll("-d=", ""));
+            } else if (arg.startsWith("-w")) {
+                argument.warmup = Integer.valueOf(arg.replaceAll("-w=", ""));
+            } else if (arg.startsWith("-g")) {
+                argument.rooms = Integer.valueOf(arg.replaceAll("-g=", ""));
+            } else if (arg.startsWith("-t")) {
+                argument.threads = Integer.valueOf(arg.replaceAll("-t=", ""));
+            } else if (arg.equals("-l")) {
+                argument.legacy = true;
+            }
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, e.getMessage());
+            logger.log(Level.WARNING, MSG);
+        }
+    }
+
+    static class Argument {
+        private String address;
+        private int port;
+        private int connections = 100;
+        private int rate = 1000;
+        private int size = 64;
+        private int duration = 30;
+        private int warmup = 5;
+        private int rooms = 1;
+        private int threads = 1;
+        private boolean legacy;
+
+        public void check() {
+            if (null == address || address.equals("")) {
+                address = BioServer.DEFAULT_LOCATION;
+            }
+            if (port == 0) {
+                port = BioServer.DEFAULT_PORT;
+            }
+            if (connections < 1 || rate < 1 || duration < 1 || warmup < 0 || rooms < 1 || size < 0) {
+                throw new IllegalArgumentException("connections, rate, duration and rooms must be positive");
+            }
+            //每个发送线程至少负责一个连接
+            threads = Math.max(1, Math.min(threads, connections));
+        }
+    }
+}
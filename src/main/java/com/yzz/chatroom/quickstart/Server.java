@@ -20,6 +20,7 @@ public class Server {
         try {
             logger.log(Level.WARNING, MSG);
             BioServer bioServer = BioServer.newServerByPort(args.length == 0 ? BioServer.DEFAULT_PORT : Integer.valueOf(args[0].replaceAll("-p=","")));
+            bioServer.registerMBean();
             bioServer.listen();
         } catch (Exception e) {
             e.printStackTrace();
@@ -1,9 +1,18 @@
 package com.yzz.chatroom.quickstart;
 
+import com.yzz.chatroom.cluster.ClusterNode;
+import com.yzz.chatroom.journal.Journal;
+import com.yzz.chatroom.server.AbstractBioServer;
 import com.yzz.chatroom.server.BioServer;
 import com.yzz.chatroom.server.BioServerSupper;
+import com.yzz.chatroom.server.NioServer;
+import com.yzz.chatroom.server.RateLimitAction;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -13,13 +22,70 @@ import java.util.logging.Logger;
  * @Since 0.0.1
  */
 public class SuperServer {
-    private final static String MSG = "please input msg: \n 1. -p=xxx 设置端口号 ";
+    private final static String MSG = "please input msg: \n 1. -p=xxx 设置端口号 \n 2. -m=supper|nio 设置服务端实现，默认supper；supper 轮询阻塞连接，空闲后第一条消息最多多等 2ms，对端关闭约 max(100ms, 每个读循环的空闲连接数 x 1ms) 才被发现，连接多时用 nio \n 3. -j=xxx 开启消息日志并设置目录，-j=memory 只保留在内存中，用于客户端重连后补发，默认不开启 \n 4. -s=xxx 每隔多少秒输出一次运行指标 \n 5. -v 记录每条消息的转发 \n 6. -i=xxx -c=xxx -k=host:port,host:port 集群节点 id、集群端口和其他节点的集群端口 \n 7. -r=xxx 每个客户端每秒最多发送的消息数 \n 8. -a=xxx 每秒最多接受的新连接数 ";
     private static Logger logger = Logger.getLogger("bio-chatroom-supper--client");
 
     public static void main(String[] args) {
-        BioServerSupper serverSupper = null;
+        AbstractBioServer serverSupper = null;
         try {
-            serverSupper = BioServerSupper.newServerByPort(args.length == 0 ? BioServer.DEFAULT_PORT : Integer.valueOf(args[0].replaceAll("-p=", "")));
+            logger.log(Level.WARNING, MSG);
+            int port = BioServer.DEFAULT_PORT;
+            String mode = "supper";
+            String journal = null;
+            long stats = 0;
+            boolean tracing = false;
+            String nodeId = null;
+            int clusterPort = 0;
+            String peers = null;
+            int messageRate = 0;
+            int acceptRate = 0;
+            for (String arg : args) {
+                if (arg.startsWith("-p")) {
+                    port = Integer.valueOf(arg.replaceAll("-p=", ""));
+                } else if (arg.startsWith("-m")) {
+                    mode = arg.replaceAll("-m=", "");
+                } else if (arg.startsWith("-j")) {
+                    journal = arg.replaceAll("-j=", "");
+                } else if (arg.startsWith("-s")) {
+                    stats = Long.valueOf(arg.replaceAll("-s=", ""));
+                } else if (arg.equals("-v")) {
+                    tracing = true;
+                } else if (arg.startsWith("-i")) {
+                    nodeId = arg.replaceAll("-i=", "");
+                } else if (arg.startsWith("-c")) {
+                    clusterPort = Integer.valueOf(arg.replaceAll("-c=", ""));
+                } else if (arg.startsWith("-k")) {
+                    peers = arg.replaceAll("-k=", "");
+                } else if (arg.startsWith("-r")) {
+                    messageRate = Integer.valueOf(arg.replaceAll("-r=", ""));
+                } else if (arg.startsWith("-a")) {
+                    acceptRate = Integer.valueOf(arg.replaceAll("-a=", ""));
+                }
+            }
+            if ("nio".equals(mode)) {
+                serverSupper = NioServer.newServerByPort(port);
+            } else {
+                serverSupper = BioServerSupper.newServerByPort(port);
+            }
+            if (journal != null) {
+                serverSupper.setJournal("memory".equals(journal)
+                        ? Journal.inMemory(AbstractBioServer.DEFAULT_JOURNAL_SEGMENT_SIZE, AbstractBioServer.DEFAULT_JOURNAL_SEGMENTS)
+                        : Journal.open(new File(journal)));
+            }
+            if (nodeId != null) {
+                serverSupper.setCluster(ClusterNode.create(nodeId, new InetSocketAddress(BioServer.DEFAULT_LOCATION, clusterPort), ClusterNode.parsePeers(peers)));
+            }
+            if (messageRate > 0) {
+                //允许一秒的突发，超过的暂停读取该客户端
+                serverSupper.setMessageRateLimit(messageRate, messageRate, RateLimitAction.DELAY);
+            }
+            if (acceptRate > 0) {
+                serverSupper.setAcceptRateLimit(acceptRate, acceptRate);
+            }
+            //运行指标在 jconsole 的 com.yzz.chatroom 下
+            serverSupper.setTracing(tracing);
+            serverSupper.registerMBean();
+            serverSupper.metrics().dumpEvery(stats, TimeUnit.SECONDS, logger);
             serverSupper.listen();
         } catch (IOException e) {
             e.printStackTrace();
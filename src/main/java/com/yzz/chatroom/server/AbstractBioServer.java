@@ -1,12 +1,27 @@
 package com.yzz.chatroom.server;
 
+import com.yzz.chatroom.cluster.ClusterNode;
+import com.yzz.chatroom.journal.Journal;
+import com.yzz.chatroom.log.EventLog;
+import com.yzz.chatroom.metrics.ServerMetrics;
+import com.yzz.chatroom.protocol.EncodedMessage;
+import com.yzz.chatroom.protocol.Frame;
+import com.yzz.chatroom.protocol.Header;
 import com.yzz.chatroom.protocol.Message;
+import com.yzz.chatroom.protocol.MessageType;
+import com.yzz.chatroom.protocol.ProtocolNegotiator;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,6 +41,41 @@ public abstract class AbstractBioServer {
     //客户端连接(socket连接)的队列最大长度
     public static final int DEFAULT_BACKLOG = 50;
 
+    //等待客户端握手的默认超时时间，毫秒；第一个字节到达时就能区分新老客户端，超时只针对什么都不发的连接，
+    //需要比客户端等待握手回复的时间（BioClient.HANDSHAKE_TIMEOUT 5 秒）长，否则握手晚到的新客户端会被当成老客户端断开
+    public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10 * 1000;
+
+    //每个客户端发送队列默认最多积压的帧数
+    public static final int DEFAULT_OUTBOUND_CAPACITY = 1024;
+
+    //系统消息的发送者昵称
+    public static final String SYSTEM_NICK_NAME = "系统";
+
+    //分配断线重连的令牌，不能被其他客户端猜到
+    private static final SecureRandom RESUME_TOKENS = new SecureRandom();
+
+    //COALESCE 策略下默认最多合并的字节数
+    public static final int DEFAULT_MAX_COALESCED_BYTES = 4 * 1024 * 1024;
+
+    //合并写时默认一次最多写出的字节数
+    public static final int DEFAULT_FLUSH_BYTES = 64 * 1024;
+
+    //默认空闲多久发送心跳，毫秒
+    public static final long DEFAULT_PING_INTERVAL = 30 * 1000;
+
+    //默认空闲多久断开，毫秒
+    public static final long DEFAULT_IDLE_TIMEOUT = 90 * 1000;
+
+    //建议的内存消息日志：每个房间保留最近的分段，足够补发一次普通断线重连的缺口；分段大小和每个房间的分段数
+    public static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 64 * 1024;
+
+    public static final int DEFAULT_JOURNAL_SEGMENTS = 2;
+
+    //空闲检测时间轮的桶数和刻度
+    private static final int IDLE_WHEEL_TICKS = 512;
+
+    private static final long IDLE_WHEEL_TICK = TimeUnit.MILLISECONDS.toNanos(100);
+
     //服务端口
     protected final int port;
 
@@ -41,20 +91,949 @@ public abstract class AbstractBioServer {
     //Socket服务监听地址包装类
     protected InetAddress inetAddress;
 
-    //这是一个线程安全的非阻塞的队列
-    protected volatile  ConcurrentLinkedQueue<Socket> clientSockets = new ConcurrentLinkedQueue<>();
+    //在线会话，按 Socket 或会话 id 常数时间查找，在线数不需要遍历
+    protected final SessionRegistry sessions = new SessionRegistry();
+
+    //房间 -> 成员
+    protected final RoomRegistry rooms;
+
+    //昵称 -> 会话，私聊时 O(1) 找到接收者
+    protected final Map<String, Session> nicknames = new ConcurrentHashMap<>();
+
+    //兼容模式，接受使用jdk序列化的老客户端
+    protected volatile boolean legacyCompatible = true;
+
+    //握手时允许客户端开启的能力
+    protected volatile int capabilities = ProtocolNegotiator.CAPABILITY_DEFLATE;
+
+    //等待客户端握手的超时时间，毫秒
+    protected volatile int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+
+    //每个客户端发送队列最多积压的帧数
+    protected volatile int outboundCapacity = DEFAULT_OUTBOUND_CAPACITY;
+
+    //慢消费者的处理策略
+    protected volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+
+    //COALESCE 策略下最多合并的字节数
+    protected volatile int maxCoalescedBytes = DEFAULT_MAX_COALESCED_BYTES;
+
+    //消息日志，默认没有；null 表示不分配序号、不回放
+    protected volatile Journal journal;
+
+    //所属的集群节点，null 表示单机
+    protected volatile ClusterNode cluster;
+
+    //执行写任务的线程池，BIO 在构造中设置；null 表示由子类自己写出（NIO）
+    protected Executor writerPool;
+
+    //合并写：一次最多写出的字节数，0 表示不合并，每帧一次 write
+    protected volatile int flushBytes = DEFAULT_FLUSH_BYTES;
+
+    //合并写：连续写出时等待后续帧的最长时间，纳秒，0 表示只合并已经在队列中的帧
+    protected volatile long flushWindowNanos;
+
+    //每个客户端的限速：每秒消息数、突发条数、超限的处理，0 表示不限
+    protected volatile int messagesPerSecond;
+
+    protected volatile int messageBurst;
+
+    protected volatile RateLimitAction messageLimitAction = RateLimitAction.DELAY;
+
+    //每个客户端的限速：每秒字节数、突发字节数、超限的处理，0 表示不限
+    protected volatile int bytesPerSecond;
+
+    protected volatile int byteBurst;
+
+    protected volatile RateLimitAction byteLimitAction = RateLimitAction.DELAY;
+
+    //每秒最多接受的新连接，所有连接共享，null 表示不限
+    protected volatile TokenBucket acceptBucket;
+
+    //空闲多久发送心跳、多久断开，纳秒，0 表示关闭空闲检测
+    protected volatile long pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_PING_INTERVAL);
+
+    protected volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT);
+
+    //所有完成协商的新客户端的空闲检测，BIO 由单独的线程推进，NIO 由 selector 线程推进
+    protected final TimerWheel<Session> idleWheel = new TimerWheel<>(IDLE_WHEEL_TICKS, IDLE_WHEEL_TICK, this::checkIdle);
 
     //日志
     protected Logger logger = Logger.getLogger(this.getClass().getName());
 
+    //运行指标
+    protected final ServerMetrics metrics = new ServerMetrics();
+
+    //连接、房间等事件和每条消息的日志，异步写出，消息事件抽样限速
+    protected final EventLog events = EventLog.getInstance();
+
     protected AbstractBioServer(int port, int backlog, String location) throws IOException {
+        this(port, backlog, location, 1);
+    }
+
+    /**
+     * @param port
+     * @param backlog
+     * @param location
+     * @param shards   写分片数，房间成员按此分区
+     * @throws IOException
+     */
+    protected AbstractBioServer(int port, int backlog, String location, int shards) throws IOException {
+        this.rooms = new RoomRegistry(shards, this::roomEmptied);
         this.port = port;
         this.backlog = backlog;
         this.location = location;
         inetAddress = InetAddress.getByName(location);
-        //创建一个端口监听对象，监听客户端连接，此刻服务端已经就绪
+        bind();
+        metrics.setOutboundQueue(this::outboundFrames);
+        logger.log(Level.INFO, this.getClass().getSimpleName() + " has started in " + location + " listening port " + port);
+    }
+
+    /**
+     * 绑定监听端口，此刻服务端已经就绪
+     * 注意：该方法在构造中调用，子类重写时不能依赖子类自身的字段初始化
+     *
+     * @throws IOException
+     */
+    protected void bind() throws IOException {
+        //创建一个端口监听对象，监听客户端连接
         serverSocket = new ServerSocket(port, backlog, inetAddress);
-        logger.log(Level.INFO, "BIO server has started in " + location + " listening port " + port);
+    }
+
+    /**
+     * 是否接受使用jdk序列化的老客户端，灰度期间保持开启
+     *
+     * @param legacyCompatible
+     */
+    public void setLegacyCompatible(boolean legacyCompatible) {
+        this.legacyCompatible = legacyCompatible;
+    }
+
+    /**
+     * 是否允许客户端开启大帧压缩，之后建立的连接生效；压缩阈值见 {@link com.yzz.chatroom.protocol.BinaryChartRoomProtocol#setCompressionThreshold(int)}
+     *
+     * @param compression
+     */
+    public void setCompression(boolean compression) {
+        this.capabilities = compression ? ProtocolNegotiator.CAPABILITY_DEFLATE : ProtocolNegotiator.NO_CAPABILITIES;
+    }
+
+    /**
+     * 设置等待客户端握手的超时时间，超时没有握手的客户端视为老客户端
+     * 老客户端发言时第一个字节就能识别，不需要等待超时；只有一直不发言的老客户端要等到超时之后才开始收到消息，
+     * 不要设置得比客户端等待握手回复的时间短
+     *
+     * @param handshakeTimeout 毫秒
+     */
+    public void setHandshakeTimeout(int handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    /**
+     * 设置每个客户端发送队列最多积压的帧数，之后建立的连接生效
+     *
+     * @param outboundCapacity
+     */
+    public void setOutboundCapacity(int outboundCapacity) {
+        this.outboundCapacity = outboundCapacity;
+    }
+
+    /**
+     * 设置慢消费者的处理策略，之后建立的连接生效
+     *
+     * @param slowConsumerPolicy
+     * @param maxCoalescedBytes  COALESCE 策略下最多合并的字节数
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy, int maxCoalescedBytes) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.maxCoalescedBytes = maxCoalescedBytes;
+    }
+
+    /**
+     * 设置合并写，之后建立的连接生效
+     * 写线程（NIO 为 selector 线程）把发送队列中已经积压的帧合并为一次 write，达到 flushBytes 立即写出；
+     * flushWindow 大于 0 时，如果距离上次写出不到一个窗口（正在连续写出），再最多等待一个窗口收集后续的帧。
+     * 流量稀疏时距离上次写出已经超过窗口，不等待，所以不增加延迟
+     *
+     * @param flushBytes        一次最多写出的字节数，0 表示关闭合并写
+     * @param flushWindowMicros 等待后续帧的窗口，微秒
+     */
+    public void setWriteCoalescing(int flushBytes, long flushWindowMicros) {
+        if (flushBytes < 0 || flushWindowMicros < 0) {
+            throw new IllegalArgumentException("flushBytes and flushWindowMicros must not be negative");
+        }
+        this.flushBytes = flushBytes;
+        this.flushWindowNanos = TimeUnit.MICROSECONDS.toNanos(flushWindowMicros);
+    }
+
+    /**
+     * 设置每个客户端每秒最多发送的消息数，之后建立的连接生效
+     * 读到一条消息之后、转发之前检查，超限按 action 处理：DELAY 暂停读取该连接，DROP 丢弃，DISCONNECT 断开
+     *
+     * @param perSecond 0 表示不限
+     * @param burst     突发条数，空闲一段时间之后最多可以连续发送多少条
+     * @param action
+     */
+    public void setMessageRateLimit(int perSecond, int burst, RateLimitAction action) {
+        if (perSecond < 0 || perSecond > 0 && burst <= 0) {
+            throw new IllegalArgumentException("perSecond must not be negative and burst must be positive");
+        }
+        this.messagesPerSecond = perSecond;
+        this.messageBurst = burst;
+        this.messageLimitAction = action;
+    }
+
+    /**
+     * 设置每个客户端每秒最多发送的字节数，之后建立的连接生效，超限的处理同 {@link #setMessageRateLimit}
+     * 单条消息超过突发字节数时只在桶满时放行
+     *
+     * @param perSecond 0 表示不限
+     * @param burst     突发字节数
+     * @param action
+     */
+    public void setByteRateLimit(int perSecond, int burst, RateLimitAction action) {
+        if (perSecond < 0 || perSecond > 0 && burst <= 0) {
+            throw new IllegalArgumentException("perSecond must not be negative and burst must be positive");
+        }
+        this.bytesPerSecond = perSecond;
+        this.byteBurst = burst;
+        this.byteLimitAction = action;
+    }
+
+    /**
+     * 设置每秒最多接受的新连接数，所有客户端共享，超过的连接 accept 之后立即关闭
+     *
+     * @param perSecond 0 表示不限
+     * @param burst     突发连接数
+     */
+    public void setAcceptRateLimit(int perSecond, int burst) {
+        if (perSecond < 0 || perSecond > 0 && burst <= 0) {
+            throw new IllegalArgumentException("perSecond must not be negative and burst must be positive");
+        }
+        this.acceptBucket = perSecond == 0 ? null : new TokenBucket(perSecond, burst);
+    }
+
+    /**
+     * 设置心跳：连接空闲 pingInterval 后服务端发送 PING，空闲 idleTimeout 后断开，需要在 listen() 之前调用
+     * 只对新客户端生效，老客户端不认识 PING，改为开启 TCP keepalive
+     *
+     * @param pingInterval 毫秒
+     * @param idleTimeout  毫秒，0 表示关闭空闲检测
+     */
+    public void setHeartbeat(long pingInterval, long idleTimeout) {
+        if (idleTimeout < 0 || idleTimeout > 0 && (pingInterval <= 0 || pingInterval >= idleTimeout)) {
+            throw new IllegalArgumentException("pingInterval must be positive and less than idleTimeout");
+        }
+        this.pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pingInterval);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    }
+
+    /**
+     * 启动推进空闲检测时间轮的线程，BIO 在 listen() 中调用
+     */
+    protected void startIdleTimer() {
+        if (idleTimeoutNanos == 0) {
+            return;
+        }
+        Thread timer = new Thread(() -> {
+            long tick = TimeUnit.NANOSECONDS.toMillis(idleWheel.tickNanos());
+            while (true) {
+                try {
+                    Thread.sleep(tick);
+                    idleWheel.advance(System.nanoTime());
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "idle timer failed: " + e);
+                }
+            }
+        }, "idle-timer");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /**
+     * 开始空闲检测，老客户端只在发言时写数据，使用 TCP keepalive 代替
+     *
+     * @param session 已经完成协商的连接
+     */
+    protected void watchIdle(Session session) {
+        if (idleTimeoutNanos == 0) {
+            return;
+        }
+        if (ProtocolNegotiator.isLegacy(session.protocol())) {
+            try {
+                session.socket().setKeepAlive(true);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, e.getMessage());
+            }
+            return;
+        }
+        idleWheel.schedule(session, session.lastActivity() + pingIntervalNanos);
+    }
+
+    /**
+     * 时间轮的到期处理：空闲超过 pingInterval 发送一次 PING，超过 idleTimeout 断开
+     *
+     * @param session
+     * @param now
+     * @return 下一次检查的时间，{@link TimerWheel#CANCEL} 表示不再检查
+     */
+    private long checkIdle(Session session, long now) {
+        if (session.isClosed()) {
+            return TimerWheel.CANCEL;
+        }
+        long idleTimeout = idleTimeoutNanos;
+        long idle = now - session.lastActivity();
+        if (idle >= idleTimeout) {
+            metrics.idleEvicted();
+            events.lifecycle(logger, Level.INFO, "idle-evict", "remote", session.socket().getRemoteSocketAddress(), "nick", session.nickName(),
+                    "idleMillis", TimeUnit.NANOSECONDS.toMillis(idle));
+            evict(session);
+            return TimerWheel.CANCEL;
+        }
+        if (idle >= pingIntervalNanos && !session.pingedSinceActivity()) {
+            session.pinged(now);
+            reply(session, new Message(new Header(location, port, SYSTEM_NICK_NAME), null, MessageType.PING, null));
+        }
+        return session.lastActivity() + (session.pingedSinceActivity() ? idleTimeout : pingIntervalNanos);
+    }
+
+    /**
+     * 断开空闲的连接，在推进时间轮的线程中调用
+     *
+     * @param session
+     */
+    protected void evict(Session session) {
+        remove(session.socket());
+    }
+
+    /**
+     * 设置消息日志：转发的房间消息先写入日志，客户端加入房间或重连时可以请求回放，需要在 listen() 之前调用
+     * 默认没有日志，转发不经过日志的锁；需要断线补发的部署显式开启，例如
+     * Journal.inMemory({@link #DEFAULT_JOURNAL_SEGMENT_SIZE}, {@link #DEFAULT_JOURNAL_SEGMENTS}) 在内存中保留每个房间最近的分段，
+     * 传入 {@link Journal#open(java.io.File)} 则重启不丢；没有日志时 WELCOME 不带序号，客户端据此知道断线期间的消息不会补发
+     * 每个房间内日志的顺序即转发的顺序；日志的锁只在写入一条记录和加入房间回放时持有，转发不在锁内
+     *
+     * @param journal
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * 加入集群：本节点客户端发出的消息转发给其他节点，其他节点转发来的消息交给本节点的客户端，需要在 listen() 之前调用
+     * 昵称只在本节点内唯一；房间消息的日志序号由各节点各自分配
+     *
+     * @param cluster
+     * @throws IOException 集群端口绑定失败
+     */
+    public void setCluster(ClusterNode cluster) throws IOException {
+        cluster.start(this::deliverRemote);
+        this.cluster = cluster;
+    }
+
+    /**
+     * 把本节点客户端发出的消息转发给其他节点，单机时什么都不做
+     *
+     * @param message
+     */
+    protected void relay(Message message) {
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.relay(message);
+        }
+    }
+
+    /**
+     * 收到其他节点转发来的消息，在链路的接收线程中调用：私聊只发给本节点上的接收者，其余的转发给房间成员
+     * 需要在特定线程中转发的子类（NIO）重写该方法
+     *
+     * @param message
+     */
+    protected void deliverRemote(Message message) {
+        if (message.getRecipient() == null) {
+            dispatch(message);
+            return;
+        }
+        Session target = nicknames.get(message.getRecipient());
+        if (target != null) {
+            reply(target, message);
+        }
+    }
+
+    /**
+     * 本节点产生的房间消息（加入/离开的系统消息），转发给本节点和其他节点
+     *
+     * @param message
+     */
+    protected void broadcast(Message message) {
+        relay(message);
+        dispatch(message);
+    }
+
+    /**
+     * 调试：记录每条消息和每次写出，等同于 -Dchatroom.log.debug=true，进程内所有服务端共享
+     *
+     * @param tracing
+     */
+    public void setTracing(boolean tracing) {
+        events.setDebug(tracing);
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * 把运行指标注册为 MBean，名字为 实现类名-端口
+     */
+    public void registerMBean() {
+        metrics.register(getClass().getSimpleName() + "-" + port);
+    }
+
+    /**
+     * 所有连接的发送队列中积压的帧数，只在读取指标时遍历
+     *
+     * @return
+     */
+    private long outboundFrames() {
+        long frames = 0;
+        for (Session session : sessions.all()) {
+            frames += session.outbound().size();
+        }
+        return frames;
+    }
+
+    /**
+     * 写入消息日志并分配序号，调用方保证同一房间的消息按转发的顺序写入
+     *
+     * @param journal
+     * @param encoded 还没有被编码过的消息
+     */
+    protected void record(Journal journal, EncodedMessage encoded) {
+        try {
+            journal.append(encoded);
+        } catch (IOException e) {
+            //日志写失败不影响实时转发
+            logger.log(Level.WARNING, "写入消息日志失败 " + e.getMessage());
+        }
+    }
+
+    /**
+     * 房间没人了，消息日志可以在达到房间上限时删除它
+     *
+     * @param room
+     */
+    private void roomEmptied(String room) {
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.release(room);
+        }
+    }
+
+    /**
+     * 加入房间，请求中带有回放参数时，在日志的锁内加入并回放，与实时转发既不重复也不遗漏：
+     * 锁内没有新的记录，回放到的序号在加入之前记下，转发时看到该成员就能看到这个序号，跳过已经回放的消息
+     * 回放参数：序号大于 0 表示回放该序号之后的消息，否则消息体为数字表示回放最近的条数
+     *
+     * @param session
+     * @param room
+     * @param request JOIN 或 HELLO
+     * @return 之前不在该房间返回 true
+     */
+    protected boolean join(Session session, String room, Message request) {
+        Journal journal = this.journal;
+        int count = replayCount(request);
+        if (journal == null || (request.getSequence() <= 0 && count <= 0) || ProtocolNegotiator.isLegacy(session.protocol())) {
+            return rooms.join(session, room);
+        }
+        journal.lock().lock();
+        try {
+            session.replayed(room, journal.lastSequence());
+            boolean joined = rooms.join(session, room);
+            if (request.getSequence() > 0) {
+                journal.replaySince(room, request.getSequence(), frame -> send(session, frame));
+            } else {
+                journal.replayLast(room, count, frame -> send(session, frame));
+            }
+            return joined;
+        } finally {
+            journal.lock().unlock();
+        }
+    }
+
+    private static int replayCount(Message request) {
+        String body = request.getMessage();
+        if (body == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(body.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 按当前配置创建一个发送队列
+     *
+     * @return
+     */
+    protected OutboundQueue newOutbound() {
+        return new OutboundQueue(outboundCapacity, slowConsumerPolicy, maxCoalescedBytes);
+    }
+
+    /**
+     * 发送一帧至客户端，只入队不阻塞；慢消费者按策略需要断开时移除该客户端
+     * 发送队列没有写线程时，由入队的线程提交一个写任务，之后入队的线程只入队
+     *
+     * @param session
+     * @param frame
+     */
+    protected void send(Session session, Frame frame) {
+        if (!session.send(frame)) {
+            metrics.slowConsumer();
+            events.lifecycle(logger, Level.WARNING, "slow-consumer", "remote", session.socket().getRemoteSocketAddress());
+            remove(session.socket());
+            return;
+        }
+        scheduleWrite(session);
+    }
+
+    /**
+     * 该连接没有写线程时拿到写出的所有权并提交写任务，NIO 没有写线程池，由 selector 线程写出
+     *
+     * @param session
+     */
+    protected void scheduleWrite(Session session) {
+        Executor writerPool = this.writerPool;
+        if (writerPool != null && session.claimWriter()) {
+            try {
+                writerPool.execute(() -> drain(session));
+            } catch (RejectedExecutionException e) {
+                session.releaseWriter();
+                logger.log(Level.WARNING, "write task rejected: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 写任务，持有写出的所有权，阻塞地把该客户端发送队列中的帧写出，队列空了就释放所有权并结束；
+     * 任何时刻一个客户端最多只有一个写任务，帧不会交错，不同客户端之间没有共享的锁
+     *
+     * @param session
+     */
+    protected void drain(Session session) {
+        int flushBytes = this.flushBytes;
+        long window = flushWindowNanos;
+        OutboundQueue outbound = session.outbound();
+        try {
+            do {
+                //合并写时帧先写进缓冲，flush() 时一次写出；超过缓冲大小的帧直接写出，不复制
+                OutputStream out = session.writeStream(flushBytes);
+                Frame frame;
+                while ((frame = outbound.poll()) != null) {
+                    frame.writeTo(out);
+                    metrics.frameWritten(frame.length());
+                    long pending = frame.length();
+                    //距离上次写出不到一个窗口，说明正在连续写出，值得等一等后续的帧，最多等到窗口结束
+                    long now = System.nanoTime();
+                    long deadline = window > 0 && now - session.lastFlush < window ? now + window : now;
+                    while (flushBytes > 0 && pending < flushBytes) {
+                        long wait = deadline - System.nanoTime();
+                        frame = wait > 0 ? outbound.poll(wait, TimeUnit.NANOSECONDS) : outbound.poll();
+                        if (frame == null) {
+                            break;
+                        }
+                        frame.writeTo(out);
+                        metrics.frameWritten(frame.length());
+                        pending += frame.length();
+                    }
+                    out.flush();
+                    session.lastFlush = System.nanoTime();
+                }
+                if (outbound.finished()) {
+                    //最后一条消息已经写出
+                    remove(session.socket());
+                }
+                session.releaseWriter();
+                //释放之后再检查一次，释放之前入队的线程看到的是有写线程，没有提交写任务
+            } while (!outbound.isEmpty() && !session.isClosed() && session.claimWriter());
+        } catch (IOException e) {
+            //这里的异常表示客户端已经下线，此时需要去清除客户端连接资源
+            metrics.writeFailed();
+            events.lifecycle(logger, Level.INFO, "write-failed", "remote", session.socket().getRemoteSocketAddress(), "error", e.getMessage());
+            remove(session.socket());
+            session.releaseWriter();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            session.releaseWriter();
+        }
+    }
+
+    /**
+     * 加入在线队列
+     *
+     * @param session
+     */
+    protected void addSession(Session session) {
+        int messagesPerSecond = this.messagesPerSecond;
+        if (messagesPerSecond > 0) {
+            session.messageBucket = new TokenBucket(messagesPerSecond, messageBurst);
+        }
+        int bytesPerSecond = this.bytesPerSecond;
+        if (bytesPerSecond > 0) {
+            session.byteBucket = new TokenBucket(bytesPerSecond, byteBurst);
+        }
+        sessions.add(session);
+        metrics.accepted();
+    }
+
+    /**
+     * 新连接的准入，在 accept 的线程中调用，超过每秒的连接数时关闭该连接
+     *
+     * @param client
+     * @return 是否接受
+     */
+    protected boolean admitConnection(Socket client) {
+        TokenBucket acceptBucket = this.acceptBucket;
+        if (acceptBucket == null || acceptBucket.tryAcquire(1, System.nanoTime()) == 0) {
+            return true;
+        }
+        metrics.connectionRejected();
+        if (events.sampleMessage()) {
+            events.message(logger, "accept-rate-limited", "remote", client.getRemoteSocketAddress());
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * 限速：读到一条消息之后、转发之前检查该连接的令牌桶，在读该连接的线程中调用
+     * DELAY 照常放行，记下暂停读取的截止时间，由各实现在下一次读之前等待；DROP 返回 false；DISCONNECT 抛出异常
+     * 被任意一个桶拒绝的消息不消耗另一个桶的令牌
+     *
+     * @param session
+     * @param bytes   该消息的字节数
+     * @return 是否放行
+     * @throws IOException 超限且需要断开，调用方按读失败处理
+     */
+    protected boolean admit(Session session, long bytes) throws IOException {
+        TokenBucket messageBucket = session.messageBucket;
+        TokenBucket byteBucket = session.byteBucket;
+        if (messageBucket == null && byteBucket == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        RateLimitAction messageAction = messageLimitAction;
+        long messageWait = take(messageBucket, 1, messageAction, now);
+        if (messageWait > 0 && messageAction != RateLimitAction.DELAY) {
+            //拒绝时没有取令牌
+            return limited(session, messageAction, messageWait, now);
+        }
+        RateLimitAction byteAction = byteLimitAction;
+        long byteWait = take(byteBucket, bytes, byteAction, now);
+        if (byteWait > 0 && byteAction != RateLimitAction.DELAY) {
+            if (messageBucket != null) {
+                messageBucket.refund(1);
+            }
+            return limited(session, byteAction, byteWait, now);
+        }
+        long wait = Math.max(messageWait, byteWait);
+        return wait == 0 || limited(session, RateLimitAction.DELAY, wait, now);
+    }
+
+    /**
+     * 取令牌，DELAY 总是取（透支），其余超限时不取
+     *
+     * @return 0 表示没有超限，否则为需要等待的纳秒数
+     */
+    private static long take(TokenBucket bucket, long tokens, RateLimitAction action, long now) {
+        if (bucket == null) {
+            return 0;
+        }
+        return action == RateLimitAction.DELAY ? bucket.acquire(tokens, now) : bucket.tryAcquire(tokens, now);
+    }
+
+    /**
+     * 超限的处理
+     *
+     * @return 是否放行
+     * @throws IOException DISCONNECT
+     */
+    private boolean limited(Session session, RateLimitAction action, long wait, long now) throws IOException {
+        metrics.rateLimited();
+        if (events.sampleMessage()) {
+            events.message(logger, "rate-limited", "remote", session.socket().getRemoteSocketAddress(), "nick", session.nickName(), "action", action,
+                    "waitMicros", TimeUnit.NANOSECONDS.toMicros(wait));
+        }
+        switch (action) {
+            case DELAY:
+                if (wait > session.throttledUntil - now) {
+                    session.throttledUntil = now + wait;
+                }
+                return true;
+            case DROP:
+                return false;
+            default:
+                events.lifecycle(logger, Level.WARNING, "rate-limit-disconnect", "remote", session.socket().getRemoteSocketAddress(), "nick", session.nickName());
+                throw new IOException("rate limit exceeded");
+        }
+    }
+
+    /**
+     * 阻塞式的协议协商，协商失败抛出异常
+     *
+     * @param session
+     * @throws IOException
+     */
+    protected void negotiate(Session session) throws IOException {
+        session.setProtocol(ProtocolNegotiator.accept(session.socket(), session.in(), handshakeTimeout, legacyCompatible, capabilities));
+    }
+
+    /**
+     * 发送完已入队的消息之后断开
+     *
+     * @param session
+     */
+    protected void closeAfterFlush(Session session) {
+        session.outbound().finish();
+        scheduleWrite(session);
+    }
+
+    /**
+     * 协商完成，开始空闲检测；老客户端不会发送 HELLO，直接加入默认房间，新客户端在 HELLO 被接受之后加入
+     *
+     * @param session
+     */
+    protected void onNegotiated(Session session) {
+        watchIdle(session);
+        if (ProtocolNegotiator.isLegacy(session.protocol())) {
+            rooms.join(session, RoomRegistry.DEFAULT_ROOM);
+        }
+    }
+
+    /**
+     * 登记昵称和消息头并分配会话 id，昵称重复则拒绝并断开
+     * 断线重连时昵称可能还被半开的旧连接占着（客户端换了网络、NAT 超时），要等空闲检测才能发现；
+     * 这时带着旧连接令牌的 HELLO，或者请求补发、而旧连接在上次心跳之后没有任何活动，直接顶替旧连接
+     *
+     * @param session
+     * @param request 客户端发来的 HELLO，老客户端为第一条消息
+     * @return 是否登记成功
+     */
+    protected boolean register(Session session, Message request) {
+        Header header = request.getHeader();
+        String nickName = header == null ? null : header.getNickName();
+        if (nickName == null || nickName.isEmpty()) {
+            reject(session, "昵称不能为空");
+            return false;
+        }
+        Session holder = nicknames.putIfAbsent(nickName, session);
+        if (holder != null && takesOver(request, holder)) {
+            events.lifecycle(logger, Level.INFO, "resume-takeover", "remote", session.socket().getRemoteSocketAddress(), "nick", nickName,
+                    "stale", holder.socket().getRemoteSocketAddress());
+            remove(holder.socket());
+            holder = nicknames.putIfAbsent(nickName, session);
+        }
+        if (holder != null) {
+            reject(session, "昵称 " + nickName + " 已被使用");
+            return false;
+        }
+        session.registered(header);
+        session.setNickName(nickName);
+        long token;
+        do {
+            token = RESUME_TOKENS.nextLong();
+        } while (token == 0);
+        session.setResumeToken(token);
+        events.lifecycle(logger, Level.INFO, "register", "remote", session.socket().getRemoteSocketAddress(), "nick", nickName, "session", session.id());
+        if (session.isClosed()) {
+            //与断开并发，断开时可能没有看到昵称
+            nicknames.remove(nickName, session);
+        }
+        return true;
+    }
+
+    /**
+     * 重连的 HELLO 是否可以顶替占着昵称的旧连接
+     *
+     * @param request
+     * @param holder  占着昵称的连接
+     * @return
+     */
+    private static boolean takesOver(Message request, Session holder) {
+        if (request.getType() != MessageType.HELLO) {
+            return false;
+        }
+        if (request.getResumeToken() != 0 && request.getResumeToken() == holder.resumeToken()) {
+            return true;
+        }
+        return request.getSequence() > 0 && holder.pingedSinceActivity();
+    }
+
+    /**
+     * 拒绝该客户端，发送原因后断开
+     *
+     * @param session
+     * @param reason
+     */
+    protected void reject(Session session, String reason) {
+        events.lifecycle(logger, Level.WARNING, "reject", "remote", session.socket().getRemoteSocketAddress(), "reason", reason);
+        reply(session, new Message(new Header(location, port, SYSTEM_NICK_NAME), reason, MessageType.REJECT, null));
+        closeAfterFlush(session);
+    }
+
+    /**
+     * 私聊，通过昵称索引直接找到接收者，不经过房间转发；发送者也会收到一份
+     *
+     * @param session 发送者
+     * @param message
+     */
+    protected void direct(Session session, Message message) {
+        Session target = nicknames.get(message.getRecipient());
+        message.setRoom(null);
+        if (target == null) {
+            if (cluster == null) {
+                reply(session, systemMessage(message.getRecipient() + " 不在线", null));
+                return;
+            }
+            //接收者可能在其他节点上，不在线时没有提示
+            relay(message);
+            reply(session, message);
+            return;
+        }
+        EncodedMessage encoded = new EncodedMessage(message);
+        try {
+            send(target, encoded.frame(target.protocol()));
+            if (target != session) {
+                send(session, encoded.frame(session.protocol()));
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, e.getMessage());
+        }
+    }
+
+    /**
+     * 处理客户端发来的消息：HELLO、控制消息（加入/离开/列出房间）、私聊在这里处理完，聊天消息补全房间后返回，交给 dispatch 转发
+     *
+     * @param session 发送者
+     * @param message
+     * @return 需要转发的消息，不需要转发时返回 null
+     */
+    protected Message route(Session session, Message message) {
+        metrics.messageRead();
+        session.touch();
+        if (message.getType() == MessageType.PONG) {
+            //只用来更新活动时间
+            return null;
+        }
+        if (message.getType() == MessageType.PING) {
+            reply(session, new Message(new Header(location, port, SYSTEM_NICK_NAME), null, MessageType.PONG, null));
+            return null;
+        }
+        if (session.nickName() == null) {
+            if (message.getType() == MessageType.HELLO) {
+                //新客户端连接后的第一条消息，回复分配的会话 id，之后客户端只发送紧凑帧
+                if (register(session, message)) {
+                    Message welcome = new Message(new Header(location, port, SYSTEM_NICK_NAME), "欢迎 " + session.nickName(), MessageType.WELCOME, null);
+                    welcome.setSessionId(session.id());
+                    welcome.setResumeToken(session.resumeToken());
+                    Journal journal = this.journal;
+                    if (journal != null) {
+                        //客户端从这里开始记录收到的序号，断线重连时带上
+                        welcome.setSequence(journal.lastSequence());
+                    }
+                    reply(session, welcome);
+                    join(session, RoomRegistry.DEFAULT_ROOM, message);
+                }
+                return null;
+            }
+            if (!ProtocolNegotiator.isLegacy(session.protocol())) {
+                reject(session, "请先发送 HELLO");
+                return null;
+            }
+            //老客户端在第一次发言时登记昵称
+            if (!register(session, message)) {
+                return null;
+            }
+        } else if (message.getHeader() == null && message.getSessionId() != session.id()) {
+            reject(session, "会话 id 不匹配");
+            return null;
+        }
+        //发送者身份以登记时为准，转发给其他客户端的仍然是完整的消息头
+        message.setHeader(session.header());
+        message.setSessionId(0);
+        String room = message.getRoom() == null ? RoomRegistry.DEFAULT_ROOM : message.getRoom();
+        switch (message.getType()) {
+            case MessageType.CHAT:
+                if (message.getRecipient() != null) {
+                    direct(session, message);
+                    return null;
+                }
+                if (!session.rooms().contains(room)) {
+                    reply(session, systemMessage("你不在房间 " + room + " 中", room));
+                    return null;
+                }
+                message.setRoom(room);
+                //序号只能由服务端分配
+                message.setSequence(0);
+                relay(message);
+                return message;
+            case MessageType.JOIN:
+                if (join(session, room, message)) {
+                    events.lifecycle(logger, Level.INFO, "join", "nick", session.nickName(), "room", room);
+                    broadcast(systemMessage(message.getHeader().getNickName() + " 加入了房间", room));
+                }
+                return null;
+            case MessageType.LEAVE:
+                if (rooms.leave(session, room)) {
+                    events.lifecycle(logger, Level.INFO, "leave", "nick", session.nickName(), "room", room);
+                    reply(session, systemMessage("已离开房间", room));
+                    broadcast(systemMessage(message.getHeader().getNickName() + " 离开了房间", room));
+                }
+                return null;
+            case MessageType.LIST:
+                StringBuilder sb = new StringBuilder();
+                for (Map.Entry<String, Integer> entry : rooms.list().entrySet()) {
+                    sb.append(entry.getKey()).append("(").append(entry.getValue()).append(") ");
+                }
+                reply(session, systemMessage(sb.toString().trim(), null));
+                return null;
+            default:
+                //客户端不能发送系统消息
+                return null;
+        }
+    }
+
+    /**
+     * 只发送给某一个客户端
+     *
+     * @param session
+     * @param message
+     */
+    protected void reply(Session session, Message message) {
+        try {
+            send(session, new Frame(session.protocol().encode(message)));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, e.getMessage());
+        }
+    }
+
+    /**
+     * 服务端发出的系统消息
+     *
+     * @param content
+     * @param room
+     * @return
+     */
+    protected Message systemMessage(String content, String room) {
+        return new Message(new Header(location, port, SYSTEM_NICK_NAME), content, MessageType.SYSTEM, room);
     }
 
     /**
@@ -63,16 +1042,28 @@ public abstract class AbstractBioServer {
      * @param client
      */
     public void remove(Socket client) {
+        if (client == null) {
+            return;
+        }
+        Session session = sessions.remove(client);
+        if (session == null) {
+            return;
+        }
+        metrics.removed();
+        //唤醒并结束写线程，离开所有房间，注销昵称
+        session.close();
+        rooms.leaveAll(session);
+        if (session.nickName() != null) {
+            nicknames.remove(session.nickName(), session);
+        }
         try {
-            boolean result = clientSockets.remove(client);
-            if (result && client != null && !client.isClosed()) {
+            if (!client.isClosed()) {
                 //关闭连接
                 client.close();
-                logger.log(Level.WARNING, "移除client" + client.getInetAddress().getHostAddress() + ":" + client.getPort());
+                events.lifecycle(logger, Level.INFO, "disconnect", "remote", client.getRemoteSocketAddress(), "online", sessions.size());
             }
         } catch (IOException e) {
-            e.printStackTrace();
-            logger.log(Level.WARNING, e.getMessage());
+            events.lifecycle(logger, Level.WARNING, "close-failed", "remote", client.getRemoteSocketAddress(), "error", e.getMessage());
         }
     }
 
@@ -81,7 +1072,7 @@ public abstract class AbstractBioServer {
      *
      * @throws IOException
      */
-    protected abstract void listen() throws IOException;
+    public abstract void listen() throws IOException;
 
     /**
      * 提供客户端消息服务
@@ -100,7 +1091,7 @@ public abstract class AbstractBioServer {
     protected abstract Message readRequest(Socket client) throws IOException;
 
     /**
-     * 转发客户端消息
+     * 转发客户端消息至消息所在房间的所有成员
      *
      * @param message
      */
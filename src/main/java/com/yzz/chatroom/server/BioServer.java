@@ -1,14 +1,14 @@
 package com.yzz.chatroom.server;
 
-import com.yzz.chatroom.protocol.BioChartRoomProtocol;
+import com.yzz.chatroom.journal.Journal;
+import com.yzz.chatroom.protocol.EncodedMessage;
 import com.yzz.chatroom.protocol.Message;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.Socket;
-import java.util.Iterator;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
 /**
@@ -31,8 +31,20 @@ import java.util.logging.Level;
  */
 public class BioServer extends AbstractBioServer {
 
-    //线程池，用于执行接收客户端消息并转发消息至所有在线的客户端，这里最大可以接收10 + Integer.MAX_VALUE 个客户端
-    private final Executor pool = Executors.newFixedThreadPool(1);
+    //一个连接一个线程，用于执行接收客户端消息并转发消息至所有在线的客户端，Java 21+ 上是虚拟线程；写任务也在这里执行
+    private final Executor pool = ConnectionExecutors.newThreadPerConnection();
+
+    //开启消息日志时按房间分条的锁，同一房间的消息按日志的顺序转发，不同房间互不影响
+    //不用 synchronized：一个连接一个虚拟线程时，竞争的监视器会占住载体线程
+    private static final int ROOM_LOCKS = 64;
+
+    private final ReentrantLock[] roomLocks = new ReentrantLock[ROOM_LOCKS];
+
+    {
+        for (int i = 0; i < roomLocks.length; i++) {
+            roomLocks[i] = new ReentrantLock();
+        }
+    }
 
     /**
      * 创建一个默认的聊天室服务端
@@ -88,6 +100,7 @@ public class BioServer extends AbstractBioServer {
      */
     protected BioServer(int port, int backlog, String location) throws IOException {
         super(port, backlog, location);
+        writerPool = pool;
     }
 
     /**
@@ -99,38 +112,55 @@ public class BioServer extends AbstractBioServer {
      */
     @Override
     public void listen() throws IOException {
+        startIdleTimer();
         while (true) {
             Socket client = serverSocket.accept();
-            clientSockets.add(client);
-            logger.log(Level.INFO, client.getInetAddress().getHostAddress() + "加入了聊天室");
-            logger.log(Level.INFO, "当前在线人数：" + clientSockets.size());
+            if (!admitConnection(client)) {
+                continue;
+            }
+            addSession(new Session(client, newOutbound()));
+            events.lifecycle(logger, Level.INFO, "connect", "remote", client.getRemoteSocketAddress(), "online", sessions.size());
             pool.execute(() -> provideService(client));
         }
     }
 
     /**
-     * 提供服务 轮询去客户端处理消息
+     * 提供服务 先协商协议，再轮询去客户端处理消息
      *
      * @param client
      */
     @Override
     protected void provideService(Socket client) {
+        Session session = sessions.get(client);
+        try {
+            if (session == null) {
+                return;
+            }
+            negotiate(session);
+        } catch (IOException e) {
+            events.lifecycle(logger, Level.WARNING, "negotiate-failed", "remote", client.getRemoteSocketAddress(), "error", e.getMessage());
+            remove(client);
+            return;
+        }
+        onNegotiated(session);
         while (true) {
             //自定义协议 消息对象
             Message message = null;
             try {
                 //1. 获取客户端发送至服务端的消息
                 message = readRequest(client);
-                //1.如果客户端队列的size为0，就说明所有客户端都已经下线，直接结束轮询
-                if (clientSockets.size() == 0) {
+                //1.如果在线数为0，就说明所有客户端都已经下线，直接结束轮询
+                if (sessions.size() == 0) {
                     break;
-                } else {
-                    //转发消息至所有客户端
+                }
+                //控制消息在这里处理完，聊天消息转发至房间内的所有客户端
+                message = route(session, message);
+                if (message != null) {
                     dispatch(message);
                 }
             } catch (IOException e) {
                 //这里的异常表示客户端已经下线，此时需要去清除客户端连接资源
-                logger.log(Level.WARNING, e.getMessage());
+                events.lifecycle(logger, Level.INFO, "read-failed", "remote", client.getRemoteSocketAddress(), "error", e.getMessage());
                 remove(client);
                 break;
             }
@@ -146,34 +176,83 @@ public class BioServer extends AbstractBioServer {
      */
     @Override
     protected Message readRequest(Socket client) throws IOException {
-        InputStream in = client.getInputStream();
-        //自定义协议负责去解析消息
-        return BioChartRoomProtocol.getInstance().parse(in);
+        Session session = sessions.get(client);
+        if (session == null) {
+            throw new IOException("session closed");
+        }
+        while (true) {
+            //限速 DELAY：该连接自己的线程，直接等待，期间不读取，客户端的发送被 TCP 阻塞
+            long wait = session.throttledUntil - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            //协商好的协议负责去解析消息
+            Message message = session.protocol().parse(session.in());
+            if (message == null || admit(session, session.takeBytesRead())) {
+                return message;
+            }
+        }
     }
 
     /**
-     * 转发请求至所有客户端
+     * 转发请求至房间内的所有客户端，每种协议只编码一次，所有客户端共享同一帧
+     * 这里只是放入每个客户端的发送队列，由各自的写线程写出，接收慢的客户端不会拖慢其他人
      *
      * @param message
      */
     @Override
     protected void dispatch(Message message) {
-        Iterator<Socket> clients = clientSockets.iterator();
-        Socket client = null;
-        //遍历发送至客户端，该方法是同步方法，so，客户端收到的消息是先后顺序和其进入聊天室的顺序是一致的
-        while (clients.hasNext()) {
+        EncodedMessage encoded = new EncodedMessage(message);
+        Journal journal = this.journal;
+        if (journal == null) {
+            fanOut(encoded);
+            return;
+        }
+        //同一房间内写日志与转发的顺序一致，客户端收到的序号递增；只锁该房间所在的分条，不是全局的锁
+        ReentrantLock lock = roomLocks[(message.getRoom().hashCode() & Integer.MAX_VALUE) % ROOM_LOCKS];
+        lock.lock();
+        try {
+            record(journal, encoded);
+            fanOut(encoded);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 放入房间内所有客户端的发送队列
+     *
+     * @param encoded
+     */
+    private void fanOut(EncodedMessage encoded) {
+        Message message = encoded.message();
+        long journaled = message.getSequence();
+        long start = System.nanoTime();
+        boolean tracing = events.tracing();
+        int recipients = 0;
+        //只遍历该房间的成员，加入房间的都已经完成了协商
+        for (Session session : rooms.members(message.getRoom())) {
+            if (journaled != 0 && journaled <= session.replayedUpTo(message.getRoom())) {
+                //写日志之后、转发之前该客户端加入了房间，已经包含在回放中
+                continue;
+            }
             try {
-                client = clients.next();
-                logger.log(Level.INFO, "转发消息至" + message.getHeader().toString());
-                //协议去写入消息至客户端
-                BioChartRoomProtocol.getInstance().write(client.getOutputStream(), message);
+                if (tracing) {
+                    events.trace(logger, "write", "from", message.getHeader().getNickName(), "to", session.socket().getRemoteSocketAddress());
+                }
+                send(session, encoded.frame(session.protocol()));
+                recipients++;
             } catch (IOException e) {
-                //这里的异常表示客户端已经下线，此时需要去清除客户端连接资源
-                e.printStackTrace();
-                logger.log(Level.INFO, e.getMessage());
-                remove(client);
+                //编码失败
+                logger.log(Level.WARNING, e.getMessage());
+                break;
             }
         }
+        metrics.fanOut(System.nanoTime() - start);
+        if (events.sampleMessage()) {
+            events.message(logger, "dispatch", "from", message.getHeader().getNickName(), "room", message.getRoom(), "sequence", message.getSequence(), "recipients", recipients);
+        }
     }
 
 }
@@ -1,13 +1,19 @@
 package com.yzz.chatroom.server;
 
-import com.yzz.chatroom.protocol.BioChartRoomProtocolSupper;
+import com.yzz.chatroom.journal.Journal;
+import com.yzz.chatroom.protocol.EncodedMessage;
+import com.yzz.chatroom.protocol.Frame;
 import com.yzz.chatroom.protocol.Message;
+import com.yzz.chatroom.protocol.Protocol;
+import com.yzz.chatroom.protocol.ProtocolNegotiator;
+import com.yzz.chatroom.server.bus.BroadcastBus;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.Socket;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 /**
@@ -32,15 +38,17 @@ public class BioServerSupper extends AbstractBioServer {
 
     private final int core = Runtime.getRuntime().availableProcessors();
 
-    //循环监听线程
-    private final ThreadPoolExecutor providerPool = new ThreadPoolExecutor(core, core, 2, TimeUnit.SECONDS, new LinkedBlockingDeque<>());
+    //广播总线环形缓冲的默认大小
+    public static final int DEFAULT_RING_SIZE = 4096;
 
-    //等待队列
-    private volatile ConcurrentLinkedQueue<Socket> waitQueue = new ConcurrentLinkedQueue();
+    //读线程 -> 写分片，读线程只发布消息，由写分片按全局顺序转发；每个写分片按自己的进度消费，相当于分片的收件箱
+    private final BroadcastBus bus = new BroadcastBus(DEFAULT_RING_SIZE, core, this::fanOut);
 
+    //读循环，同时驱动同下标的写分片，一个连接的读和写在同一个分片
+    private final ReadLoop[] readLoops = new ReadLoop[core];
 
-    //处理消息线程池
-    private ExecutorService handelMessagePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    //连接序号，按序号轮流分配分片
+    private final AtomicInteger nextShard = new AtomicInteger();
 
     /**
      * 创建一个默认的聊天室服务端
@@ -89,50 +97,80 @@ public class BioServerSupper extends AbstractBioServer {
     }
 
     protected BioServerSupper(int port, int backlog, String location) throws IOException {
-        super(port, backlog, location);
-    }
+        //房间成员按写分片分区
+        super(port, backlog, location, Runtime.getRuntime().availableProcessors());
+        //有帧要写的客户端才占用一个写线程，Java 21+ 上是虚拟线程，写阻塞不会占用读循环
+        writerPool = ConnectionExecutors.newThreadPerConnection();
+        metrics.setBroadcastBacklog(bus::backlog);
+        for (int i = 0; i < readLoops.length; i++) {
+            readLoops[i] = new ReadLoop(i, new ReadLoop.Handler() {
+                @Override
+                public boolean poll(Session session) {
+                    return BioServerSupper.this.poll(session);
+                }
 
-    /**
-     * 轮询监听客户端输入
-     */
-    public void loopClientForProviderServer() {
-        providerPool.execute(
-                () -> {
-                    while (true) {
-                        Socket[] clients = new Socket[clientSockets.size()];
-                        //监听
-                        listenClientInputStatus(clientSockets.toArray(clients));
-                    }
+                @Override
+                public boolean probe(Session session, int timeout) {
+                    return BioServerSupper.this.probe(session, timeout);
                 }
-        );
+            }, bus);
+        }
     }
 
     /**
-     * 监听客户端输入状态
+     * 读循环检查一个连接，有数据时在读循环的线程中协商协议，或者读取并处理一条消息
      *
-     * @param clients
+     * @param session
+     * @return 是否读到了消息或者完成了协商
      */
-    public void listenClientInputStatus(Socket[] clients) {
-        for (Socket client : clients) {
-            if (!clientIsOk(client)) {
-                remove(client);
-                continue;
-            }
-            if (waitQueue.contains(client)) {
-                continue;
-            }
+    private boolean poll(Session session) {
+        Socket client = session.socket();
+        if (!clientIsOk(client)) {
+            remove(client);
+            return false;
+        }
+        if (!session.negotiated()) {
             try {
-                InputStream inputStream = client.getInputStream();
-                if (inputStream.available() > 0) {
-                    //如果有消息，则加入等待处理的队列，一旦加入不可重复消费
-                    waitQueue.add(client);
-                    //提供转发服务
-                    provideService(client);
-                }
+                return handshake(session);
             } catch (IOException e) {
-                logger.log(Level.WARNING, e.getMessage());
+                events.lifecycle(logger, Level.WARNING, "negotiate-failed", "remote", client.getRemoteSocketAddress(), "error", e.getMessage());
                 remove(client);
+                return false;
+            }
+        }
+        try {
+            Message message = read(session);
+            if (message == null) {
+                return false;
+            }
+            //控制消息在这里处理完，聊天消息发布至广播总线
+            message = route(session, message);
+            if (message != null) {
+                dispatch(message);
             }
+            return true;
+        } catch (IOException e) {
+            events.lifecycle(logger, Level.INFO, "read-failed", "remote", client.getRemoteSocketAddress(), "error", e.getMessage());
+            remove(client);
+            return false;
+        }
+    }
+
+    /**
+     * 读循环空闲时检查一个连接是否已经断开，对端关闭时移除，不用等空闲检测
+     *
+     * @param session
+     * @param timeout 最多阻塞的毫秒数
+     * @return 是否读到了数据，读到的字节留在读缓冲中，下一轮解析
+     */
+    private boolean probe(Session session, int timeout) {
+        Socket client = session.socket();
+        try {
+            return session.probe(timeout);
+        } catch (IOException e) {
+            events.lifecycle(logger, Level.INFO, "read-failed", "remote", client.getRemoteSocketAddress(), "error", e.getMessage());
+            remove(client);
+            return false;
         }
     }
 
@@ -156,76 +194,187 @@ public class BioServerSupper extends AbstractBioServer {
      */
     @Override
     public void listen() throws IOException {
-        //开启监听客户端的消息流状态
-        loopClientForProviderServer();
-        //轮询监听
+        Journal journal = this.journal;
+        if (journal != null) {
+            //日志阶段按总线的全局顺序写日志、分配序号，写分片只转发已经写入日志的消息
+            bus.setStage((encoded, sequence) -> record(journal, encoded));
+        }
+        //启动日志阶段和读循环，写分片由读循环驱动
+        bus.start();
+        for (ReadLoop loop : readLoops) {
+            loop.start();
+        }
+        startIdleTimer();
         while (true) {
             Socket client = serverSocket.accept();
-            clientSockets.add(client);
-            logger.log(Level.INFO, client.getInetAddress().getHostAddress() + "加入了supper聊天室");
-            logger.log(Level.INFO, "当前在线人数：" + clientSockets.size());
+            if (!admitConnection(client)) {
+                continue;
+            }
+            Session session = new Session(client, newOutbound());
+            //按连接序号分配分片，之后该连接只由这个分片读写
+            session.setShard((nextShard.getAndIncrement() & Integer.MAX_VALUE) % readLoops.length);
+            addSession(session);
+            events.lifecycle(logger, Level.INFO, "connect", "remote", client.getRemoteSocketAddress(), "online", sessions.size());
+            //协商也由所属分片的读循环完成，不阻塞 accept
+            readLoops[session.shard()].register(session);
         }
     }
 
+    /**
+     * 非阻塞式的协议协商：只读取已经到达的字节，第一个字节就能区分新老客户端，新客户端的握手凑齐了才回复；
+     * 超时仍然什么都没有发送的视为老客户端，发了一半握手的断开。等待中的连接不占用任何线程
+     *
+     * @param session
+     * @return 是否协商完成
+     * @throws IOException
+     */
+    private boolean handshake(Session session) throws IOException {
+        session.readAvailable();
+        ByteBuffer buffer = session.pending();
+        Protocol protocol = null;
+        ByteArrayOutputStream reply = new ByteArrayOutputStream(ProtocolNegotiator.HANDSHAKE_LENGTH);
+        if (buffer != null) {
+            buffer.flip();
+            try {
+                protocol = ProtocolNegotiator.accept(buffer, reply, legacyCompatible, capabilities);
+            } finally {
+                buffer.compact();
+                session.recyclePending();
+            }
+        }
+        if (protocol == null) {
+            if (System.nanoTime() - session.connectedAt() < TimeUnit.MILLISECONDS.toNanos(handshakeTimeout)) {
+                return false;
+            }
+            if (session.pending() != null) {
+                throw new IOException("incomplete handshake");
+            }
+            protocol = ProtocolNegotiator.timeout(legacyCompatible);
+        }
+        session.setProtocol(protocol);
+        if (reply.size() > 0) {
+            send(session, new Frame(reply.toByteArray()));
+        }
+        onNegotiated(session);
+        return true;
+    }
 
     /**
-     * 提供妆发服务
+     * 提供转发服务，连接由读循环驱动，这里只在调用线程中处理一条已经到达的消息
      *
      * @param client
      */
     @Override
     protected void provideService(Socket client) {
-        handelMessagePool.execute(() -> {
-            //检查
-            if (!clientIsOk(client)) {
-                return;
-            }
-            try {
-                //获取客户端的消息
-                Message message = readRequest(client);
-                if (message == null) {
-                    return;
-                }
-                if (client != null) {
-                    //出队，任务消息转发完毕，可再次提供服务
-                    waitQueue.remove(client);
-                }
-                //转发客户端的消息
-                dispatch(message);
-            } catch (IOException e) {
-                e.printStackTrace();
-                logger.log(Level.WARNING, e.getMessage());
-                remove(client);
-            }
-        });
+        Session session = sessions.get(client);
+        if (session != null) {
+            poll(session);
+        }
     }
 
     @Override
     protected Message readRequest(Socket client) throws IOException {
-        InputStream in = client.getInputStream();
-        //自定义协议负责去解析消息
-        return BioChartRoomProtocolSupper.getInstance().parse(in);
+        Session session = sessions.get(client);
+        if (session == null) {
+            throw new IOException("session closed");
+        }
+        return read(session);
+    }
+
+    /**
+     * 只读取已经到达的字节，凑齐一整帧才解析，半包留在该连接的读缓冲中，不阻塞同一分片的其他连接
+     *
+     * @param session
+     * @return 没有完整的消息时返回 null
+     * @throws IOException
+     */
+    private Message read(Session session) throws IOException {
+        //限速 DELAY：暂停期间跳过该连接，不阻塞同一分片的其他连接
+        if (session.throttledUntil - System.nanoTime() > 0) {
+            return null;
+        }
+        while (true) {
+            ByteBuffer buffer = session.pending();
+            if (buffer != null && buffer.position() > 0) {
+                int before = buffer.position();
+                buffer.flip();
+                Message message;
+                try {
+                    message = session.protocol().decode(buffer);
+                } finally {
+                    buffer.compact();
+                    session.recyclePending();
+                }
+                if (message != null) {
+                    if (admit(session, before - buffer.position())) {
+                        return message;
+                    }
+                    continue;
+                }
+            }
+            if (session.readAvailable() == 0) {
+                return null;
+            }
+        }
     }
 
+    /**
+     * 转发请求至所有客户端，只是发布到广播总线，可以被多个读循环同时调用
+     * 总线给每条消息一个全局序号，所有客户端都按这个顺序收到消息；开启消息日志时由总线的日志阶段按同一顺序写入，
+     * 读循环不持有任何锁；读循环同时是写分片，在读循环中发布时不能等待缓冲腾出位置
+     *
+     * @param message
+     */
     @Override
     protected void dispatch(Message message) {
-        Iterator<Socket> clients = clientSockets.iterator();
-        Socket client = null;
-        //遍历发送至客户端，该方法是同步方法，so，客户端收到的消息是先后顺序和其进入聊天室的顺序是一致的
-        while (clients.hasNext()) {
+        EncodedMessage encoded = new EncodedMessage(message);
+        ReadLoop loop = ReadLoop.current();
+        if (loop != null) {
+            loop.publish(encoded);
+        } else {
+            bus.publish(encoded);
+        }
+    }
+
+    /**
+     * 写分片转发消息至房间内自己负责的客户端，在驱动该分片的读循环中调用，每种协议只编码一次，所有客户端共享同一帧
+     * 这里只是放入每个客户端的发送队列，由各自的写线程写出，不会等待慢客户端
+     *
+     * @param shard
+     * @param encoded
+     * @param sequence
+     */
+    private void fanOut(int shard, EncodedMessage encoded, long sequence) {
+        String room = encoded.message().getRoom();
+        long journaled = encoded.message().getSequence();
+        //每个分片各记录一次，是该分片的耗时
+        long start = System.nanoTime();
+        boolean tracing = events.tracing();
+        int recipients = 0;
+        //只遍历房间在本分片的成员
+        for (Session session : rooms.members(room, shard)) {
+            Socket client = session.socket();
+            if (journaled != 0 && journaled <= session.replayedUpTo(room)) {
+                //发布之后、转发之前该客户端加入了房间，已经包含在回放中
+                continue;
+            }
             try {
-                client = clients.next();
-                logger.log(Level.INFO, Thread.currentThread().getName() + "->转发消息至" + client.getInetAddress().getHostAddress() + ":" + client.getPort());
-                //协议去写入消息至客户端
+                if (tracing) {
+                    events.trace(logger, "write", "shard", shard, "sequence", sequence, "to", client.getRemoteSocketAddress());
+                }
                 if (clientIsOk(client)) {
-                    BioChartRoomProtocolSupper.getInstance().write(client.getOutputStream(), message);
+                    send(session, encoded.frame(session.protocol()));
+                    recipients++;
                 }
             } catch (IOException e) {
-                //这里的异常表示客户端已经下线，此时需要去清除客户端连接资源
-                e.printStackTrace();
-                logger.log(Level.INFO, e.getMessage());
-                remove(client);
+                //编码失败
+                logger.log(Level.WARNING, e.getMessage());
+                break;
             }
         }
+        metrics.fanOut(System.nanoTime() - start);
+        if (recipients > 0 && events.sampleMessage()) {
+            events.message(logger, "dispatch", "from", encoded.message().getHeader().getNickName(), "room", room, "shard", shard, "sequence", sequence, "recipients", recipients);
+        }
     }
 }
@@ -0,0 +1,64 @@
+package com.yzz.chatroom.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * describe: 一个连接一个线程的执行器
+ * date:2019/1/20
+ * 运行在 Java 21+ 上时使用虚拟线程（Executors.newVirtualThreadPerTaskExecutor），阻塞的 socket 读写只会挂起虚拟线程，
+ * 几万个空闲连接也不需要调整线程池大小；低版本 jdk 上退化为 CachedThreadPool。
+ * 通过反射调用，所以源码仍然可以用 Java 8 编译。
+ * 可以通过 -Dchatroom.virtualThreads=false 强制使用平台线程
+ *
+ * @Since 0.0.2
+ */
+public final class ConnectionExecutors {
+
+    public static final String VIRTUAL_THREADS_PROPERTY = "chatroom.virtualThreads";
+
+    private static final Logger logger = Logger.getLogger(ConnectionExecutors.class.getName());
+
+    private ConnectionExecutors() {
+    }
+
+    /**
+     * 当前jdk是否支持虚拟线程
+     *
+     * @return
+     */
+    public static boolean virtualThreadsAvailable() {
+        return virtualFactory() != null;
+    }
+
+    /**
+     * 创建一个每个任务一个线程的执行器
+     *
+     * @return
+     */
+    public static ExecutorService newThreadPerConnection() {
+        Method factory = virtualFactory();
+        if (factory != null && Boolean.parseBoolean(System.getProperty(VIRTUAL_THREADS_PROPERTY, "true"))) {
+            try {
+                ExecutorService executor = (ExecutorService) factory.invoke(null);
+                logger.log(Level.INFO, "使用虚拟线程处理客户端连接");
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                logger.log(Level.WARNING, e.getMessage());
+            }
+        }
+        logger.log(Level.INFO, "使用平台线程处理客户端连接");
+        return Executors.newCachedThreadPool();
+    }
+
+    private static Method virtualFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
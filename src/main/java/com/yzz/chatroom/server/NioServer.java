@@ -0,0 +1,561 @@
+package com.yzz.chatroom.server;
+
+import com.yzz.chatroom.journal.Journal;
+import com.yzz.chatroom.protocol.EncodedMessage;
+import com.yzz.chatroom.protocol.Frame;
+import com.yzz.chatroom.protocol.Message;
+import com.yzz.chatroom.protocol.Protocol;
+import com.yzz.chatroom.protocol.ProtocolNegotiator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * describe: 聊天室服务端 NIO 版
+ * date:2019/1/20
+ * 使用 ServerSocketChannel + Selector，所有连接都是非阻塞的，由一个 selector 线程完成 accept、读、转发、写，
+ * 没有消息时线程阻塞在 select() 上，不会像 BioServerSupper 那样空转
+ * 你可以简单的这样去启动一个服务端
+ *
+ * @Since 0.0.2
+ * <p>
+ * public class Server {
+ * public static void main(String[] args) {
+ * try {
+ * NioServer nioServer = NioServer.newServerByPort(9090);
+ * nioServer.listen();
+ * } catch (Exception e) {
+ * e.printStackTrace();
+ * }
+ * }
+ * }
+ */
+public class NioServer extends AbstractBioServer {
+
+    //非阻塞的监听通道，在 bind() 中创建
+    private ServerSocketChannel serverChannel;
+
+    //多路复用器
+    private final Selector selector;
+
+    //还没有完成握手的连接，按 accept 的先后排列
+    private final ArrayDeque<NioSession> handshaking = new ArrayDeque<>();
+
+    //合并写：有帧等待写出的连接
+    private final ArrayDeque<NioSession> pendingFlush = new ArrayDeque<>();
+
+    //限速 DELAY：暂停读取的连接
+    private final ArrayDeque<NioSession> throttled = new ArrayDeque<>();
+
+    //其他节点转发来的消息，链路的接收线程入队，selector 线程转发
+    private final Queue<Message> remote = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 创建一个默认的聊天室服务端
+     *
+     * @return
+     * @throws IOException
+     */
+    public static NioServer createServerByDefault() throws IOException {
+        return new NioServer(DEFAULT_PORT, DEFAULT_BACKLOG, DEFAULT_LOCATION);
+    }
+
+    /**
+     * 创建一个自定义端口的服务端
+     *
+     * @param port
+     * @return
+     * @throws IOException
+     */
+    public static NioServer newServerByPort(int port) throws IOException {
+        return new NioServer(port, DEFAULT_BACKLOG, DEFAULT_LOCATION);
+    }
+
+    /**
+     * 创建一个自定义端口和连接队列深度的服务
+     *
+     * @param port    端口
+     * @param logback 连接队列最大num
+     * @return
+     * @throws IOException
+     */
+    public static NioServer newServerWithDefaultLocation(int port, int logback) throws IOException {
+        return new NioServer(port, logback, DEFAULT_LOCATION);
+    }
+
+    /**
+     * 自定义端口、连接大小、地址的服务端对象
+     *
+     * @param port
+     * @param logback
+     * @param location
+     * @return
+     * @throws IOException
+     */
+    public static NioServer newServerDynamic(int port, int logback, String location) throws IOException {
+        return new NioServer(port, logback, location);
+    }
+
+    protected NioServer(int port, int backlog, String location) throws IOException {
+        super(port, backlog, location);
+        selector = Selector.open();
+    }
+
+    @Override
+    protected void bind() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(inetAddress, port), backlog);
+        serverSocket = serverChannel.socket();
+    }
+
+    /**
+     * 事件循环，服务的入口
+     * 1. OP_ACCEPT 接收客户端连接并注册 OP_READ
+     * 2. OP_READ provideService() 读取并转发消息
+     * 3. OP_WRITE 写出上次没有写完的帧
+     * 每一轮处理完所有事件之后，转发其他节点发来的消息，把这一轮入队的帧合并写出，推进空闲检测的时间轮，并恢复限速暂停结束的连接
+     *
+     * @throws IOException
+     */
+    @Override
+    public void listen() throws IOException {
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        while (true) {
+            deliverPending();
+            long flushWait = flushPending();
+            //没有事件时阻塞，有连接在等待握手时最多阻塞到最早的握手截止时间，开启空闲检测时最多阻塞到下一个刻度
+            long timeout = expireHandshakes();
+            long idleWait = advanceIdle();
+            if (idleWait > 0) {
+                timeout = timeout == 0 ? idleWait : Math.min(timeout, idleWait);
+            }
+            long throttleWait = resumeThrottled();
+            if (throttleWait > 0) {
+                timeout = timeout == 0 ? throttleWait : Math.min(timeout, throttleWait);
+            }
+            if (flushWait >= 0) {
+                if (flushWait < TimeUnit.MILLISECONDS.toNanos(1)) {
+                    //合并写的窗口是微秒级的，select 的精度不够
+                    selector.selectNow();
+                } else {
+                    long flushMillis = TimeUnit.NANOSECONDS.toMillis(flushWait);
+                    selector.select(timeout == 0 ? flushMillis : Math.min(timeout, flushMillis));
+                }
+            } else {
+                selector.select(timeout);
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                NioSession session = (NioSession) key.attachment();
+                if (key.isReadable()) {
+                    provideService(session.socket());
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(session);
+                }
+            }
+        }
+    }
+
+    /**
+     * 其他节点转发来的消息入队，唤醒 selector 线程转发；所有连接只在 selector 线程中读写
+     *
+     * @param message
+     */
+    @Override
+    protected void deliverRemote(Message message) {
+        remote.add(message);
+        selector.wakeup();
+    }
+
+    private void deliverPending() {
+        Message message;
+        while ((message = remote.poll()) != null) {
+            super.deliverRemote(message);
+        }
+    }
+
+    /**
+     * 写出到期的合并写
+     *
+     * @return 距离最早的截止时间的纳秒数，-1 表示没有等待写出的连接
+     */
+    private long flushPending() {
+        long earliest = -1;
+        long now = System.nanoTime();
+        for (Iterator<NioSession> it = pendingFlush.iterator(); it.hasNext(); ) {
+            NioSession session = it.next();
+            long wait = session.flushDeadline - now;
+            if (wait > 0 && session.key().isValid()) {
+                earliest = earliest < 0 ? wait : Math.min(earliest, wait);
+                continue;
+            }
+            it.remove();
+            session.flushPending = false;
+            flush(session);
+        }
+        return earliest;
+    }
+
+    /**
+     * 推进空闲检测的时间轮，在 selector 线程中发送心跳和断开空闲连接
+     *
+     * @return 距离下一个刻度的毫秒数，0 表示没有开启空闲检测
+     */
+    private long advanceIdle() {
+        if (idleTimeoutNanos == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        idleWheel.advance(now);
+        return TimeUnit.NANOSECONDS.toMillis(idleWheel.nanosToNextTick(now)) + 1;
+    }
+
+    /**
+     * 握手超时的连接视为老客户端
+     *
+     * @return 距离最早的握手截止时间的毫秒数，0 表示没有等待握手的连接
+     */
+    private long expireHandshakes() {
+        NioSession session;
+        while ((session = handshaking.peek()) != null) {
+            if (session.negotiated() || !session.key().isValid()) {
+                handshaking.poll();
+                continue;
+            }
+            long wait = session.handshakeDeadline() - System.nanoTime();
+            if (wait > 0) {
+                return TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+            }
+            handshaking.poll();
+            try {
+                session.setProtocol(ProtocolNegotiator.timeout(legacyCompatible));
+                onNegotiated(session);
+            } catch (IOException e) {
+                events.lifecycle(logger, Level.WARNING, "negotiate-failed", "remote", session.socket().getRemoteSocketAddress(), "error", e.getMessage());
+                remove(session.socket());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 接收所有已经就绪的连接
+     *
+     * @throws IOException
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (!admitConnection(channel.socket())) {
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            NioSession session = new NioSession(channel, key, newOutbound(), handshakeTimeout);
+            key.attach(session);
+            Socket client = channel.socket();
+            addSession(session);
+            handshaking.add(session);
+            events.lifecycle(logger, Level.INFO, "connect", "remote", client.getRemoteSocketAddress(), "online", sessions.size());
+        }
+    }
+
+    /**
+     * 读取客户端发来的数据，解析出所有完整的消息并转发
+     *
+     * @param client
+     */
+    @Override
+    protected void provideService(Socket client) {
+        NioSession session = (NioSession) sessions.get(client);
+        if (session == null) {
+            return;
+        }
+        try {
+            if (session.read() < 0) {
+                //客户端已经关闭连接
+                remove(client);
+                return;
+            }
+            if (!session.negotiated() && !negotiate(session)) {
+                //握手数据还不完整
+                return;
+            }
+            serve(session);
+        } catch (IOException e) {
+            events.lifecycle(logger, Level.INFO, "read-failed", "remote", client.getRemoteSocketAddress(), "error", e.getMessage());
+            remove(client);
+        } finally {
+            //读缓冲中没有半包时归还缓冲池
+            session.recycle();
+        }
+    }
+
+    /**
+     * 解析读缓冲中所有完整的消息并转发；被限速暂停时不再关注 OP_READ，缓冲中剩下的消息等暂停结束后再处理
+     *
+     * @param session
+     * @throws IOException
+     */
+    private void serve(NioSession session) throws IOException {
+        Socket client = session.socket();
+        Message message;
+        while ((message = readRequest(client)) != null) {
+            //控制消息在这里处理完，聊天消息转发至房间内的所有客户端
+            message = route(session, message);
+            if (message != null) {
+                dispatch(message);
+            }
+        }
+        SelectionKey key = session.key();
+        if (session.throttledUntil - System.nanoTime() > 0 && key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            throttled.add(session);
+        }
+    }
+
+    /**
+     * 限速暂停结束的连接恢复读取，先处理缓冲中已经读到的消息
+     *
+     * @return 距离最早的暂停结束的毫秒数，0 表示没有暂停的连接
+     */
+    private long resumeThrottled() {
+        long earliest = 0;
+        long now = System.nanoTime();
+        for (Iterator<NioSession> it = throttled.iterator(); it.hasNext(); ) {
+            NioSession session = it.next();
+            if (!session.key().isValid()) {
+                it.remove();
+                continue;
+            }
+            long wait = session.throttledUntil - now;
+            if (wait > 0) {
+                long millis = TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+                earliest = earliest == 0 ? millis : Math.min(earliest, millis);
+                continue;
+            }
+            it.remove();
+            session.key().interestOps(session.key().interestOps() | SelectionKey.OP_READ);
+            try {
+                serve(session);
+            } catch (IOException e) {
+                events.lifecycle(logger, Level.INFO, "read-failed", "remote", session.socket().getRemoteSocketAddress(), "error", e.getMessage());
+                remove(session.socket());
+            } finally {
+                session.recycle();
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * 非阻塞式的协议协商，新客户端的握手回复走写队列
+     *
+     * @param session
+     * @return 是否协商完成
+     * @throws IOException
+     */
+    private boolean negotiate(NioSession session) throws IOException {
+        ByteBuffer buffer = session.readBuffer();
+        ByteArrayOutputStream reply = new ByteArrayOutputStream(ProtocolNegotiator.HANDSHAKE_LENGTH);
+        Protocol protocol;
+        buffer.flip();
+        try {
+            protocol = ProtocolNegotiator.accept(buffer, reply, legacyCompatible, capabilities);
+        } finally {
+            buffer.compact();
+        }
+        if (protocol == null) {
+            return false;
+        }
+        session.setProtocol(protocol);
+        if (reply.size() > 0) {
+            session.send(new Frame(reply.toByteArray()));
+            flush(session);
+        }
+        onNegotiated(session);
+        return true;
+    }
+
+    /**
+     * 从读缓冲中解析一条消息，半包时返回 null
+     *
+     * @param client
+     * @return
+     * @throws IOException
+     */
+    @Override
+    protected Message readRequest(Socket client) throws IOException {
+        NioSession session = (NioSession) sessions.get(client);
+        //限速 DELAY：暂停期间不再解析，缓冲中剩下的消息留到暂停结束
+        if (session == null || !session.hasReadBuffer() || session.throttledUntil - System.nanoTime() > 0) {
+            return null;
+        }
+        ByteBuffer buffer = session.readBuffer();
+        buffer.flip();
+        try {
+            while (true) {
+                int start = buffer.position();
+                //协商好的协议负责去解析消息
+                Message message = session.protocol().decode(buffer);
+                if (message == null || admit(session, buffer.position() - start)) {
+                    return message;
+                }
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * 转发消息至房间内的所有客户端，只在 selector 线程中调用，写不完的部分交给 OP_WRITE
+     * 每个连接入队的是同一帧，写出时复制进该连接借来的直接内存批量写出，编码只有一次
+     * 写不出去的帧积压在该连接的发送队列中，超过上限按慢消费者策略处理
+     *
+     * @param message
+     */
+    @Override
+    protected void dispatch(Message message) {
+        //每种协议只编码一次，所有连接共享同一个只读缓冲的内容
+        EncodedMessage encoded = new EncodedMessage(message);
+        Journal journal = this.journal;
+        if (journal != null) {
+            //selector 线程是唯一的写入者，加入房间时的回放也在这个线程中，两者天然有序
+            record(journal, encoded);
+        }
+        fanOut(encoded);
+    }
+
+    /**
+     * 放入房间内所有连接的发送队列并尝试写出
+     *
+     * @param encoded
+     */
+    private void fanOut(EncodedMessage encoded) {
+        Message message = encoded.message();
+        long start = System.nanoTime();
+        boolean tracing = events.tracing();
+        int recipients = 0;
+        //只遍历该房间的成员，加入房间的都已经完成了协商
+        for (Session s : rooms.members(message.getRoom())) {
+            NioSession session = (NioSession) s;
+            if (!session.key().isValid()) {
+                continue;
+            }
+            try {
+                if (tracing) {
+                    events.trace(logger, "write", "from", message.getHeader().getNickName(), "to", session.socket().getRemoteSocketAddress());
+                }
+                send(session, encoded.frame(session.protocol()));
+                recipients++;
+            } catch (IOException e) {
+                //编码失败
+                logger.log(Level.WARNING, e.getMessage());
+                break;
+            }
+        }
+        metrics.fanOut(System.nanoTime() - start);
+        if (events.sampleMessage()) {
+            events.message(logger, "dispatch", "from", message.getHeader().getNickName(), "room", message.getRoom(), "sequence", message.getSequence(), "recipients", recipients);
+        }
+    }
+
+    /**
+     * 入队，只在 selector 线程中调用
+     * 不合并写时立即写出；合并写时积压达到 flushBytes 立即写出，否则等到这一轮事件处理完，
+     * 正在连续写出的连接再最多等待一个窗口
+     *
+     * @param session
+     * @param frame
+     */
+    @Override
+    protected void send(Session session, Frame frame) {
+        super.send(session, frame);
+        NioSession nioSession = (NioSession) session;
+        int flushBytes = this.flushBytes;
+        if (flushBytes == 0 || session.outbound().bytes() >= flushBytes) {
+            flush(nioSession);
+            return;
+        }
+        if (!nioSession.flushPending && nioSession.key().isValid()) {
+            long now = System.nanoTime();
+            long window = flushWindowNanos;
+            nioSession.flushPending = true;
+            nioSession.flushDeadline = window > 0 && now - nioSession.lastFlush < window ? now + window : now;
+            pendingFlush.add(nioSession);
+        }
+    }
+
+    /**
+     * 发送完已入队的消息之后断开，只在 selector 线程中调用
+     *
+     * @param session
+     */
+    @Override
+    protected void closeAfterFlush(Session session) {
+        super.closeAfterFlush(session);
+        flush((NioSession) session);
+    }
+
+    /**
+     * 尽可能多的写出，被要求写完即断开的连接在全部写完之后断开
+     *
+     * @param session
+     */
+    private void flush(NioSession session) {
+        if (!session.key().isValid()) {
+            return;
+        }
+        try {
+            if (session.flush(flushBytes, metrics) && session.outbound().finished()) {
+                remove(session.socket());
+            }
+        } catch (IOException e) {
+            metrics.writeFailed();
+            events.lifecycle(logger, Level.INFO, "write-failed", "remote", session.socket().getRemoteSocketAddress(), "error", e.getMessage());
+            remove(session.socket());
+        }
+    }
+
+    /**
+     * 清除资源，取消注册并关闭通道
+     *
+     * @param client
+     */
+    @Override
+    public void remove(Socket client) {
+        NioSession session = (NioSession) sessions.get(client);
+        if (session != null) {
+            session.key().cancel();
+        }
+        super.remove(client);
+        if (session != null) {
+            session.releaseBuffers();
+        }
+    }
+}
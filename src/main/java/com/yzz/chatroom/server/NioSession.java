@@ -0,0 +1,213 @@
+package com.yzz.chatroom.server;
+
+import com.yzz.chatroom.buffer.BufferPool;
+import com.yzz.chatroom.buffer.PooledBuffer;
+import com.yzz.chatroom.metrics.ServerMetrics;
+import com.yzz.chatroom.protocol.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * describe: NIO 服务端中一个客户端连接的状态，只允许在 selector 线程中访问
+ * date:2019/1/20
+ *
+ * @Since 0.0.2
+ */
+class NioSession extends Session {
+
+    //读缓冲的初始大小
+    static final int INITIAL_READ_BUFFER = 4 * 1024;
+
+    //单帧的最大长度，超过则认为客户端异常
+    static final int MAX_READ_BUFFER = 16 * 1024 * 1024;
+
+    private final SocketChannel channel;
+
+    private final SelectionKey key;
+
+    //读缓冲，从缓冲池借来，一直处于写模式，解析时 flip，解析完 compact；读空之后归还，空闲的连接不占用缓冲
+    private PooledBuffer readBuffer;
+
+    //一次批量写最多的字节数，超过的帧单独写出
+    static final int MAX_BATCH = 64 * 1024;
+
+    //正在写出的一批帧，复制在一块借来的直接内存中，写了一半时等待 OP_WRITE，写完归还
+    private PooledBuffer batch;
+
+    //单独写出的大帧，不复制
+    private ByteBuffer large;
+
+    //正在写出的帧数
+    private int writingFrames;
+
+    //从发送队列中取出、但放不进这一批的帧，留给下一批
+    private Frame carry;
+
+    //合并写：是否在等待写出，等待的截止时间 System.nanoTime()；上次写出的时间见 Session#lastFlush
+    boolean flushPending;
+
+    long flushDeadline;
+
+    //握手的截止时间，超过仍没有握手视为老客户端
+    private final long handshakeDeadline;
+
+    NioSession(SocketChannel channel, SelectionKey key, OutboundQueue outbound, int handshakeTimeout) {
+        super(channel.socket(), outbound);
+        this.channel = channel;
+        this.key = key;
+        this.handshakeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(handshakeTimeout);
+    }
+
+    long handshakeDeadline() {
+        return handshakeDeadline;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    SelectionKey key() {
+        return key;
+    }
+
+    boolean hasReadBuffer() {
+        return readBuffer != null;
+    }
+
+    /**
+     * 读缓冲，只在 {@link #read()} 之后、{@link #recycle()} 之前可用
+     *
+     * @return
+     */
+    ByteBuffer readBuffer() {
+        return readBuffer.buffer();
+    }
+
+    /**
+     * 从channel中读取数据至读缓冲，没有缓冲时从缓冲池借，缓冲满了就换一块更大的
+     *
+     * @return 读取的字节数，-1 表示客户端已经关闭连接
+     * @throws IOException
+     */
+    int read() throws IOException {
+        if (readBuffer == null) {
+            readBuffer = BufferPool.getInstance().acquire(INITIAL_READ_BUFFER);
+        }
+        ByteBuffer buffer = readBuffer.buffer();
+        if (!buffer.hasRemaining()) {
+            if (buffer.capacity() >= MAX_READ_BUFFER) {
+                throw new IOException("frame too large from " + socket().getRemoteSocketAddress());
+            }
+            PooledBuffer bigger = BufferPool.getInstance().acquire(Math.min(buffer.capacity() << 1, MAX_READ_BUFFER));
+            buffer.flip();
+            bigger.buffer().put(buffer);
+            readBuffer.release();
+            readBuffer = bigger;
+            buffer = bigger.buffer();
+        }
+        return channel.read(buffer);
+    }
+
+    /**
+     * 读缓冲中的数据都已经解析完时归还，半包留着等下一次读
+     */
+    void recycle() {
+        if (readBuffer != null && readBuffer.buffer().position() == 0) {
+            readBuffer.release();
+            readBuffer = null;
+        }
+    }
+
+    /**
+     * 连接关闭，归还所有借来的缓冲
+     */
+    void releaseBuffers() {
+        if (readBuffer != null) {
+            readBuffer.release();
+            readBuffer = null;
+        }
+        if (batch != null) {
+            batch.release();
+            batch = null;
+        }
+        large = null;
+        carry = null;
+    }
+
+    /**
+     * 尽可能多的写出发送队列中的帧，每次把积压的多帧复制进一块借来的直接内存用一次 write 写出，
+     * 写不完则关注 OP_WRITE，写完则取消关注
+     *
+     * @param maxBytes 一批最多收集的字节数，0 表示每次只写一帧
+     * @param metrics  记录写出的帧数和字节数
+     * @return 是否全部写完
+     * @throws IOException
+     */
+    boolean flush(int maxBytes, ServerMetrics metrics) throws IOException {
+        while (true) {
+            ByteBuffer writing = large != null ? large : batch != null ? batch.buffer() : fill(maxBytes);
+            if (writing == null) {
+                break;
+            }
+            metrics.bytesWritten(channel.write(writing));
+            if (writing.hasRemaining()) {
+                //内核发送缓冲已满，等待可写事件
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return false;
+            }
+            metrics.framesWritten(writingFrames);
+            writingFrames = 0;
+            large = null;
+            if (batch != null) {
+                batch.release();
+                batch = null;
+            }
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        lastFlush = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * 从发送队列中收集下一批要写出的帧
+     *
+     * @param maxBytes
+     * @return 读模式的缓冲，队列为空时返回 null
+     */
+    private ByteBuffer fill(int maxBytes) {
+        Frame frame = carry != null ? carry : outbound().poll();
+        carry = null;
+        if (frame == null) {
+            return null;
+        }
+        int capacity = Math.min(Math.max(maxBytes, frame.length()), MAX_BATCH);
+        if (frame.length() > capacity) {
+            //大帧单独写出，不值得复制
+            large = frame.buffer();
+            writingFrames = 1;
+            return large;
+        }
+        batch = BufferPool.getInstance().acquire(capacity);
+        ByteBuffer buffer = batch.buffer();
+        //借到的缓冲按规格向上取整，不能超过 maxBytes 太多，也不能超过批量上限
+        int limit = Math.max(capacity, Math.min(maxBytes, buffer.capacity()));
+        do {
+            buffer.put(frame.buffer());
+            writingFrames++;
+            if (buffer.position() >= limit) {
+                break;
+            }
+            frame = outbound().poll();
+            if (frame != null && frame.length() > limit - buffer.position()) {
+                carry = frame;
+                break;
+            }
+        } while (frame != null);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,219 @@
+package com.yzz.chatroom.server;
+
+import com.yzz.chatroom.protocol.Frame;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * describe: 每个客户端独享的有界发送队列
+ * date:2019/1/21
+ * 转发线程只负责入队，不会因为某个客户端的 TCP 接收窗口满了而阻塞；由该客户端此刻唯一的写线程出队写出。
+ * 队列满了按 {@link SlowConsumerPolicy} 处理
+ *
+ * @Since 0.0.2
+ */
+public class OutboundQueue {
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+    //最多积压的帧数
+    private final int capacity;
+
+    private final SlowConsumerPolicy policy;
+
+    //COALESCE 策略下合并后的最大字节数
+    private final int maxCoalescedBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private boolean closed;
+
+    //不再接收新的帧，已入队的写完后结束
+    private boolean finishing;
+
+    //积压的字节数
+    private long bytes;
+
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy, int maxCoalescedBytes) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.maxCoalescedBytes = maxCoalescedBytes;
+    }
+
+    /**
+     * 入队，不阻塞
+     *
+     * @param frame
+     * @return false 表示该客户端应该被断开（已经关闭，或者积压超过了策略允许的范围）
+     */
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (finishing) {
+                //即将断开，丢弃
+                return true;
+            }
+            if (frames.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        bytes -= frames.poll().length();
+                        break;
+                    case COALESCE:
+                        if (!coalesce()) {
+                            return false;
+                        }
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            frames.add(frame);
+            bytes += frame.length();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 不阻塞的出队
+     *
+     * @return 没有帧时返回 null
+     */
+    public Frame poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 最多等待 timeout 的出队，用于合并写时等待紧跟着的帧
+     *
+     * @param timeout
+     * @param unit
+     * @return 超时、队列关闭或者 finish 之后已经写完时返回 null
+     * @throws InterruptedException
+     */
+    public Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed && !finishing) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return closed ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Frame dequeue() {
+        Frame frame = frames.poll();
+        if (frame != null) {
+            bytes -= frame.length();
+        }
+        return frame;
+    }
+
+    /**
+     * 不再接收新的帧，已经入队的帧写完之后再断开，用于发送完最后一条消息（例如拒绝的原因）再断开
+     */
+    public void finish() {
+        lock.lock();
+        try {
+            finishing = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 是否已经 finish 并且写完
+     *
+     * @return
+     */
+    public boolean finished() {
+        lock.lock();
+        try {
+            return finishing && frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭队列，丢弃积压的帧并唤醒等待中的写任务
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            bytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 积压的字节数
+     *
+     * @return
+     */
+    public long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean coalesce() {
+        if (bytes > maxCoalescedBytes) {
+            return false;
+        }
+        Frame merged = Frame.concat(frames);
+        frames.clear();
+        frames.add(merged);
+        return true;
+    }
+}
@@ -0,0 +1,19 @@
+package com.yzz.chatroom.server;
+
+/**
+ * describe: 客户端发送超过限速之后的处理
+ * date:2019/2/1
+ *
+ * @Since 0.0.2
+ */
+public enum RateLimitAction {
+
+    //照常转发，之后暂停读取该连接，直到平均速率回到限速以内，TCP 接收窗口满了之后客户端的发送会被阻塞
+    DELAY,
+
+    //丢弃超出的消息
+    DROP,
+
+    //断开该客户端
+    DISCONNECT
+}
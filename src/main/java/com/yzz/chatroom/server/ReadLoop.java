@@ -0,0 +1,237 @@
+package com.yzz.chatroom.server;
+
+import com.yzz.chatroom.protocol.EncodedMessage;
+import com.yzz.chatroom.server.bus.BroadcastBus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * describe: 阻塞连接的读写循环，一个分片一个线程
+ * date:2019/1/29
+ * 1. 每个连接在 accept 时按连接序号分配到一个分片，之后只由该分片的线程读取、处理，不会被其他线程看到，
+ * 所以同一个连接的消息天然有序，不需要“正在处理”的标记
+ * 2. 分片持有的连接列表只在本线程中访问；其他线程交给它的新连接先放进收件箱，下一轮开始时取出
+ * 3. 每一轮只检查自己的连接，成本与本分片的连接数成正比；没有数据时自旋 -> 让出cpu -> 挂起，挂起的时间逐轮翻倍，
+ * 连接都空闲时每秒只检查几百轮，有数据或者新连接时回到自旋
+ * 4. 处理逻辑只读取已经到达的字节，凑齐整帧才解析，一个连接发了半帧不会阻塞同一分片的其他连接
+ * 5. 对端正常关闭时 available() 一直是 0，读不到 EOF；空闲时用本来要挂起的时间轮流对一个连接真正读一次（最多阻塞 {@link #PROBE_TIMEOUT} 毫秒），
+ * 关闭的连接因此很快被发现，不用等空闲检测
+ * 6. 同一个线程还驱动广播总线上同下标的写分片，把总线上的消息转发给本分片的连接；挂起前告诉总线，有新消息时由总线唤醒
+ * <p>
+ * 阻塞的 Socket 没有就绪通知（accept 得到的连接没有 Channel，写线程又依赖阻塞的输出流，不能注册到 Selector），
+ * 所以这是一个轮询的循环，代价是：
+ * 1. 空闲之后连接上到达的第一条消息最多多等 {@link #MAX_PARK_NANOS}（2ms）；总线上的新消息会立即唤醒，不受影响
+ * 2. 对端关闭最快 {@link #PROBE_INTERVAL_NANOS}（100ms）被发现；一个分片有 N 个空闲连接时每个连接轮到一次检查大约要 N 毫秒，
+ * 即发现关闭的上限约为 max(100ms, N * {@link #PROBE_TIMEOUT}ms)，分片忙碌时不检查，最晚由空闲检测兜底
+ * 3. 检查时线程阻塞在读上，不占用cpu
+ * 每个分片的空闲连接很多（数千）或者需要及时发现断开时使用 {@link NioServer}
+ *
+ * @Since 0.0.2
+ */
+final class ReadLoop implements Runnable {
+
+    /**
+     * 读取的处理逻辑
+     */
+    interface Handler {
+
+        /**
+         * 连接有数据时读取并处理，出错时由实现负责断开
+         *
+         * @param session
+         * @return 是否读到了数据
+         */
+        boolean poll(Session session);
+
+        /**
+         * 连接没有已经到达的数据时真正读一次，检查是否已经断开，出错时由实现负责断开
+         *
+         * @param session
+         * @param timeout 最多阻塞的毫秒数
+         * @return 是否读到了数据
+         */
+        boolean probe(Session session, int timeout);
+    }
+
+    //连续空转多少轮之后让出cpu
+    private static final int SPIN_TRIES = 100;
+
+    //连续让出cpu多少轮之后挂起
+    private static final int YIELD_TRIES = 100;
+
+    //第一次挂起的时间
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    //挂起的最长时间，连接上的新数据不会唤醒读循环，这也是空闲之后第一条消息最多多等的时间
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    //检查连接是否断开时最多阻塞的时间，毫秒，不超过挂起的最长时间
+    static final int PROBE_TIMEOUT = 1;
+
+    //同一个连接两次检查之间的最短间隔
+    private static final long PROBE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    //每一轮最多转发的总线消息数，转发不会饿死读取
+    private static final int WRITE_BATCH = 256;
+
+    //当前线程驱动的读循环，其他线程中为 null
+    private static final ThreadLocal<ReadLoop> CURRENT = new ThreadLocal<>();
+
+    private static final Logger logger = Logger.getLogger(ReadLoop.class.getName());
+
+    private final int index;
+
+    private final Handler handler;
+
+    //本分片的写分片所在的总线
+    private final BroadcastBus bus;
+
+    //本分片的连接，只在本线程中访问
+    private final List<Session> owned = new ArrayList<>();
+
+    //下一个要检查是否断开的连接在 owned 中的下标
+    private int probeCursor;
+
+    //其他线程交过来的新连接
+    private final Queue<Session> inbox = new ConcurrentLinkedQueue<>();
+
+    private volatile Thread thread;
+
+    ReadLoop(int index, Handler handler, BroadcastBus bus) {
+        this.index = index;
+        this.handler = handler;
+        this.bus = bus;
+        bus.setWaker(index, () -> LockSupport.unpark(thread));
+    }
+
+    /**
+     * @return 当前线程驱动的读循环，不是读循环的线程返回 null
+     */
+    static ReadLoop current() {
+        return CURRENT.get();
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "read-loop-" + index);
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+    }
+
+    /**
+     * 把一个新连接交给该分片，协商和之后的读取都在该分片中完成，可以在任意线程中调用
+     *
+     * @param session
+     */
+    void register(Session session) {
+        inbox.add(session);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * 在本分片的线程中发布一条消息：缓冲满时不能等待，最慢的可能就是自己的写分片，先转发一批再重试
+     *
+     * @param message
+     */
+    void publish(EncodedMessage message) {
+        while (bus.tryPublish(message) < 0) {
+            if (bus.poll(index, WRITE_BATCH) == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        int idle = 0;
+        long park = MIN_PARK_NANOS;
+        while (true) {
+            Session session;
+            while ((session = inbox.poll()) != null) {
+                owned.add(session);
+            }
+            boolean busy = false;
+            for (int i = 0; i < owned.size(); ) {
+                session = owned.get(i);
+                if (session.isClosed()) {
+                    //与最后一个交换后删除，不移动其他元素
+                    owned.set(i, owned.get(owned.size() - 1));
+                    owned.remove(owned.size() - 1);
+                    continue;
+                }
+                try {
+                    busy |= handler.poll(session);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "read loop " + index + " failed: " + e);
+                }
+                i++;
+            }
+            if (probeCursor >= owned.size()) {
+                probeCursor = 0;
+            }
+            try {
+                busy |= bus.poll(index, WRITE_BATCH) > 0;
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "write shard " + index + " failed: " + e);
+            }
+            if (busy) {
+                idle = 0;
+                park = MIN_PARK_NANOS;
+            } else if (idle < SPIN_TRIES) {
+                idle++;
+            } else if (idle < SPIN_TRIES + YIELD_TRIES) {
+                idle++;
+                Thread.yield();
+            } else if (inbox.isEmpty() && bus.prepareWait(index)) {
+                Session probe = nextProbe();
+                if (probe == null) {
+                    LockSupport.parkNanos(this, park);
+                    park = Math.min(park << 1, MAX_PARK_NANOS);
+                } else if (probe(probe)) {
+                    idle = 0;
+                    park = MIN_PARK_NANOS;
+                }
+                bus.endWait(index);
+            } else {
+                //新连接交过来了，或者总线上有新消息，回到自旋
+                idle = 0;
+                park = MIN_PARK_NANOS;
+            }
+        }
+    }
+
+    /**
+     * 轮流找一个超过 {@link #PROBE_INTERVAL_NANOS} 没有检查过的连接
+     *
+     * @return 都刚检查过时返回 null
+     */
+    private Session nextProbe() {
+        long now = System.nanoTime();
+        for (int n = 0; n < owned.size(); n++) {
+            Session session = owned.get(probeCursor);
+            probeCursor = probeCursor + 1 < owned.size() ? probeCursor + 1 : 0;
+            if (!session.isClosed() && now - session.lastProbe >= PROBE_INTERVAL_NANOS) {
+                session.lastProbe = now;
+                return session;
+            }
+        }
+        return null;
+    }
+
+    private boolean probe(Session session) {
+        try {
+            return handler.probe(session, PROBE_TIMEOUT);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "read loop " + index + " failed: " + e);
+            return false;
+        }
+    }
+}
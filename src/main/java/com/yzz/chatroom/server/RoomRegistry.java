@@ -0,0 +1,184 @@
+package com.yzz.chatroom.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * describe: 房间 -> 成员 的订阅索引
+ * date:2019/1/23
+ * 转发时只遍历该房间的成员，开销与房间大小相关，与服务端总连接数无关。
+ * 每个房间的成员按会话的分片（{@link Session#shard()}）再分区，写分片只遍历自己的分区。
+ * 房间的创建与删除都在 ConcurrentHashMap.compute 中完成，与 join/leave/断开并发时索引保持一致：
+ * 会话先记录自己加入的房间再进入索引，断开时先标记关闭再按记录离开，两边总有一方能看到对方
+ *
+ * @Since 0.0.2
+ */
+public class RoomRegistry {
+
+    //默认房间，连接建立后自动加入，老客户端只能在这里聊天
+    public static final String DEFAULT_ROOM = "lobby";
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    //每个房间的分区数
+    private final int partitions;
+
+    //房间没人、被删除之后的回调
+    private final Consumer<String> onEmpty;
+
+    public RoomRegistry(int partitions) {
+        this(partitions, room -> {
+        });
+    }
+
+    /**
+     * @param partitions 每个房间的分区数
+     * @param onEmpty    房间最后一个成员离开、房间被删除之后调用，在离开的线程中执行
+     */
+    public RoomRegistry(int partitions, Consumer<String> onEmpty) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be positive");
+        }
+        this.partitions = partitions;
+        this.onEmpty = onEmpty;
+    }
+
+    /**
+     * 加入房间
+     *
+     * @param session
+     * @param room
+     * @return 之前不在该房间返回 true
+     */
+    public boolean join(Session session, String room) {
+        if (!session.rooms().add(room)) {
+            return false;
+        }
+        rooms.compute(room, (name, current) -> {
+            Room r = current == null ? new Room(partitions) : current;
+            r.add(session);
+            return r;
+        });
+        if (session.isClosed()) {
+            //与断开并发，断开时可能没有看到这个房间
+            leave(session, room);
+        }
+        return true;
+    }
+
+    /**
+     * 离开房间，房间空了就删除
+     *
+     * @param session
+     * @param room
+     * @return 之前在该房间返回 true
+     */
+    public boolean leave(Session session, String room) {
+        boolean member = session.rooms().remove(room);
+        boolean[] emptied = new boolean[1];
+        rooms.computeIfPresent(room, (name, current) -> {
+            current.remove(session);
+            emptied[0] = current.isEmpty();
+            return emptied[0] ? null : current;
+        });
+        if (emptied[0]) {
+            onEmpty.accept(room);
+        }
+        return member;
+    }
+
+    /**
+     * 断开时离开所有房间，调用前需要先 {@link Session#close()}
+     *
+     * @param session
+     */
+    public void leaveAll(Session session) {
+        for (String room : session.rooms()) {
+            leave(session, room);
+        }
+    }
+
+    /**
+     * 房间在某个分区的成员，弱一致的视图
+     *
+     * @param room
+     * @param partition
+     * @return
+     */
+    public Set<Session> members(String room, int partition) {
+        Room r = rooms.get(room);
+        return r == null ? Collections.<Session>emptySet() : r.partitions[partition];
+    }
+
+    /**
+     * 房间的所有成员，只有一个分区时使用
+     *
+     * @param room
+     * @return
+     */
+    public Set<Session> members(String room) {
+        return members(room, 0);
+    }
+
+    /**
+     * 所有房间及其人数，按名字排序
+     *
+     * @return
+     */
+    public Map<String, Integer> list() {
+        Map<String, Integer> result = new TreeMap<>();
+        for (Map.Entry<String, Room> entry : rooms.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().size());
+        }
+        return result;
+    }
+
+    public int partitions() {
+        return partitions;
+    }
+
+    /**
+     * 一个房间，成员按分片分区
+     */
+    private static final class Room {
+
+        private final Set<Session>[] partitions;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Room(int partitions) {
+            this.partitions = new Set[partitions];
+            for (int i = 0; i < partitions; i++) {
+                this.partitions[i] = ConcurrentHashMap.newKeySet();
+            }
+        }
+
+        void add(Session session) {
+            partitions[session.shard() % partitions.length].add(session);
+        }
+
+        void remove(Session session) {
+            partitions[session.shard() % partitions.length].remove(session);
+        }
+
+        boolean isEmpty() {
+            for (Set<Session> partition : partitions) {
+                if (!partition.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int size() {
+            int size = 0;
+            for (Set<Session> partition : partitions) {
+                size += partition.size();
+            }
+            return size;
+        }
+    }
+}
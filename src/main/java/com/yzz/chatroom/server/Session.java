@@ -0,0 +1,434 @@
+package com.yzz.chatroom.server;
+
+import com.yzz.chatroom.protocol.Frame;
+import com.yzz.chatroom.protocol.Header;
+import com.yzz.chatroom.protocol.Protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * describe: 服务端中一个客户端连接的会话，记录该连接协商好的协议和发送队列
+ * date:2019/1/20
+ *
+ * @Since 0.0.2
+ */
+public class Session {
+
+    private final Socket socket;
+
+    //协商之前为 null
+    private volatile Protocol protocol;
+
+    //可以回退一个字节的输入流，协商时用来窥探第一个字节，NIO 不使用
+    private PushbackInputStream in;
+
+    //发送队列，所有写出都经过这里，由该连接唯一的写线程写出，帧不会交错
+    private final OutboundQueue outbound;
+
+    //写出的所有权，拿到的线程是该连接此刻唯一的写线程，写完释放；不同连接之间互不影响
+    private final AtomicBoolean writer = new AtomicBoolean();
+
+    //合并写的缓冲，只由持有写出所有权的线程访问
+    private OutputStream writeStream;
+
+    //合并写：上次写出的时间 System.nanoTime()，只由写线程访问（NIO 为 selector 线程）
+    long lastFlush;
+
+    //加入的房间
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    //所属的写分片
+    private volatile int shard;
+
+    //是否已经断开
+    private volatile boolean closed;
+
+    //登记成功的昵称，登记之前为 null
+    private volatile String nickName;
+
+    //登记时的消息头，之后该连接发出的消息都使用它，客户端不需要每条消息都发送
+    private volatile Header header;
+
+    //加入 {@link SessionRegistry} 时分配的会话 id，0 表示还没有
+    private volatile int id;
+
+    //登记时分配的随机令牌，在 WELCOME 中告诉客户端，断线重连时用来顶替这个连接；0 表示还没有登记
+    private volatile long resumeToken;
+
+    //房间 -> 已经回放到的序号，不超过该序号的实时消息不再重复发送
+    private final Map<String, Long> replayed = new ConcurrentHashMap<>();
+
+    //建立连接的时间，System.nanoTime()
+    private final long connectedAt = System.nanoTime();
+
+    //最后一次收到该连接消息的时间，System.nanoTime()
+    private volatile long lastActivity = connectedAt;
+
+    //最后一次发送心跳的时间，由空闲检测的线程写入，断线重连的客户端登记时读取
+    private volatile long lastPing = lastActivity;
+
+    //限速：消息数和字节数的令牌桶，null 表示不限，accept 时按当时的配置创建
+    TokenBucket messageBucket;
+
+    TokenBucket byteBucket;
+
+    //限速 DELAY：在此之前不读取该连接，System.nanoTime()，只在读该连接的线程中访问；
+    //nanoTime 可以是负数，初始值不能是 0，否则 throttledUntil - now 一直大于 0，永远不读
+    long throttledUntil = System.nanoTime();
+
+    //输入流读到的字节数和已经计入限速的字节数，只在读该连接的线程中访问，NIO 不使用
+    private long bytesRead;
+
+    private long chargedBytes;
+
+    //读循环的读缓冲的初始大小
+    static final int INITIAL_PENDING = 4 * 1024;
+
+    //单帧的最大长度，超过则认为客户端异常
+    static final int MAX_PENDING = 16 * 1024 * 1024;
+
+    //读循环上次检查该连接是否断开的时间，System.nanoTime()，只由读循环访问
+    long lastProbe = connectedAt;
+
+    //读循环（BioServerSupper）的读缓冲：只读入已经到达的字节，凑齐整帧才解析；一直处于写模式，读空之后丢弃，空闲的连接不占用
+    //不从 {@link com.yzz.chatroom.buffer.BufferPool} 借：阻塞的输入流只能读进 byte[]，直接内存还要再复制一次，而且按需分配、读空即丢弃，不常驻
+    private ByteBuffer pending;
+
+    public Session(Socket socket, OutboundQueue outbound) {
+        this.socket = socket;
+        this.outbound = outbound;
+    }
+
+    public Socket socket() {
+        return socket;
+    }
+
+    public Protocol protocol() {
+        return protocol;
+    }
+
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * 是否已经完成协议协商
+     *
+     * @return
+     */
+    public boolean negotiated() {
+        return protocol != null;
+    }
+
+    /**
+     * 该连接的输入流，读操作都要经过这里，否则协商时回退的字节会丢失
+     *
+     * @return
+     * @throws IOException
+     */
+    public synchronized PushbackInputStream in() throws IOException {
+        if (in == null) {
+            in = new PushbackInputStream(new CountingInputStream(socket.getInputStream()), 1);
+        }
+        return in;
+    }
+
+    /**
+     * 上次调用以来从输入流读到的字节数，用于按字节限速
+     *
+     * @return
+     */
+    long takeBytesRead() {
+        long bytes = bytesRead - chargedBytes;
+        chargedBytes = bytesRead;
+        return bytes;
+    }
+
+    /**
+     * 把输入流中已经到达的字节读入读缓冲，不会阻塞；缓冲满了就换一块更大的
+     *
+     * @return 读到的字节数，没有已经到达的数据时返回 0
+     * @throws IOException
+     */
+    int readAvailable() throws IOException {
+        InputStream in = in();
+        int available = in.available();
+        if (available <= 0) {
+            return 0;
+        }
+        if (pending == null) {
+            pending = ByteBuffer.allocate(INITIAL_PENDING);
+        }
+        if (!pending.hasRemaining()) {
+            if (pending.capacity() >= MAX_PENDING) {
+                throw new IOException("frame too large from " + socket.getRemoteSocketAddress());
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(pending.capacity() << 1, MAX_PENDING));
+            pending.flip();
+            pending = bigger.put(pending);
+        }
+        int n = in.read(pending.array(), pending.arrayOffset() + pending.position(), Math.min(available, pending.remaining()));
+        if (n < 0) {
+            throw new EOFException("connection closed by " + socket.getRemoteSocketAddress());
+        }
+        pending.position(pending.position() + n);
+        return n;
+    }
+
+    /**
+     * 检查一个没有已到达数据的连接是否已经断开：对端关闭之后 available() 仍然返回 0，只能真正读一次才知道；
+     * 最多阻塞 timeout 毫秒，读到的字节放进读缓冲
+     *
+     * @param timeout 毫秒
+     * @return 是否读到了数据
+     * @throws IOException 对端已经关闭
+     */
+    boolean probe(int timeout) throws IOException {
+        if (pending != null && !pending.hasRemaining()) {
+            //缓冲满了，交给 readAvailable() 扩容
+            return false;
+        }
+        InputStream in = in();
+        int b;
+        socket.setSoTimeout(timeout);
+        try {
+            b = in.read();
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        if (b < 0) {
+            throw new EOFException("connection closed by " + socket.getRemoteSocketAddress());
+        }
+        if (pending == null) {
+            pending = ByteBuffer.allocate(INITIAL_PENDING);
+        }
+        pending.put((byte) b);
+        return true;
+    }
+
+    /**
+     * 读循环的读缓冲，只在 {@link #readAvailable()} 读到数据之后、{@link #recyclePending()} 之前可用
+     *
+     * @return
+     */
+    ByteBuffer pending() {
+        return pending;
+    }
+
+    /**
+     * 读缓冲中的数据都已经解析完时丢弃，半包留着等下一次读
+     */
+    void recyclePending() {
+        if (pending != null && pending.position() == 0) {
+            pending = null;
+        }
+    }
+
+    public Set<String> rooms() {
+        return rooms;
+    }
+
+    public int shard() {
+        return shard;
+    }
+
+    public void setShard(int shard) {
+        this.shard = shard;
+    }
+
+    public String nickName() {
+        return nickName;
+    }
+
+    public void setNickName(String nickName) {
+        this.nickName = nickName;
+    }
+
+    /**
+     * 记录某个房间已经回放到的序号
+     *
+     * @param room
+     * @param sequence
+     */
+    public void replayed(String room, long sequence) {
+        replayed.put(room, sequence);
+    }
+
+    /**
+     * 某个房间已经回放到的序号
+     *
+     * @param room
+     * @return 没有回放过返回 0
+     */
+    public long replayedUpTo(String room) {
+        Long sequence = replayed.get(room);
+        return sequence == null ? 0 : sequence;
+    }
+
+    public Header header() {
+        return header;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    long resumeToken() {
+        return resumeToken;
+    }
+
+    void setResumeToken(long resumeToken) {
+        this.resumeToken = resumeToken;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * 登记成功后记录消息头
+     *
+     * @param header
+     */
+    public void registered(Header header) {
+        this.header = header;
+    }
+
+    /**
+     * 收到了该连接的消息
+     */
+    public void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    public long connectedAt() {
+        return connectedAt;
+    }
+
+    public long lastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * 最后一次活动之后是否已经发送过心跳
+     *
+     * @return
+     */
+    boolean pingedSinceActivity() {
+        return lastPing - lastActivity > 0;
+    }
+
+    void pinged(long now) {
+        lastPing = now;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 标记为已断开并关闭发送队列，唤醒并结束写线程
+     */
+    public void close() {
+        closed = true;
+        outbound.close();
+    }
+
+    public OutboundQueue outbound() {
+        return outbound;
+    }
+
+    /**
+     * 尝试拿到写出的所有权，不阻塞
+     *
+     * @return 拿到返回 true，已经有线程在写返回 false
+     */
+    boolean claimWriter() {
+        return writer.compareAndSet(false, true);
+    }
+
+    /**
+     * 释放写出的所有权，释放之后需要再检查一次发送队列，避免错过释放之前入队的帧
+     */
+    void releaseWriter() {
+        writer.set(false);
+    }
+
+    /**
+     * 写线程使用的输出流，合并写时带缓冲，一个连接只创建一次
+     *
+     * @param flushBytes 缓冲大小，0 表示不缓冲
+     * @return
+     * @throws IOException
+     */
+    OutputStream writeStream(int flushBytes) throws IOException {
+        if (writeStream == null) {
+            writeStream = flushBytes > 0 ? new BufferedOutputStream(out(), flushBytes) : out();
+        }
+        return writeStream;
+    }
+
+    /**
+     * 入队等待写线程写出，不阻塞
+     *
+     * @param frame
+     * @return false 表示该连接已关闭或者是慢消费者需要断开
+     */
+    public boolean send(Frame frame) {
+        return outbound.offer(frame);
+    }
+
+    public OutputStream out() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    /**
+     * 记录读到的字节数
+     */
+    private final class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesRead += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            bytesRead += skipped;
+            return skipped;
+        }
+    }
+}
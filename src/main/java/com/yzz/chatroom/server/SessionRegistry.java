@@ -0,0 +1,92 @@
+package com.yzz.chatroom.server;
+
+import java.net.Socket;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * describe: 在线会话的登记表
+ * date:2019/2/1
+ * 1. 每个会话加入时分配一个非 0 的整数 id，按 id 或 Socket 查找、加入、移除都是常数时间
+ * 2. 在线数单独计数，读取时不需要遍历；移除只有成功的一方计数，重复移除不会少算
+ * 3. 遍历得到的是弱一致的视图，遍历期间加入或断开的会话可能看得到也可能看不到，不会抛出 ConcurrentModificationException
+ *
+ * @Since 0.0.2
+ */
+public class SessionRegistry {
+
+    //id -> 会话
+    private final ConcurrentHashMap<Integer, Session> byId = new ConcurrentHashMap<>();
+
+    //Socket -> 会话，读写路径上按连接查找
+    private final ConcurrentHashMap<Socket, Session> bySocket = new ConcurrentHashMap<>();
+
+    //分配会话 id
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    //在线数
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * 加入并分配 id
+     *
+     * @param session
+     * @return 分配的 id
+     */
+    public int add(Session session) {
+        if (bySocket.putIfAbsent(session.socket(), session) != null) {
+            throw new IllegalStateException("socket already registered");
+        }
+        int id;
+        do {
+            //回绕之后跳过 0 和仍然在线的 id
+            id = nextId.incrementAndGet();
+        } while (id == 0 || byId.putIfAbsent(id, session) != null);
+        session.setId(id);
+        size.incrementAndGet();
+        return id;
+    }
+
+    /**
+     * 移除该连接的会话
+     *
+     * @param client
+     * @return 被移除的会话，已经不在时返回 null
+     */
+    public Session remove(Socket client) {
+        Session session = bySocket.remove(client);
+        if (session == null) {
+            return null;
+        }
+        byId.remove(session.id(), session);
+        size.decrementAndGet();
+        return session;
+    }
+
+    public Session get(Socket client) {
+        return bySocket.get(client);
+    }
+
+    public Session get(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * 在线数
+     *
+     * @return
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * 所有在线会话，弱一致的视图
+     *
+     * @return
+     */
+    public Collection<Session> all() {
+        return byId.values();
+    }
+}
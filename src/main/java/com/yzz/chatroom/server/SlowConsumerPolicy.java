@@ -0,0 +1,19 @@
+package com.yzz.chatroom.server;
+
+/**
+ * describe: 客户端的发送队列满了之后（接收太慢）的处理策略
+ * date:2019/1/21
+ *
+ * @Since 0.0.2
+ */
+public enum SlowConsumerPolicy {
+
+    //丢弃最早的一帧，保证该客户端能看到最新的消息
+    DROP_OLDEST,
+
+    //断开该客户端
+    DISCONNECT,
+
+    //把队列中积压的帧合并成一帧，一次写出，不丢消息；合并后超过字节上限则断开
+    COALESCE
+}
@@ -0,0 +1,146 @@
+package com.yzz.chatroom.server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * describe: 哈希时间轮，用于大量连接的空闲检测
+ * date:2019/1/27
+ * 1. 时间被分成固定长度的刻度，每个刻度一个桶，到期时间落在哪个刻度就放进对应的桶（对桶数取模）
+ * 2. 每走过一个刻度，只处理该桶中的条目，由 {@link Handler} 根据条目自身的状态计算下一次的到期时间，重新放入对应的桶
+ * 3. 条目的活动时间由业务线程直接更新（例如每收到一条消息），时间轮不需要感知，到期时再检查，
+ * 所以活动频繁的连接不产生任何定时器操作；超过一圈的到期时间在每圈经过时重新放一次
+ * 没有每个连接一个的定时任务，处理成本与到期的条目数成正比，几十万个连接只占用桶中的一个引用。
+ * 除 {@link #schedule} 外只允许在推进时间轮的线程中调用
+ *
+ * @param <T>
+ * @Since 0.0.2
+ */
+final class TimerWheel<T> {
+
+    //{@link Handler#expired} 返回该值表示不再跟踪；System.nanoTime() 可以是任意值，包括负数，所以只能用一个确定的值比较
+    static final long CANCEL = Long.MIN_VALUE;
+
+    /**
+     * 到期处理
+     *
+     * @param <T>
+     */
+    interface Handler<T> {
+
+        /**
+         * 条目所在的刻度已经到了，检查条目并返回下一次的到期时间
+         *
+         * @param item
+         * @param now  System.nanoTime()
+         * @return 下一次的到期时间，{@link #CANCEL} 表示不再跟踪
+         */
+        long expired(T item, long now);
+    }
+
+    private final Queue<T>[] buckets;
+
+    private final int mask;
+
+    private final long tickNanos;
+
+    private final long startNanos;
+
+    private final Handler<T> handler;
+
+    //其他线程加入的条目，推进时放入桶中
+    private final Queue<Pending<T>> pending = new ConcurrentLinkedQueue<>();
+
+    //已经处理过的最后一个刻度
+    private long tick;
+
+    /**
+     * @param ticksPerWheel 桶数，向上取整为 2 的幂
+     * @param tickNanos     一个刻度的长度，纳秒
+     * @param handler
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(int ticksPerWheel, long tickNanos, Handler<T> handler) {
+        if (ticksPerWheel <= 0 || tickNanos <= 0) {
+            throw new IllegalArgumentException("ticksPerWheel and tickNanos must be positive");
+        }
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        size = Math.max(1, size);
+        buckets = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.tickNanos = tickNanos;
+        this.handler = handler;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * 开始跟踪一个条目，可以在任意线程调用
+     *
+     * @param item
+     * @param deadline 到期时间，System.nanoTime()
+     */
+    void schedule(T item, long deadline) {
+        pending.add(new Pending<>(item, deadline));
+    }
+
+    /**
+     * 推进到 now，处理走过的所有刻度
+     *
+     * @param now System.nanoTime()
+     */
+    void advance(long now) {
+        Pending<T> p;
+        while ((p = pending.poll()) != null) {
+            place(p.item, p.deadline);
+        }
+        long target = (now - startNanos) / tickNanos;
+        while (tick < target) {
+            tick++;
+            Queue<T> bucket = buckets[(int) (tick & mask)];
+            //处理过程中重新放回本桶的条目不在这一轮处理
+            for (int n = bucket.size(); n > 0; n--) {
+                T item = bucket.poll();
+                long next = handler.expired(item, now);
+                if (next != CANCEL) {
+                    place(item, next);
+                }
+            }
+        }
+    }
+
+    /**
+     * 距离下一个刻度的纳秒数
+     *
+     * @param now
+     * @return
+     */
+    long nanosToNextTick(long now) {
+        return startNanos + (tick + 1) * tickNanos - now;
+    }
+
+    long tickNanos() {
+        return tickNanos;
+    }
+
+    private void place(T item, long deadline) {
+        //向上取整到刻度，不早于下一个刻度
+        long t = Math.max(tick + 1, (deadline - startNanos + tickNanos - 1) / tickNanos);
+        buckets[(int) (t & mask)].add(item);
+    }
+
+    private static final class Pending<T> {
+
+        private final T item;
+
+        private final long deadline;
+
+        Pending(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
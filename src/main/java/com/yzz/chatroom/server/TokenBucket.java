@@ -0,0 +1,92 @@
+package com.yzz.chatroom.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * describe: 无锁的令牌桶
+ * date:2019/2/1
+ * 不保存令牌数，只保存“理论到达时间”（GCRA）：每取一个令牌把它向后推一个间隔，领先当前时间超过突发容量即超限。
+ * 状态只有一个 long，取令牌是一次 CAS，不需要定时补充令牌的线程，可以放在每一帧的路径上
+ * 1. {@link #tryAcquire} 超限时不取，返回还需要等待的纳秒数
+ * 2. {@link #acquire} 总是取（可以透支），返回调用方应该等待的纳秒数
+ * 3. {@link #refund} 退回已经取到的令牌，用于同一条消息被另一个桶拒绝的时候
+ * 桶是满的时候总是放行，所以单次超过突发容量的大帧不会永远被拒绝
+ *
+ * @Since 0.0.2
+ */
+public final class TokenBucket {
+
+    private static final AtomicLongFieldUpdater<TokenBucket> TAT = AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "tat");
+
+    //每个令牌的间隔，纳秒
+    private final double nanosPerToken;
+
+    //突发容量对应的时间，纳秒
+    private final long burstNanos;
+
+    //理论到达时间 System.nanoTime()，不晚于当前时间表示桶是满的
+    private volatile long tat;
+
+    /**
+     * @param perSecond 每秒补充的令牌数
+     * @param burst     突发容量，桶满时最多连续取多少个令牌
+     */
+    public TokenBucket(double perSecond, long burst) {
+        if (perSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("perSecond and burst must be positive");
+        }
+        this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / perSecond;
+        this.burstNanos = (long) (burst * nanosPerToken);
+        this.tat = System.nanoTime();
+    }
+
+    /**
+     * 取令牌，超限时不取
+     *
+     * @param tokens
+     * @param now    System.nanoTime()
+     * @return 0 表示取到了，否则为还需要等待的纳秒数
+     */
+    public long tryAcquire(long tokens, long now) {
+        long cost = (long) (tokens * nanosPerToken);
+        while (true) {
+            long current = tat;
+            long next = (current - now > 0 ? current : now) + cost;
+            long over = next - now - burstNanos;
+            if (over > 0 && current - now > 0) {
+                return over;
+            }
+            if (TAT.compareAndSet(this, current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 取令牌，超限时透支
+     *
+     * @param tokens
+     * @param now    System.nanoTime()
+     * @return 调用方应该等待的纳秒数，0 表示没有超限
+     */
+    public long acquire(long tokens, long now) {
+        long cost = (long) (tokens * nanosPerToken);
+        while (true) {
+            long current = tat;
+            long next = (current - now > 0 ? current : now) + cost;
+            if (TAT.compareAndSet(this, current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    /**
+     * 退回之前取到的令牌
+     *
+     * @param tokens
+     */
+    public void refund(long tokens) {
+        TAT.addAndGet(this, -(long) (tokens * nanosPerToken));
+    }
+}
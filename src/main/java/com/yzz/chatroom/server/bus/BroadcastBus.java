@@ -0,0 +1,437 @@
+package com.yzz.chatroom.server.bus;
+
+import com.yzz.chatroom.protocol.EncodedMessage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * describe: 读线程与写分片之间的广播总线
+ * date:2019/1/22
+ * 读线程解析出消息后只需 publish，不再自己遍历所有客户端；每个写分片都按环形缓冲的全局顺序消费全部消息，
+ * 并且只负责转发给属于自己的客户端。所以：
+ * 1. 每个客户端收到的消息顺序都相同（全局全序）
+ * 2. 热路径上没有锁，槽位预分配
+ * 3. 写分片没有自己的线程，由各自的事件循环调用 {@link #poll(int, int)} 驱动，每个分片在环形缓冲上的进度就是它的收件箱；
+ * 事件循环阻塞之前调用 {@link #prepareWait(int)}，之后有新消息时总线调用该分片的唤醒回调（例如 Selector#wakeup），
+ * 分片忙碌时发布不会产生额外的唤醒
+ * 4. 可以在写分片之前加一个单线程的阶段（{@link #setStage(Stage)}），例如写消息日志：它按全局顺序处理每条消息，
+ * 写分片只消费它处理完的消息，消息的先后完全由环形缓冲的序号决定，不需要额外的锁
+ * 5. 缓冲满时 {@link #publish(EncodedMessage)} 等待最慢的写分片；驱动写分片的线程自己发布时要用 {@link #tryPublish(EncodedMessage)}，
+ * 满了先处理自己的分片再重试，否则可能在等自己
+ *
+ * @Since 0.0.2
+ */
+public class BroadcastBus {
+
+    /**
+     * 写分片的处理逻辑
+     */
+    public interface Handler {
+        /**
+         * 把消息转发给该分片的客户端，不能再向总线发布
+         *
+         * @param shard   分片下标
+         * @param message 消息
+         * @param sequence 全局序号
+         */
+        void onMessage(int shard, EncodedMessage message, long sequence);
+    }
+
+    /**
+     * 写分片之前的阶段，在单独的线程中按全局顺序处理每条消息
+     */
+    public interface Stage {
+        /**
+         * 处理完返回之后写分片才能看到这条消息
+         *
+         * @param message  消息
+         * @param sequence 全局序号
+         */
+        void onMessage(EncodedMessage message, long sequence);
+    }
+
+    //自旋的次数
+    private static final int SPIN_TRIES = 100;
+
+    //让出cpu的次数
+    private static final int YIELD_TRIES = 100;
+
+    //挂起的最长时间，兜底
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final Logger logger = Logger.getLogger(BroadcastBus.class.getName());
+
+    private final RingBuffer<MessageEvent> ring;
+
+    private final Shard[] shards;
+
+    private final Handler handler;
+
+    //所有写分片都处理完、槽位已经清空的序号；生产者以它为准，槽位清空之前不会被复用
+    private final Sequence released = new Sequence(-1);
+
+    //清空槽位的所有权，同一时刻只有一个写分片在清空
+    private final AtomicBoolean releasing = new AtomicBoolean();
+
+    //写分片之前的阶段，没有时为 null
+    private StageProcessor stage;
+
+    private volatile boolean running;
+
+    /**
+     * @param bufferSize 环形缓冲大小，2的幂
+     * @param shardCount 写分片数
+     * @param handler
+     */
+    public BroadcastBus(int bufferSize, int shardCount, Handler handler) {
+        this.ring = new RingBuffer<>(bufferSize, MessageEvent::new);
+        this.handler = handler;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+        //released 不超过最慢的写分片，也就不超过写分片之前的阶段
+        ring.addGatingSequences(released);
+    }
+
+    /**
+     * 在写分片之前加一个阶段，需要在 start() 之前调用
+     *
+     * @param handler
+     */
+    public void setStage(Stage handler) {
+        if (running) {
+            throw new IllegalStateException("bus already started");
+        }
+        StageProcessor stage = new StageProcessor(handler);
+        for (Shard shard : shards) {
+            shard.upstream = stage;
+        }
+        this.stage = stage;
+    }
+
+    /**
+     * 设置写分片的唤醒回调，在任意线程中调用，需要在 start() 之前设置
+     *
+     * @param shard
+     * @param waker
+     */
+    public void setWaker(int shard, Runnable waker) {
+        shards[shard].waker = waker;
+    }
+
+    /**
+     * 启动写分片之前的阶段
+     */
+    public void start() {
+        running = true;
+        if (stage != null) {
+            stage.start();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (stage != null) {
+            LockSupport.unpark(stage.thread);
+        }
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * 已经认领序号、最慢的写分片还没有处理的消息数，不加锁，只用于监控
+     *
+     * @return
+     */
+    public long backlog() {
+        long cursor = ring.cursor();
+        return cursor - Math.min(cursor, slowestShard());
+    }
+
+    /**
+     * 发布一条消息，可以被多个读线程同时调用，缓冲满时等待
+     *
+     * @param message
+     * @return 全局序号
+     */
+    public long publish(EncodedMessage message) {
+        return publish(message, ring.next());
+    }
+
+    /**
+     * 发布一条消息，缓冲满时不等待
+     *
+     * @param message
+     * @return 全局序号，缓冲满时返回 -1
+     */
+    public long tryPublish(EncodedMessage message) {
+        long sequence = ring.tryNext();
+        return sequence < 0 ? sequence : publish(message, sequence);
+    }
+
+    private long publish(EncodedMessage message, long sequence) {
+        ring.get(sequence).set(message, sequence);
+        ring.publish(sequence);
+        StageProcessor stage = this.stage;
+        if (stage != null) {
+            stage.wakeUp();
+        } else {
+            wakeUpShards();
+        }
+        return sequence;
+    }
+
+    /**
+     * 处理写分片已经可以处理的消息，只能在驱动该分片的线程中调用
+     *
+     * @param shard
+     * @param limit 最多处理的条数
+     * @return 处理的条数
+     */
+    public int poll(int shard, int limit) {
+        return shards[shard].poll(limit);
+    }
+
+    /**
+     * 驱动写分片的线程准备阻塞，之后有新消息时调用该分片的唤醒回调，阻塞结束后调用 {@link #endWait(int)}
+     *
+     * @param shard
+     * @return false 表示已经有可以处理的消息，不能阻塞
+     */
+    public boolean prepareWait(int shard) {
+        return shards[shard].prepareWait();
+    }
+
+    public void endWait(int shard) {
+        shards[shard].waiting = false;
+    }
+
+    /**
+     * 清空所有写分片都已经处理完的槽位，之后才推进 released，生产者不会复用还没清空的槽位
+     * 由刚推进了序号的写分片调用，拿不到所有权时由持有者负责；持有者放手之后再检查一次，不会漏掉期间的推进
+     */
+    private void release() {
+        while (releasing.compareAndSet(false, true)) {
+            long from = released.get();
+            long to;
+            try {
+                to = slowestShard();
+                for (long s = from + 1; s <= to; s++) {
+                    ring.get(s).clear();
+                }
+                if (to > from) {
+                    released.set(to);
+                }
+            } finally {
+                releasing.set(false);
+            }
+            if (slowestShard() <= to) {
+                return;
+            }
+        }
+    }
+
+    private long slowestShard() {
+        long slowest = Long.MAX_VALUE;
+        for (Shard shard : shards) {
+            slowest = Math.min(slowest, shard.sequence.get());
+        }
+        return slowest;
+    }
+
+    private void wakeUpShards() {
+        for (Shard shard : shards) {
+            shard.wakeUp();
+        }
+    }
+
+    /**
+     * 按顺序消费整个环形缓冲，上游为 null 时消费生产者发布的消息，否则只消费上游处理完的消息
+     * 任何时刻只有一个线程驱动
+     */
+    private abstract class Processor {
+
+        //已经处理完的序号
+        final Sequence sequence = new Sequence(-1);
+
+        //上游阶段，null 表示直接消费生产者发布的消息
+        Processor upstream;
+
+        //是否准备阻塞等待
+        volatile boolean waiting;
+
+        //有新消息时的唤醒回调
+        volatile Runnable waker;
+
+        /**
+         * 处理一条消息
+         *
+         * @param event
+         */
+        abstract void onMessage(MessageEvent event);
+
+        void wakeUp() {
+            if (waiting) {
+                Runnable waker = this.waker;
+                if (waker != null) {
+                    waker.run();
+                }
+            }
+        }
+
+        /**
+         * 处理已经可以处理的消息
+         *
+         * @param limit 最多处理的条数
+         * @return 处理的条数
+         */
+        int poll(int limit) {
+            long next = sequence.get() + 1;
+            long available = Math.min(available(next), next + limit - 1);
+            if (available < next) {
+                return 0;
+            }
+            for (long s = next; s <= available; s++) {
+                MessageEvent event = ring.get(s);
+                try {
+                    onMessage(event);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "broadcast " + this + " failed: " + e);
+                }
+            }
+            advanced(available);
+            return (int) (available - next + 1);
+        }
+
+        /**
+         * 设置等待标记之后再检查一次，避免错过上游的唤醒
+         *
+         * @return 是否可以阻塞
+         */
+        boolean prepareWait() {
+            waiting = true;
+            long next = sequence.get() + 1;
+            if (available(next) >= next) {
+                waiting = false;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * 处理完才释放槽位给生产者
+         *
+         * @param available
+         */
+        void advanced(long available) {
+            sequence.lazySet(available);
+        }
+
+        /**
+         * 从 next 开始连续可以处理的最大序号
+         *
+         * @param next
+         * @return 小于 next 表示还不能处理
+         */
+        private long available(long next) {
+            Processor upstream = this.upstream;
+            if (upstream != null) {
+                return upstream.sequence.get();
+            }
+            return ring.isAvailable(next) ? ring.highestPublished(next, ring.cursor()) : next - 1;
+        }
+    }
+
+    /**
+     * 写分片之前的阶段，有自己的线程：自旋 -> 让出cpu -> 挂起，直到有消息可以处理
+     */
+    private final class StageProcessor extends Processor implements Runnable {
+
+        private final Stage handler;
+
+        volatile Thread thread;
+
+        StageProcessor(Stage handler) {
+            this.handler = handler;
+            this.waker = () -> LockSupport.unpark(thread);
+        }
+
+        void start() {
+            Thread thread = new Thread(this, "broadcast-stage");
+            thread.setDaemon(true);
+            this.thread = thread;
+            thread.start();
+        }
+
+        @Override
+        void onMessage(MessageEvent event) {
+            handler.onMessage(event.message(), event.sequence());
+        }
+
+        @Override
+        void advanced(long available) {
+            //volatile 写，之后读取写分片的等待标记时不会被重排到它之前
+            sequence.set(available);
+            wakeUpShards();
+        }
+
+        @Override
+        public void run() {
+            int tries = 0;
+            while (running) {
+                if (poll(Integer.MAX_VALUE) > 0) {
+                    tries = 0;
+                } else if (tries < SPIN_TRIES) {
+                    tries++;
+                } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                    tries++;
+                    Thread.yield();
+                } else if (prepareWait()) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    waiting = false;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "stage";
+        }
+    }
+
+    /**
+     * 写分片，只转发给属于自己的客户端
+     */
+    private final class Shard extends Processor {
+
+        private final int index;
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        @Override
+        void onMessage(MessageEvent event) {
+            handler.onMessage(index, event.message(), event.sequence());
+        }
+
+        @Override
+        void advanced(long available) {
+            //volatile 写：与 release() 中放手后的再次检查配对，正在清空的分片一定能看到这次推进
+            sequence.set(available);
+            release();
+        }
+
+        @Override
+        public String toString() {
+            return "shard-" + index;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.yzz.chatroom.server.bus;
+
+import com.yzz.chatroom.protocol.EncodedMessage;
+
+/**
+ * describe: 环形缓冲中的槽位，创建时分配，之后反复复用
+ * date:2019/1/22
+ *
+ * @Since 0.0.2
+ */
+public class MessageEvent {
+
+    private EncodedMessage message;
+
+    //发布时的全局序号
+    private long sequence;
+
+    public EncodedMessage message() {
+        return message;
+    }
+
+    public long sequence() {
+        return sequence;
+    }
+
+    void set(EncodedMessage message, long sequence) {
+        this.message = message;
+        this.sequence = sequence;
+    }
+
+    /**
+     * 所有写分片都转发完之后丢掉消息，已经编码的帧不再被槽位引用
+     */
+    void clear() {
+        this.message = null;
+    }
+}
@@ -0,0 +1,155 @@
+package com.yzz.chatroom.server.bus;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * describe: Disruptor 风格的多生产者环形缓冲
+ * date:2019/1/22
+ * 1. 槽位在创建时一次性分配，之后只复用，不会为每条消息分配
+ * 2. 生产者通过 CAS 认领序号，所有消息因此有一个全局唯一的顺序
+ * 3. 每个槽位记录已发布的圈数，消费者据此判断序号是否已发布，不需要锁
+ * 4. 生产者不能超过最慢的消费者一整圈（gating sequence），缓冲满时 next() 等待，tryNext() 直接返回
+ *
+ * @Since 0.0.2
+ */
+public class RingBuffer<E> {
+
+    private final Object[] entries;
+
+    private final int bufferSize;
+
+    private final int mask;
+
+    private final int indexShift;
+
+    //已经认领的最大序号
+    private final Sequence cursor = new Sequence(-1);
+
+    //最慢消费者序号的缓存，减少遍历 gating sequence 的次数
+    private final Sequence gatingCache = new Sequence(-1);
+
+    //每个槽位已发布的圈数
+    private final AtomicIntegerArray available;
+
+    //消费者的序号
+    private volatile Sequence[] gatingSequences = new Sequence[0];
+
+    public RingBuffer(int bufferSize, Supplier<E> factory) {
+        if (bufferSize < 1 || Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("bufferSize must be a power of 2");
+        }
+        this.bufferSize = bufferSize;
+        this.mask = bufferSize - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(bufferSize);
+        this.entries = new Object[bufferSize];
+        for (int i = 0; i < bufferSize; i++) {
+            entries[i] = factory.get();
+        }
+        this.available = new AtomicIntegerArray(bufferSize);
+        for (int i = 0; i < bufferSize; i++) {
+            available.set(i, -1);
+        }
+    }
+
+    /**
+     * 添加消费者的序号，需要在发布之前调用
+     *
+     * @param sequences
+     */
+    public synchronized void addGatingSequences(Sequence... sequences) {
+        Sequence[] current = gatingSequences;
+        Sequence[] next = new Sequence[current.length + sequences.length];
+        System.arraycopy(current, 0, next, 0, current.length);
+        System.arraycopy(sequences, 0, next, current.length, sequences.length);
+        gatingSequences = next;
+    }
+
+    /**
+     * 认领下一个序号，缓冲满时等待最慢的消费者
+     *
+     * @return
+     */
+    public long next() {
+        long next;
+        while ((next = tryNext()) < 0) {
+            //消费者还没有处理完一整圈之前的槽位
+            LockSupport.parkNanos(1);
+        }
+        return next;
+    }
+
+    /**
+     * 认领下一个序号，缓冲满时不等待；同时也是消费者的线程只能用它，否则可能在等自己
+     *
+     * @return 缓冲满时返回 -1
+     */
+    public long tryNext() {
+        while (true) {
+            long current = cursor.get();
+            long next = current + 1;
+            long wrapPoint = next - bufferSize;
+            long cachedGating = gatingCache.get();
+            if (wrapPoint > cachedGating || cachedGating > current) {
+                long gating = minimumSequence(current);
+                if (wrapPoint > gating) {
+                    return -1;
+                }
+                gatingCache.set(gating);
+            } else if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    /**
+     * 发布序号，对消费者可见
+     * 使用 volatile 写，之后读取消费者等待标记时不会被重排到它之前
+     *
+     * @param sequence
+     */
+    public void publish(long sequence) {
+        available.set((int) sequence & mask, (int) (sequence >>> indexShift));
+    }
+
+    public boolean isAvailable(long sequence) {
+        return available.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+    }
+
+    /**
+     * 从 lower 开始连续已发布的最大序号
+     *
+     * @param lower
+     * @param upper 不超过该序号
+     * @return 小于 lower 表示 lower 还没有发布
+     */
+    public long highestPublished(long lower, long upper) {
+        for (long sequence = lower; sequence <= upper; sequence++) {
+            if (!isAvailable(sequence)) {
+                return sequence - 1;
+            }
+        }
+        return upper;
+    }
+
+    public long cursor() {
+        return cursor.get();
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    private long minimumSequence(long minimum) {
+        for (Sequence sequence : gatingSequences) {
+            minimum = Math.min(minimum, sequence.get());
+        }
+        return minimum;
+    }
+}
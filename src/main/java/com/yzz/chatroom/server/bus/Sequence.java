@@ -0,0 +1,56 @@
+package com.yzz.chatroom.server.bus;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * describe: 环形缓冲中的序号，前后填充避免伪共享
+ * date:2019/1/22
+ *
+ * @Since 0.0.2
+ */
+class LhsPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class Value extends LhsPadding {
+    protected volatile long value;
+}
+
+class RhsPadding extends Value {
+    protected long p9, p10, p11, p12, p13, p14, p15;
+}
+
+public class Sequence extends RhsPadding {
+
+    private static final AtomicLongFieldUpdater<Value> UPDATER = AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+
+    public Sequence(long initial) {
+        UPDATER.lazySet(this, initial);
+    }
+
+    public long get() {
+        return value;
+    }
+
+    /**
+     * 有序写，只保证之前的写不会重排到它之后，比 volatile 写便宜
+     *
+     * @param value
+     */
+    public void lazySet(long value) {
+        UPDATER.lazySet(this, value);
+    }
+
+    public void set(long value) {
+        this.value = value;
+    }
+
+    public boolean compareAndSet(long expect, long update) {
+        return UPDATER.compareAndSet(this, expect, update);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(value);
+    }
+}
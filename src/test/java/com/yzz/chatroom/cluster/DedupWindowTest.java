@@ -0,0 +1,79 @@
+package com.yzz.chatroom.cluster;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * describe: 集群转发的去重窗口
+ * date:2019/1/24
+ */
+public class DedupWindowTest {
+
+    private static final int SIZE = ClusterNode.DedupWindow.SIZE;
+
+    private final ClusterNode.DedupWindow window = new ClusterNode.DedupWindow();
+
+    @Test
+    public void rejectsRepeatsAndNonPositive() {
+        assertFalse(window.firstTime(0));
+        assertFalse(window.firstTime(-1));
+        assertTrue(window.firstTime(1));
+        assertFalse(window.firstTime(1));
+        assertTrue(window.firstTime(2));
+    }
+
+    @Test
+    public void acceptsOutOfOrderInsideWindow() {
+        assertTrue(window.firstTime(10));
+        assertTrue(window.firstTime(8));
+        assertTrue(window.firstTime(9));
+        assertFalse(window.firstTime(8));
+        assertFalse(window.firstTime(10));
+    }
+
+    @Test
+    public void exactlySizeBehindIsDuplicate() {
+        long highest = SIZE + 100;
+        assertTrue(window.firstTime(highest));
+        //最早还在窗口内的序号
+        assertTrue(window.firstTime(highest - SIZE + 1));
+        assertFalse(window.firstTime(highest - SIZE + 1));
+        //正好落后一个窗口，和最大序号共用同一个位，视为重复
+        assertFalse(window.firstTime(highest - SIZE));
+        assertFalse(window.firstTime(highest - SIZE - 1));
+        //最大序号自己的位没有被误清
+        assertFalse(window.firstTime(highest));
+    }
+
+    @Test
+    public void advancingClearsReusedBits() {
+        assertTrue(window.firstTime(1));
+        assertTrue(window.firstTime(2));
+        //1 + SIZE 与 1 共用同一个位，窗口前移之后要当作第一次收到
+        assertTrue(window.firstTime(1 + SIZE));
+        //2 还在窗口内，仍然是重复
+        assertFalse(window.firstTime(2));
+        assertTrue(window.firstTime(3));
+    }
+
+    @Test
+    public void jumpOfSizeOrMoreResetsWindow() {
+        for (long s = 1; s <= 100; s++) {
+            assertTrue(window.firstTime(s));
+        }
+        long highest = 100 + SIZE;
+        assertTrue(window.firstTime(highest));
+        //新窗口内的序号都没有收到过，即使它们和旧序号共用同一个位
+        for (long s = highest - SIZE + 1; s < highest - SIZE + 200; s++) {
+            assertTrue(window.firstTime(s));
+        }
+        assertFalse(window.firstTime(100));
+        long next = highest + 3L * SIZE + 7;
+        assertTrue(window.firstTime(next));
+        assertTrue(window.firstTime(next - 1));
+        assertTrue(window.firstTime(next - SIZE + 1));
+        assertFalse(window.firstTime(highest));
+    }
+}
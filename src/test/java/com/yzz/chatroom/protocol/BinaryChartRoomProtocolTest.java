@@ -0,0 +1,185 @@
+package com.yzz.chatroom.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * describe: 二进制协议的编解码
+ * date:2019/1/20
+ */
+public class BinaryChartRoomProtocolTest {
+
+    private final BinaryChartRoomProtocol protocol = BinaryChartRoomProtocol.getInstance();
+
+    @Test
+    public void roundTripsEveryField() throws Exception {
+        Message message = fullMessage();
+        byte[] frame = protocol.encode(message);
+        assertSameMessage(message, protocol.decode(ByteBuffer.wrap(frame)));
+        assertSameMessage(message, protocol.parse(new ByteArrayInputStream(frame)));
+        ByteBuffer direct = ByteBuffer.allocateDirect(frame.length);
+        direct.put(frame).flip();
+        assertSameMessage(message, protocol.decode(direct));
+    }
+
+    @Test
+    public void roundTripsCompactFrameAndNullBody() throws Exception {
+        Message message = new Message(null, null, MessageType.CHAT, null);
+        message.setSessionId(7);
+        Message decoded = protocol.decode(ByteBuffer.wrap(protocol.encode(message)));
+        assertNull(decoded.getHeader());
+        assertNull(decoded.getMessage());
+        assertNull(decoded.getRoom());
+        assertEquals(7, decoded.getSessionId());
+    }
+
+    @Test
+    public void halfFrameLeavesPositionUntouched() throws Exception {
+        byte[] frame = protocol.encode(fullMessage());
+        for (int length = 0; length < frame.length; length++) {
+            ByteBuffer buffer = ByteBuffer.wrap(frame, 0, length);
+            assertNull(protocol.decode(buffer));
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void decodesBackToBackFrames() throws Exception {
+        byte[] first = protocol.encode(new Message(new Header("h", 1, "a"), "one", MessageType.CHAT, "r"));
+        byte[] second = protocol.encode(new Message(new Header("h", 1, "b"), "two", MessageType.CHAT, "r"));
+        ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length);
+        buffer.put(first).put(second).flip();
+        assertEquals("one", protocol.decode(buffer).getMessage());
+        assertEquals("two", protocol.decode(buffer).getMessage());
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void rejectsUnknownVersion() throws Exception {
+        byte[] frame = protocol.encode(fullMessage());
+        frame[BinaryChartRoomProtocol.LENGTH_FIELD] = BinaryChartRoomProtocol.VERSION + 1;
+        assertCorrupted(ByteBuffer.wrap(frame));
+    }
+
+    @Test
+    public void rejectsUnknownType() throws Exception {
+        byte[] frame = protocol.encode(fullMessage());
+        frame[BinaryChartRoomProtocol.LENGTH_FIELD + 1] = 100;
+        assertCorrupted(ByteBuffer.wrap(frame));
+    }
+
+    @Test
+    public void rejectsIllegalFrameLength() throws Exception {
+        assertCorrupted(ByteBuffer.allocate(8).putInt(-1).putInt(0).flip());
+        assertCorrupted(ByteBuffer.allocate(8).putInt(BinaryChartRoomProtocol.MAX_FRAME_LENGTH + 1).putInt(0).flip());
+        assertCorrupted(ByteBuffer.allocate(8).putInt(2).putInt(0).flip());
+    }
+
+    @Test
+    public void rejectsFieldsLongerThanFrame() throws Exception {
+        ByteBuffer frame = ByteBuffer.allocate(BinaryChartRoomProtocol.LENGTH_FIELD + 3 + 4);
+        frame.putInt(3 + 4)
+                .put(BinaryChartRoomProtocol.VERSION)
+                .put(MessageType.CHAT)
+                .put(BinaryChartRoomProtocol.FLAG_COMPACT)
+                .putInt(100);
+        frame.flip();
+        assertCorrupted(frame);
+    }
+
+    @Test
+    public void rejectsCompactFrameWithoutSession() throws Exception {
+        ByteBuffer frame = ByteBuffer.allocate(BinaryChartRoomProtocol.LENGTH_FIELD + 3 + 4);
+        frame.putInt(3 + 4)
+                .put(BinaryChartRoomProtocol.VERSION)
+                .put(MessageType.CHAT)
+                .put(BinaryChartRoomProtocol.FLAG_COMPACT)
+                .putInt(-1);
+        frame.flip();
+        assertCorrupted(frame);
+    }
+
+    @Test
+    public void rejectsStringLongerThanDirectFrame() throws Exception {
+        //帧本身只有 version type flags 和一个长度字段，字符串声明的长度远超帧的剩余
+        ByteBuffer frame = ByteBuffer.allocateDirect(BinaryChartRoomProtocol.LENGTH_FIELD + 3 + 4);
+        frame.putInt(3 + 4)
+                .put(BinaryChartRoomProtocol.VERSION)
+                .put(MessageType.CHAT)
+                .put((byte) 0)
+                .putInt(Integer.MAX_VALUE - 8);
+        frame.flip();
+        //长度检查在分配之前，不会 OutOfMemoryError
+        assertCorrupted(frame);
+    }
+
+    @Test
+    public void deflatesLargeFramesOnly() throws Exception {
+        BinaryChartRoomProtocol compressed = BinaryChartRoomProtocol.compressed();
+        Message small = fullMessage();
+        assertEquals(0, compressed.encode(small)[BinaryChartRoomProtocol.LENGTH_FIELD + 2] & BinaryChartRoomProtocol.FLAG_DEFLATE);
+
+        Message large = fullMessage();
+        large.setMessage(repeat("聊天室 chatroom ", 1000));
+        byte[] frame = compressed.encode(large);
+        assertTrue((frame[BinaryChartRoomProtocol.LENGTH_FIELD + 2] & BinaryChartRoomProtocol.FLAG_DEFLATE) != 0);
+        assertTrue(frame.length < protocol.encode(large).length);
+        assertSameMessage(large, compressed.decode(ByteBuffer.wrap(frame)));
+        assertSameMessage(large, compressed.parse(new ByteArrayInputStream(frame)));
+    }
+
+    @Test
+    public void uncompressedInstanceRejectsDeflatedFrame() throws Exception {
+        Message large = fullMessage();
+        large.setMessage(repeat("chatroom ", 1000));
+        assertCorrupted(ByteBuffer.wrap(BinaryChartRoomProtocol.compressed().encode(large)));
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder(text.length() * times);
+        for (int i = 0; i < times; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    private static Message fullMessage() {
+        Message message = new Message(new Header("127.0.0.1", 9090, "小明"), "你好 hello", MessageType.CHAT, "room-1");
+        message.setRecipient("小红");
+        message.setSequence(42);
+        message.setSessionId(3);
+        message.setOrigin("node-a");
+        message.setResumeToken(0x1234567890L);
+        return message;
+    }
+
+    private static void assertSameMessage(Message expected, Message actual) {
+        assertEquals(expected.getHeader().getHost(), actual.getHeader().getHost());
+        assertEquals(expected.getHeader().getPort(), actual.getHeader().getPort());
+        assertEquals(expected.getHeader().getNickName(), actual.getHeader().getNickName());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getRoom(), actual.getRoom());
+        assertEquals(expected.getRecipient(), actual.getRecipient());
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getSessionId(), actual.getSessionId());
+        assertEquals(expected.getOrigin(), actual.getOrigin());
+        assertEquals(expected.getResumeToken(), actual.getResumeToken());
+    }
+
+    private void assertCorrupted(ByteBuffer buffer) throws Exception {
+        try {
+            protocol.decode(buffer);
+            fail("expected StreamCorruptedException");
+        } catch (StreamCorruptedException expected) {
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.yzz.chatroom.server;
+
+import com.yzz.chatroom.protocol.Frame;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * describe: 发送队列满了之后的各个策略
+ * date:2019/1/21
+ */
+public class OutboundQueueTest {
+
+    @Test
+    public void dropOldestKeepsLatest() {
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.DROP_OLDEST, 0);
+        assertTrue(queue.offer(frame("a")));
+        assertTrue(queue.offer(frame("bb")));
+        assertTrue(queue.offer(frame("ccc")));
+        assertEquals(2, queue.size());
+        assertEquals(5, queue.bytes());
+        assertEquals("bb", text(queue.poll()));
+        assertEquals("ccc", text(queue.poll()));
+        assertNull(queue.poll());
+        assertEquals(0, queue.bytes());
+    }
+
+    @Test
+    public void disconnectRejectsWhenFull() {
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.DISCONNECT, 0);
+        assertTrue(queue.offer(frame("a")));
+        assertTrue(queue.offer(frame("b")));
+        assertFalse(queue.offer(frame("c")));
+        //积压的帧不受影响
+        assertEquals(2, queue.size());
+        assertEquals("a", text(queue.poll()));
+        assertTrue(queue.offer(frame("c")));
+    }
+
+    @Test
+    public void coalesceMergesUntilByteLimit() {
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.COALESCE, 10);
+        assertTrue(queue.offer(frame("aaa")));
+        assertTrue(queue.offer(frame("bbb")));
+        //积压 6 字节，合并成一帧之后再入队
+        assertTrue(queue.offer(frame("ccc")));
+        assertEquals(2, queue.size());
+        assertEquals(9, queue.bytes());
+        //积压 9 字节，仍然可以合并
+        assertTrue(queue.offer(frame("ddd")));
+        assertEquals(2, queue.size());
+        assertEquals(12, queue.bytes());
+        //积压超过上限，断开
+        assertFalse(queue.offer(frame("eee")));
+        assertEquals("aaabbbccc", text(queue.poll()));
+        assertEquals("ddd", text(queue.poll()));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void finishDrainsThenEnds() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, SlowConsumerPolicy.DISCONNECT, 0);
+        assertTrue(queue.offer(frame("reject")));
+        queue.finish();
+        //finish 之后的帧丢弃，但不要求断开
+        assertTrue(queue.offer(frame("late")));
+        assertFalse(queue.finished());
+        assertEquals("reject", text(queue.poll(1, TimeUnit.SECONDS)));
+        assertTrue(queue.finished());
+        //写完之后不再等待
+        assertNull(queue.poll(1, TimeUnit.HOURS));
+    }
+
+    @Test
+    public void closeDiscardsBacklog() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, SlowConsumerPolicy.DROP_OLDEST, 0);
+        assertTrue(queue.offer(frame("a")));
+        queue.close();
+        assertFalse(queue.offer(frame("b")));
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.bytes());
+        assertNull(queue.poll(1, TimeUnit.HOURS));
+    }
+
+    @Test
+    public void timedPollReturnsNullWhenIdle() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, SlowConsumerPolicy.DISCONNECT, 0);
+        assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+        assertTrue(queue.offer(frame("a")));
+        assertEquals("a", text(queue.poll(1, TimeUnit.MILLISECONDS)));
+    }
+
+    private static Frame frame(String text) {
+        return new Frame(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(Frame frame) {
+        ByteBuffer buffer = frame.buffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
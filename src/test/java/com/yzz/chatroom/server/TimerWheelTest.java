@@ -0,0 +1,123 @@
+package com.yzz.chatroom.server;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * describe: 时间轮的到期与重新放入
+ * date:2019/1/27
+ */
+public class TimerWheelTest {
+
+    //刻度足够长，构造时间轮和读取 base 之间的误差可以忽略
+    private static final long TICK = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int TICKS = 8;
+
+    //条目的到期时间，相当于连接最后一次活动之后的超时时间
+    private final Map<String, Long> deadlines = new HashMap<>();
+
+    //被检查的条目，以及检查时推进到的刻度
+    private final List<String> checked = new ArrayList<>();
+
+    private final List<String> expired = new ArrayList<>();
+
+    private long base;
+
+    private TimerWheel<String> wheel;
+
+    @Before
+    public void setUp() {
+        base = System.nanoTime();
+        wheel = new TimerWheel<>(TICKS, TICK, (item, now) -> {
+            checked.add(item + "@" + (now - base) / TICK);
+            long deadline = deadlines.get(item);
+            if (now - deadline < 0) {
+                return deadline;
+            }
+            expired.add(item);
+            return TimerWheel.CANCEL;
+        });
+    }
+
+    @Test
+    public void expiresAtDeadlineTick() {
+        schedule("a", 3);
+        advanceTo(2);
+        assertEquals(0, checked.size());
+        advanceTo(3);
+        assertEquals(1, expired.size());
+        advanceTo(3 + TICKS);
+        assertEquals(1, checked.size());
+    }
+
+    @Test
+    public void reschedulesAcrossFullTurn() {
+        //超过一圈，落在第 2 个桶，第 2 个刻度经过时还没到期
+        schedule("a", TICKS + 2);
+        advanceTo(2);
+        assertEquals(1, checked.size());
+        assertEquals("a@2", checked.get(0));
+        assertEquals(0, expired.size());
+        //重新放回同一个桶，这一圈剩下的刻度不再检查
+        advanceTo(TICKS + 1);
+        assertEquals(1, checked.size());
+        advanceTo(TICKS + 2);
+        assertEquals(2, checked.size());
+        assertEquals("a@" + (TICKS + 2), checked.get(1));
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void activityPushesDeadlineBack() {
+        schedule("a", 2);
+        //到期之前有活动，只改到期时间，不操作时间轮
+        deadlines.put("a", base + 5 * TICK);
+        advanceTo(2);
+        assertEquals(0, expired.size());
+        advanceTo(4);
+        assertEquals(0, expired.size());
+        advanceTo(5);
+        assertEquals(1, expired.size());
+        assertEquals(2, checked.size());
+    }
+
+    @Test
+    public void pastDeadlineFiresOnNextTick() {
+        advanceTo(4);
+        schedule("a", 1);
+        advanceTo(5);
+        assertEquals(1, expired.size());
+        assertEquals("a@5", checked.get(0));
+    }
+
+    @Test
+    public void catchesUpSkippedTicks() {
+        schedule("a", 1);
+        schedule("b", 3);
+        schedule("c", 3 * TICKS + 1);
+        //一次推进走过多圈，检查时用的是推进到的时间，已经到期的条目在第一次经过时就结束
+        advanceTo(3 * TICKS + 1);
+        assertEquals(3, expired.size());
+        assertEquals(3, checked.size());
+    }
+
+    private void schedule(String item, long ticks) {
+        long deadline = base + ticks * TICK;
+        deadlines.put(item, deadline);
+        wheel.schedule(item, deadline);
+    }
+
+    private void advanceTo(long ticks) {
+        //刻度中间，避开边界
+        wheel.advance(base + ticks * TICK + TICK / 2);
+    }
+}
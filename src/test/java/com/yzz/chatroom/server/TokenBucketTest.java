@@ -0,0 +1,82 @@
+package com.yzz.chatroom.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * describe: 令牌桶的突发、透支与退回
+ * date:2019/2/1
+ */
+public class TokenBucketTest {
+
+    //每秒 10 个令牌，一个令牌 100ms
+    private static final long TOKEN = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final int BURST = 5;
+
+    private final TokenBucket bucket = new TokenBucket(10, BURST);
+
+    //构造之后取当前时间，桶是满的
+    private final long now = System.nanoTime();
+
+    @Test
+    public void allowsBurstThenWaits() {
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(0, bucket.tryAcquire(1, now));
+        }
+        assertEquals(TOKEN, bucket.tryAcquire(1, now));
+        //超限时不取，等待时间不变
+        assertEquals(TOKEN, bucket.tryAcquire(1, now));
+        assertEquals(0, bucket.tryAcquire(1, now + TOKEN));
+        assertEquals(TOKEN, bucket.tryAcquire(1, now + TOKEN));
+    }
+
+    @Test
+    public void idleRefillIsCappedAtBurst() {
+        long later = now + TimeUnit.HOURS.toNanos(1);
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(0, bucket.tryAcquire(1, later));
+        }
+        assertEquals(TOKEN, bucket.tryAcquire(1, later));
+    }
+
+    @Test
+    public void refundReturnsTokens() {
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(0, bucket.tryAcquire(1, now));
+        }
+        bucket.refund(2);
+        assertEquals(0, bucket.tryAcquire(1, now));
+        assertEquals(0, bucket.tryAcquire(1, now));
+        assertEquals(TOKEN, bucket.tryAcquire(1, now));
+    }
+
+    @Test
+    public void fullBucketAdmitsOversizedRequest() {
+        assertEquals(0, bucket.tryAcquire(2 * BURST, now));
+        //透支的部分要先还清
+        assertEquals((BURST + 1) * TOKEN, bucket.tryAcquire(1, now));
+        assertEquals(0, bucket.tryAcquire(1, now + (BURST + 1) * TOKEN));
+    }
+
+    @Test
+    public void acquireOverdraws() {
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(0, bucket.acquire(1, now));
+        }
+        assertEquals(TOKEN, bucket.acquire(1, now));
+        assertEquals(2 * TOKEN, bucket.acquire(1, now));
+        //透支之后 tryAcquire 也要等
+        assertEquals(3 * TOKEN, bucket.tryAcquire(1, now));
+        bucket.refund(2);
+        assertEquals(TOKEN, bucket.tryAcquire(1, now));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveRate() {
+        new TokenBucket(0, 1);
+    }
+}
@@ -0,0 +1,84 @@
+package com.yzz.chatroom.server.bus;
+
+import com.yzz.chatroom.protocol.EncodedMessage;
+import com.yzz.chatroom.protocol.Message;
+import com.yzz.chatroom.protocol.MessageType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * describe: 广播总线的顺序与槽位释放
+ * date:2019/1/22
+ */
+public class BroadcastBusTest {
+
+    private static final int BUFFER_SIZE = 4;
+
+    //每个分片收到的消息
+    private final List<List<String>> received = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+
+    private final BroadcastBus bus = new BroadcastBus(BUFFER_SIZE, 2, (shard, message, sequence) ->
+            received.get(shard).add(sequence + ":" + message.message().getMessage()));
+
+    @Test
+    public void everyShardSeesGlobalOrder() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, bus.publish(message("m" + i)));
+        }
+        assertEquals(3, bus.poll(0, Integer.MAX_VALUE));
+        assertEquals(2, bus.poll(1, 2));
+        assertEquals(1, bus.poll(1, Integer.MAX_VALUE));
+        assertEquals(0, bus.poll(1, Integer.MAX_VALUE));
+        assertEquals(received.get(0), received.get(1));
+        assertEquals("2:m2", received.get(0).get(2));
+    }
+
+    @Test
+    public void slotsReleasedOnlyAfterEveryShard() {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            assertTrue(bus.tryPublish(message("m" + i)) >= 0);
+        }
+        assertEquals(-1, bus.tryPublish(message("full")));
+        assertEquals(BUFFER_SIZE, bus.backlog());
+        //只有一个分片处理完，槽位还不能复用
+        bus.poll(0, Integer.MAX_VALUE);
+        assertEquals(-1, bus.tryPublish(message("full")));
+        assertEquals(BUFFER_SIZE, bus.backlog());
+        //最慢的分片处理了两条，释放两个槽位
+        bus.poll(1, 2);
+        assertEquals(BUFFER_SIZE, bus.tryPublish(message("m4")));
+        assertEquals(BUFFER_SIZE + 1, bus.tryPublish(message("m5")));
+        assertEquals(-1, bus.tryPublish(message("full")));
+        //复用的槽位里是新消息
+        bus.poll(1, Integer.MAX_VALUE);
+        bus.poll(0, Integer.MAX_VALUE);
+        assertEquals(6, received.get(1).size());
+        assertEquals("5:m5", received.get(0).get(5));
+        assertEquals(0, bus.backlog());
+    }
+
+    @Test
+    public void prepareWaitFailsWhenMessagesPending() {
+        int[] wakeUps = new int[1];
+        bus.setWaker(0, () -> wakeUps[0]++);
+        assertTrue(bus.prepareWait(0));
+        bus.publish(message("m"));
+        assertEquals(1, wakeUps[0]);
+        bus.endWait(0);
+        assertFalse(bus.prepareWait(0));
+        //分片忙碌时发布不唤醒
+        bus.publish(message("m"));
+        assertEquals(1, wakeUps[0]);
+    }
+
+    private static EncodedMessage message(String body) {
+        return new EncodedMessage(new Message(null, body, MessageType.CHAT, null));
+    }
+}